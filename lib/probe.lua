@@ -0,0 +1,49 @@
+-- This reports the duration, size, and framerate of a file as soon as it's
+-- loaded, straight from the container, without decoding or seeking. Some
+-- containers don't have a trustworthy duration in their header, in which case
+-- it reports "untrusted" and the caller should fall back to seeking to the end
+-- with playback-time.lua.
+
+-- Raw streams and broadcast formats, whose duration is a guess at best.
+local untrusted_formats = {
+	["mpegts"] = true,
+	["mpeg"] = true,
+	["mpegvideo"] = true,
+	["h264"] = true,
+	["hevc"] = true,
+	["m4v"] = true,
+	["flv"] = true,
+	["mjpeg"] = true,
+	["rawvideo"] = true,
+	["yuv4mpegpipe"] = true,
+}
+
+local function find_video_track()
+	local tracks = mp.get_property_native("track-list") or {}
+	for _, track in ipairs(tracks) do
+		if track.type == "video" and track.selected then
+			return track
+		end
+	end
+	return nil
+end
+
+local function probe()
+	local duration = mp.get_property_number("duration")
+	local format = mp.get_property("file-format", "")
+	local track = find_video_track()
+	local fps = mp.get_property_number("container-fps")
+	if track ~= nil and track["demux-fps"] ~= nil then
+		fps = track["demux-fps"]
+	end
+	if duration == nil or duration <= 0 or untrusted_formats[format] or track == nil
+			or track["demux-w"] == nil or track["demux-h"] == nil or fps == nil or fps <= 0
+			or track.image or track.albumart then
+		mp.msg.info("untrusted")
+	else
+		mp.msg.info(string.format("%.06f,%f,%f,%f", duration, track["demux-w"], track["demux-h"], fps))
+	end
+	mp.commandv("quit")
+end
+
+mp.register_event("file-loaded", probe)
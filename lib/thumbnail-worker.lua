@@ -0,0 +1,126 @@
+-- This turns a paused mpv into a screenshot worker. Once the file is loaded,
+-- it reads requests from standard input, one per line:
+--
+--     <start> <count> <interval> <keyframe> <lavfi-complex>
+--
+-- and answers each one with <count> frames, starting at <start> seconds and
+-- <interval> seconds apart. Each frame is a line
+-- "frame <w> <h> <stride> <format>", followed by exactly stride * h bytes of
+-- pixels, normally bgr0. The answer ends with a
+-- line "done", or a line "error <message>" if something went wrong.
+--
+-- Nearby frames ahead of the current position are reached by stepping
+-- forward, which decodes from where we already are, rather than seeking.
+-- <keyframe> is the last keyframe at or before <start>, or negative if it
+-- isn't known. If it's known and we aren't already past it, seeking only
+-- decodes from that keyframe, which is less than stepping would, so we seek.
+
+local NEARBY = 2.0
+local TIMEOUT = 10.0
+
+local current_filter = nil
+
+local function wait_for_event(name)
+	local deadline = mp.get_time() + TIMEOUT
+	while mp.get_time() < deadline do
+		local e = mp.wait_event(deadline - mp.get_time())
+		if e.event == name then
+			return true
+		elseif e.event == "shutdown" then
+			os.exit(0)
+		end
+	end
+	return false
+end
+
+local function seek_to(target)
+	mp.commandv("seek", string.format("%.06f", target), "absolute+exact")
+	return wait_for_event("playback-restart")
+end
+
+local function step_to(target, frame_time)
+	local pos = mp.get_property_number("time-pos", 0)
+	while pos < target - frame_time / 2 do
+		mp.commandv("frame-step")
+		local deadline = mp.get_time() + TIMEOUT
+		local new_pos = pos
+		while new_pos == pos and mp.get_time() < deadline do
+			mp.wait_event(0.005)
+			new_pos = mp.get_property_number("time-pos", pos)
+		end
+		if new_pos == pos then
+			-- we're at the end, so this is as close as we'll get
+			return true
+		end
+		pos = new_pos
+	end
+	return true
+end
+
+local function go_to(target, keyframe)
+	local pos = mp.get_property_number("time-pos")
+	local fps = mp.get_property_number("container-fps", 30)
+	if fps <= 0 then
+		fps = 30
+	end
+	local frame_time = 1 / fps
+	if keyframe ~= nil and keyframe >= 0 and pos ~= nil and pos < keyframe - frame_time / 2 then
+		return seek_to(target)
+	end
+	if pos ~= nil and target >= pos - frame_time / 2 and target - pos <= NEARBY then
+		return step_to(target, frame_time)
+	end
+	return seek_to(target)
+end
+
+local function write_frame()
+	local shot = mp.command_native({"screenshot-raw", "video"})
+	if shot == nil or shot.data == nil then
+		return false
+	end
+	io.stdout:write(string.format("frame %d %d %d %s\n", shot.w, shot.h, shot.stride, shot.format or "bgr0"))
+	io.stdout:write(shot.data)
+	return true
+end
+
+local function answer(line)
+	local start, count, interval, keyframe, filter = line:match("^(%S+) (%S+) (%S+) (%S+) (.*)$")
+	start = tonumber(start)
+	count = tonumber(count)
+	interval = tonumber(interval)
+	keyframe = tonumber(keyframe)
+	if start == nil or count == nil or interval == nil or keyframe == nil then
+		return "bad request"
+	end
+	if filter ~= current_filter then
+		mp.set_property("lavfi-complex", filter)
+		current_filter = filter
+		-- the filter change resets the video, so the next move has to seek
+		if not seek_to(start) then
+			return "seek timed out"
+		end
+	end
+	for i = 0, count - 1 do
+		-- only the first screenshot is known to come after the keyframe
+		if not go_to(start + i * interval, i == 0 and keyframe or nil) then
+			return "seek timed out"
+		end
+		if not write_frame() then
+			return "screenshot failed"
+		end
+	end
+	return nil
+end
+
+mp.register_event("file-loaded", function()
+	for line in io.lines() do
+		local err = answer(line)
+		if err == nil then
+			io.stdout:write("done\n")
+		else
+			io.stdout:write("error " .. err .. "\n")
+		end
+		io.stdout:flush()
+	end
+	mp.commandv("quit")
+end)
@@ -0,0 +1,449 @@
+package thebombzen.tumblgififier;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import thebombzen.tumblgififier.gui.FramerateDecimator;
+import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
+import thebombzen.tumblgififier.util.text.StatusProcessor;
+import thebombzen.tumblgififier.video.BatchScanner;
+import thebombzen.tumblgififier.video.VideoProcessor;
+import thebombzen.tumblgififier.video.VideoScan;
+
+/**
+ * This converts clips of a video to GIFs from the command line, without
+ * starting the GUI, or touching AWT at all, so it runs on headless machines.
+ * If the input is a directory, every video under it is converted, into the
+ * same place under the output directory. Everything it reports goes to
+ * standard output as tab-separated lines, each starting with what kind of line
+ * it is:
+ *
+ * <pre>
+ * status     message
+ * video      input   millis
+ * unreadable input   millis
+ * progress   stage   fraction
+ * clip       number  start    end    output
+ * done       output  bytes
+ * failed     output
+ * </pre>
+ *
+ * The video and unreadable lines only appear when converting a directory,
+ * before the clips of each video, or instead of them if it couldn't be read.
+ * They say how long mpv took to scan the video, in milliseconds.
+ *
+ * The fraction is from 0 to 1, and times are in seconds. Any other lines, such
+ * as from shutting down, should be ignored.
+ */
+public class CommandLineConverter {
+
+	/**
+	 * Status messages ending with this are progress reports from
+	 * VideoProcessor, such as "Scaling Video... 45.00%".
+	 */
+	private static final Pattern PROGRESS_PATTERN = Pattern.compile("^(.*)\\.\\.\\. ([0-9.]+)%$");
+
+	/**
+	 * This writes what the VideoProcessor tells us in the format above.
+	 */
+	private static final StatusProcessor CONSOLE_PROCESSOR = new StatusProcessor(){
+		@Override
+		public void appendStatus(String status) {
+			print(status);
+		}
+
+		@Override
+		public void clearStatus() {
+		}
+
+		@Override
+		public void replaceStatus(String status) {
+			print(status);
+		}
+
+		private void print(String status) {
+			if (status.isEmpty()) {
+				return;
+			}
+			Matcher matcher = PROGRESS_PATTERN.matcher(status);
+			if (matcher.matches()) {
+				try {
+					double percent = Double.parseDouble(matcher.group(2));
+					emit("progress", matcher.group(1), String.format(Locale.ROOT, "%.4f", percent / 100D));
+					return;
+				} catch (NumberFormatException nfe) {
+					// it's just a status message that looks like progress
+				}
+			}
+			emit("status", status);
+		}
+	};
+
+	private final Path input;
+	private final Path output;
+	private final List<double[]> ranges = new ArrayList<>();
+	private int targetSize = 2000;
+	private int targetWidth = -1;
+	private int targetHeight = -1;
+	private FramerateDecimator decimator = FramerateDecimator.HALF_RATE;
+	private String caption = "";
+	private int captionSize = 96;
+
+	/**
+	 * Parse the arguments that came after --convert.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if they don't make sense, with a message saying why.
+	 */
+	public CommandLineConverter(String... args) {
+		Path input = null;
+		Path output = null;
+		boolean sizeGiven = false;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				if (input != null) {
+					throw new IllegalArgumentException("More than one input file: " + arg);
+				}
+				input = Paths.get(arg);
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			String value = args[++i];
+			switch (arg) {
+				case "--output":
+					output = Paths.get(value);
+					break;
+				case "--range":
+					ranges.add(parseRange(value));
+					break;
+				case "--size":
+				case "--width":
+				case "--height":
+					if (sizeGiven) {
+						throw new IllegalArgumentException("Only one of --size, --width, or --height may be given.");
+					}
+					sizeGiven = true;
+					int size = parsePositive(arg, value);
+					if (arg.equals("--size")) {
+						targetSize = size;
+					} else if (arg.equals("--width")) {
+						targetWidth = size;
+					} else {
+						targetHeight = size;
+					}
+					break;
+				case "--framerate":
+					decimator = parseDecimator(value);
+					break;
+				case "--caption":
+					caption = value;
+					break;
+				case "--caption-size":
+					captionSize = parsePositive(arg, value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+		if (input == null) {
+			throw new IllegalArgumentException("No input file or directory.");
+		}
+		if (output == null) {
+			throw new IllegalArgumentException("No output file or directory.");
+		}
+		this.input = input;
+		this.output = output;
+	}
+
+	public Path getInput() {
+		return input;
+	}
+
+	public Path getOutput() {
+		return output;
+	}
+
+	/**
+	 * Returns the clips to convert, each {start, end} in seconds. If this is
+	 * empty, the whole video is converted.
+	 */
+	public List<double[]> getRanges() {
+		List<double[]> copy = new ArrayList<>();
+		ranges.forEach(range -> copy.add(range.clone()));
+		return copy;
+	}
+
+	/**
+	 * Returns the size to fit the GIF into, in kilobytes. This is ignored if
+	 * there's a target width or height.
+	 */
+	public int getTargetSize() {
+		return targetSize;
+	}
+
+	/**
+	 * Returns the width to scale the GIF to, or -1 if it isn't given.
+	 */
+	public int getTargetWidth() {
+		return targetWidth;
+	}
+
+	/**
+	 * Returns the height to scale the GIF to, or -1 if it isn't given.
+	 */
+	public int getTargetHeight() {
+		return targetHeight;
+	}
+
+	public FramerateDecimator getDecimator() {
+		return decimator;
+	}
+
+	public String getCaption() {
+		return caption;
+	}
+
+	public int getCaptionSize() {
+		return captionSize;
+	}
+
+	/**
+	 * Print the options for the help.
+	 */
+	public static void printHelp() {
+		System.out.println("\t--output <gif>\t\tWhere to write the GIF. If there's more than one range, each GIF is");
+		System.out.println("\t\t\t\tnumbered, as in clip-1.gif, clip-2.gif, and so on. If the input is a");
+		System.out.println("\t\t\t\tdirectory, this is a directory too, and each video's GIF is named after it.");
+		System.out.println("\t\t\t\tEach video's line then ends with how long it took to scan, in ms.");
+		System.out.println("\t--range <start>-<end>\tA clip to convert, in seconds or [hh:]mm:ss. May be repeated.");
+		System.out.println("\t\t\t\tThe default is the whole video.");
+		System.out.println("\t--size <kilobytes>\tFit the GIF into this size. The default is 2000.");
+		System.out.println("\t--width <pixels>\tScale the GIF to this width instead.");
+		System.out.println("\t--height <pixels>\tScale the GIF to this height instead.");
+		System.out.println("\t--framerate full|half|third\tCut the framerate. The default is half.");
+		System.out.println("\t--caption <text>\tOverlay this text on the GIF.");
+		System.out.println("\t--caption-size <size>\tThe size of the caption text. The default is 96.");
+	}
+
+	/**
+	 * Load mpv and the other resources, then convert each clip in turn, of
+	 * the input video or of every video in the input directory.
+	 *
+	 * @return the exit status: zero if every clip was converted.
+	 */
+	public int run() {
+		ResourcesManager.loadedPkgs.addAll(ResourcesManager.initializeResources(CONSOLE_PROCESSOR));
+		List<String> missing = new ArrayList<>(ResourcesManager.requiredPkgs);
+		missing.removeAll(ResourcesManager.loadedPkgs);
+		if (!missing.isEmpty()) {
+			emit("status", "Missing: " + String.join(", ", missing));
+			return 1;
+		}
+		if (!caption.isEmpty() && !ResourcesManager.loadedPkgs.contains("OpenSans")) {
+			emit("status", "Missing Open Sans, so captions are disabled.");
+			return 1;
+		}
+		if (Files.isDirectory(input)) {
+			return convertDirectory();
+		}
+		VideoScan scan = VideoScan.scanFile(CONSOLE_PROCESSOR, input);
+		if (scan == null) {
+			emit("status", "Error scanning video file.");
+			return 1;
+		}
+		return convertVideo(scan, output) == 0 ? 0 : 1;
+	}
+
+	/**
+	 * Convert every video under the input directory. Each video is converted
+	 * as soon as it's been scanned, while the rest are still being scanned.
+	 * Its GIF goes in the same place under the output directory, named after
+	 * it.
+	 *
+	 * @return the exit status: zero if every clip of every video was
+	 *         converted.
+	 */
+	private int convertDirectory() {
+		try {
+			Files.createDirectories(output);
+		} catch (IOException ioe) {
+			log(ioe);
+			emit("status", "Couldn't create the output directory: " + output);
+			return 1;
+		}
+		int[] failures = {0};
+		int videos;
+		try {
+			videos = new BatchScanner().scan(input, result -> {
+				emit(getVideoLine("video", result.getPath(), result.getProbeMillis()));
+				if (result.getScan() == null) {
+					emit(getVideoLine("unreadable", result.getPath(), result.getProbeMillis()));
+					failures[0]++;
+					return;
+				}
+				Path gif = getOutputFile(result.getPath());
+				try {
+					Files.createDirectories(gif.getParent());
+				} catch (IOException ioe) {
+					log(ioe);
+				}
+				failures[0] += convertVideo(result.getScan(), gif);
+			});
+		} catch (IOException ioe) {
+			log(ioe);
+			emit("status", "Error reading the input directory.");
+			return 1;
+		}
+		if (videos == 0) {
+			emit("status", "No videos found in " + input);
+			return 1;
+		}
+		return failures[0] == 0 ? 0 : 1;
+	}
+
+	/**
+	 * Returns the fields of a video or unreadable line.
+	 */
+	static String[] getVideoLine(String kind, Path video, double probeMillis) {
+		return new String[]{kind, video.toString(), String.format(Locale.ROOT, "%.1f", probeMillis)};
+	}
+
+	/**
+	 * Returns where the GIF of a video in the input directory goes: the same
+	 * place under the output directory, with its extension replaced by .gif.
+	 */
+	Path getOutputFile(Path video) {
+		Path relative = input.relativize(video);
+		String name = relative.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		name = (dot > 0 ? name.substring(0, dot) : name) + ".gif";
+		return output.resolve(relative).resolveSibling(name);
+	}
+
+	/**
+	 * Convert each clip of a video.
+	 *
+	 * @param gif
+	 *            Where to write the GIF, which is numbered if there's more
+	 *            than one clip.
+	 * @return the number of clips that failed.
+	 */
+	private int convertVideo(VideoScan scan, Path gif) {
+		List<double[]> clips = new ArrayList<>(ranges);
+		if (clips.isEmpty()) {
+			clips.add(new double[]{0D, scan.getDuration()});
+		}
+		VideoProcessor processor = new VideoProcessor(scan);
+		long minSize = targetWidth < 0 && targetHeight < 0 ? 1000L * (targetSize * 19 / 20) : 0L;
+		long maxSize = targetWidth < 0 && targetHeight < 0 ? 1000L * targetSize : Integer.MAX_VALUE;
+		int failures = 0;
+		for (int i = 0; i < clips.size(); i++) {
+			double start = Math.min(clips.get(i)[0], scan.getDuration());
+			double end = Math.min(clips.get(i)[1], scan.getDuration());
+			Path path = clips.size() == 1 ? gif : numberOutput(gif, i + 1);
+			emit("clip", Integer.toString(i + 1), Double.toString(start), Double.toString(end), path.toString());
+			boolean success = end > start && processor.convert(caption, CONSOLE_PROCESSOR, path, start, end, minSize,
+					maxSize, targetWidth, targetHeight, decimator.decimator, captionSize);
+			if (success) {
+				long bytes;
+				try {
+					bytes = Files.size(path);
+				} catch (IOException ioe) {
+					log(ioe);
+					bytes = -1L;
+				}
+				emit("done", path.toString(), Long.toString(bytes));
+			} else {
+				emit("failed", path.toString());
+				failures++;
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Returns the output path with a number before the extension.
+	 */
+	static Path numberOutput(Path gif, int number) {
+		String name = gif.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String numbered = dot > 0 ? name.substring(0, dot) + "-" + number + name.substring(dot)
+				: name + "-" + number;
+		return gif.resolveSibling(numbered);
+	}
+
+	private static synchronized void emit(String... fields) {
+		// tabs and newlines in a message would break up the line
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = fields[i].replaceAll("[\t\r\n]+", " ");
+		}
+		System.out.println(String.join("\t", fields));
+	}
+
+	private static double[] parseRange(String value) {
+		int dash = value.indexOf('-');
+		if (dash < 0) {
+			throw new IllegalArgumentException("A range is <start>-<end>: " + value);
+		}
+		double start = parseTime(value.substring(0, dash));
+		double end = parseTime(value.substring(dash + 1));
+		if (end <= start) {
+			throw new IllegalArgumentException("A range must end after it starts: " + value);
+		}
+		return new double[]{start, end};
+	}
+
+	/**
+	 * Parse a time in seconds, or in mm:ss or hh:mm:ss, the way the sliders
+	 * display them.
+	 */
+	private static double parseTime(String value) {
+		double seconds = 0D;
+		try {
+			for (String part : value.trim().split(":", 3)) {
+				seconds = seconds * 60D + Double.parseDouble(part);
+			}
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Not a time: " + value);
+		}
+		if (seconds < 0D || Double.isNaN(seconds) || Double.isInfinite(seconds)) {
+			throw new IllegalArgumentException("Not a time: " + value);
+		}
+		return seconds;
+	}
+
+	private static int parsePositive(String option, String value) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number > 0) {
+				return number;
+			}
+		} catch (NumberFormatException nfe) {
+			// fall through
+		}
+		throw new IllegalArgumentException(option + " must be a positive integer: " + value);
+	}
+
+	private static FramerateDecimator parseDecimator(String value) {
+		switch (value.toLowerCase(Locale.ENGLISH)) {
+			case "full":
+				return FramerateDecimator.FULL_RATE;
+			case "half":
+				return FramerateDecimator.HALF_RATE;
+			case "third":
+				return FramerateDecimator.THIRD_RATE;
+			default:
+				throw new IllegalArgumentException("--framerate must be full, half, or third: " + value);
+		}
+	}
+}
@@ -6,6 +6,7 @@ import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Comparator;
 import thebombzen.tumblgififier.gui.MainFrame;
 import thebombzen.tumblgififier.util.ConcurrenceManager;
@@ -63,6 +64,19 @@ public final class TumblGIFifier {
 		if (args.length != 0) {
 			if ("--help".equals(args[0])) {
 				printHelpAndExit(true);
+			} else if ("--convert".equals(args[0])) {
+				// This never touches the GUI, so make sure nothing else does
+				// either.
+				System.setProperty("java.awt.headless", "true");
+				CommandLineConverter converter;
+				try {
+					converter = new CommandLineConverter(Arrays.copyOfRange(args, 1, args.length));
+				} catch (IllegalArgumentException iae) {
+					System.err.println(iae.getMessage());
+					printHelpAndExit(false);
+					return;
+				}
+				System.exit(converter.run());
 			} else if (args.length != 1) {
 				printHelpAndExit(false);
 			} else {
@@ -118,6 +132,9 @@ public final class TumblGIFifier {
 	private static void printHelpAndExit(boolean good) {
 		System.out.println("tumblgififier\t--help");
 		System.out.println("tumblgififier\t[filename]");
+		System.out.println("tumblgififier\t--convert <filename> --output <gif> [options]");
+		System.out.println("tumblgififier\t--convert <directory> --output <directory> [options]");
+		CommandLineConverter.printHelp();
 		System.exit(good ? 0 : 1);
 	}
 
@@ -11,6 +11,12 @@ public class ImagePanel extends JPanel {
 
 	private BufferedImage image;
 
+	/**
+	 * This is drawn over the image, stretched the same way. It's kept
+	 * separate so the image can be shared, e.g. with a cache.
+	 */
+	private BufferedImage overlay = null;
+
 	public ImagePanel(BufferedImage image) {
 		this.image = image;
 	}
@@ -30,15 +36,36 @@ public class ImagePanel extends JPanel {
 		double imageAspect = (double) image.getWidth() / (double) image.getHeight();
 		if (thisAspect > imageAspect) {
 			int w = (int) (this.getHeight() * imageAspect);
-			g.drawImage(image, (this.getWidth() - w) / 2, 0, w, this.getHeight(), null);
+			drawImages(g, (this.getWidth() - w) / 2, 0, w, this.getHeight());
 		} else if (thisAspect < imageAspect) {
 			int h = (int) (this.getWidth() / imageAspect);
-			g.drawImage(image, 0, (this.getHeight() - h) / 2, this.getWidth(), h, null);
+			drawImages(g, 0, (this.getHeight() - h) / 2, this.getWidth(), h);
 		} else {
-			g.drawImage(image, 0, 0, this.getWidth(), this.getHeight(), null);
+			drawImages(g, 0, 0, this.getWidth(), this.getHeight());
 		}
 	}
 
+	private void drawImages(Graphics g, int x, int y, int width, int height) {
+		g.drawImage(image, x, y, width, height, null);
+		BufferedImage overlay = this.overlay;
+		if (overlay != null) {
+			g.drawImage(overlay, x, y, width, height, null);
+		}
+	}
+
+	public BufferedImage getOverlay() {
+		return overlay;
+	}
+
+	/**
+	 * Set the image drawn over the image, or null for none. It should be the
+	 * same size as the image.
+	 */
+	public void setOverlay(BufferedImage overlay) {
+		this.overlay = overlay;
+		repaint();
+	}
+
 	public void setImage(BufferedImage image) {
 		this.image = image;
 		repaint();
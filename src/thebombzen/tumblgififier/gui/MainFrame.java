@@ -31,6 +31,7 @@ import thebombzen.tumblgififier.util.io.IOHelper;
 import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
 import thebombzen.tumblgififier.util.text.StatusProcessor;
 import thebombzen.tumblgififier.util.text.StatusProcessorArea;
+import thebombzen.tumblgififier.video.JobQueue;
 import thebombzen.tumblgififier.video.VideoScan;
 
 /**
@@ -189,6 +190,8 @@ public class MainFrame extends JFrame {
 				EventQueue.invokeLater(() -> {
 					open.setEnabled(true);
 				});
+				JobQueue.getQueue().setStatusProcessor(getStatusProcessor());
+				JobQueue.getQueue().start();
 			}
 		}));
 	}
@@ -202,6 +205,7 @@ public class MainFrame extends JFrame {
 			if (scan != null) {
 				EventQueue.invokeLater(() -> {
 					if (mainPanel != null) {
+						mainPanel.stopBackgroundWork();
 						MainFrame.this.remove(mainPanel);
 					} else {
 						MainFrame.this.remove(defaultPanel);
@@ -22,15 +22,17 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -51,7 +53,12 @@ import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
 import thebombzen.tumblgififier.util.text.StatusProcessor;
 import thebombzen.tumblgififier.util.text.StatusProcessorArea;
 import thebombzen.tumblgififier.util.text.TextHelper;
+import thebombzen.tumblgififier.video.FilmstripGenerator;
+import thebombzen.tumblgififier.video.GifJob;
+import thebombzen.tumblgififier.video.JobQueue;
+import thebombzen.tumblgififier.video.KeyframeIndex;
 import thebombzen.tumblgififier.video.ShotCache;
+import thebombzen.tumblgififier.video.ShotPrefetcher;
 import thebombzen.tumblgififier.video.VideoProcessor;
 import thebombzen.tumblgififier.video.VideoScan;
 
@@ -84,6 +91,7 @@ public class MainPanel extends JPanel {
 
 	private StatusProcessorArea statusArea;
 	private JButton fireButton = new JButton("Create GIF");
+	private JButton queueButton = new JButton("Add to Queue");
 
 	private List<Component> onDisable = new ArrayList<>();
 	private JTextField overlayTextField;
@@ -91,8 +99,26 @@ public class MainPanel extends JPanel {
 	private int textSize = 96;
 
 	private String currentText = "";
-	private Map<Tuple<String, Integer>, ShotCache> startCacheMap = new HashMap<>();
-	private Map<Tuple<String, Integer>, ShotCache> endCacheMap = new HashMap<>();
+	private ShotCache startCache;
+	private ShotCache endCache;
+	/**
+	 * Only the most recent screenshot request for each preview is served.
+	 * These count the requests, and hold the task of the most recent one.
+	 */
+	private final AtomicLong startRequest = new AtomicLong();
+	private final AtomicLong endRequest = new AtomicLong();
+	private final AtomicReference<Future<?>> startTask = new AtomicReference<>();
+	private final AtomicReference<Future<?>> endTask = new AtomicReference<>();
+	private ShotPrefetcher startPrefetcher;
+	private ShotPrefetcher endPrefetcher;
+	private FilmstripGenerator filmstrip;
+	private JCheckBox snapCheckBox;
+
+	/**
+	 * With snapping on, a slider that's let go this close to a scene cut, in
+	 * seconds, moves onto it.
+	 */
+	private static final double SNAP_SECONDS = 1D;
 
 	public List<Component> getOnDisable() {
 		return onDisable;
@@ -104,11 +130,19 @@ public class MainPanel extends JPanel {
 		}
 		this.scan = videoScan;
 		this.videoProcessor = new VideoProcessor(videoScan);
-		this.startCacheMap.put(new Tuple<>("", 96), new ShotCache(scan));
-		this.endCacheMap.put(new Tuple<>("", 96), new ShotCache(scan));
+		this.startCache = new ShotCache(scan);
+		this.endCache = new ShotCache(scan);
+		this.startPrefetcher = new ShotPrefetcher(startCache, 480, 270, true);
+		this.endPrefetcher = new ShotPrefetcher(endCache, 480, 270, true);
+		this.filmstrip = new FilmstripGenerator(startCache, 480, 270);
 		setupLayout();
+		JobQueue.getQueue().setStatusProcessor(statusArea);
 		updateStartScreenshot();
 		updateEndScreenshot();
+		// start indexing now, so it's ready by the time anyone wants it, and
+		// before the filmstrip, so it isn't queued behind it
+		KeyframeIndex.getIndex(scan);
+		filmstrip.start();
 		if (ResourcesManager.loadedPkgs.contains("OpenSans")) {
 			ConcurrenceManager.createImpreciseTickClock(2500, TimeUnit.MILLISECONDS,
 					GUIHelper.onEventQueue(this::refreshOverlayText));
@@ -116,8 +150,16 @@ public class MainPanel extends JPanel {
 	}
 
 	/**
-	 * Refresh the ShotCaches associated with the given Overlay Text. This
-	 * method should be executed on the Event Dispatch Thread.
+	 * Stop anything this panel is doing in the background. This is called
+	 * when another video is opened in its place.
+	 */
+	public void stopBackgroundWork() {
+		filmstrip.cancel();
+	}
+
+	/**
+	 * Refresh the overlay on the previews if the Overlay Text has changed.
+	 * This method should be executed on the Event Dispatch Thread.
 	 */
 	private void refreshOverlayText() {
 		int newTextSize = textSize;
@@ -130,19 +172,29 @@ public class MainPanel extends JPanel {
 		currentText = overlayTextField.getText();
 		textSize = newTextSize;
 		if (update) {
-			Tuple<String, Integer> tuple = new Tuple<>(currentText, textSize);
-			if (startCacheMap.get(tuple) == null) {
-				startCacheMap.put(tuple, new ShotCache(scan));
-			}
-			if (endCacheMap.get(tuple) == null) {
-				endCacheMap.put(tuple, new ShotCache(scan));
-			}
-			updateStartScreenshot();
-			updateEndScreenshot();
+			updateOverlay();
 		}
 	}
 
-	private void createGIF(final Path path) {
+	/**
+	 * Render the Overlay Text and put it over both previews. The screenshots
+	 * themselves never have text on them, so they don't need to be taken
+	 * again. This method should be executed on the Event Dispatch Thread.
+	 */
+	private void updateOverlay() {
+		Tuple<Integer, Integer> size = TextHelper.getTextHelper().getScaledSize(480, 270, true, scan.getWidth(),
+				scan.getHeight());
+		BufferedImage overlay = TextHelper.getTextHelper().createOverlayImage(scan.getWidth(), scan.getHeight(),
+				size.getFirst(), size.getSecond(), textSize, currentText);
+		previewImageStartPanel.setOverlay(overlay);
+		previewImageEndPanel.setOverlay(overlay);
+	}
+
+	/**
+	 * Describe the GIF the user has set up, to be written to the given path.
+	 * This method should be executed on the Event Dispatch Thread.
+	 */
+	private GifJob createJob(final Path path) {
 		final int maxSizeBytes;
 		final int minSizeBytes;
 		final int targetWidth;
@@ -169,9 +221,21 @@ public class MainPanel extends JPanel {
 		final int decimator = ((FramerateDecimator) framerateDecimatorComboBox.getSelectedItem()).decimator;
 		final double clipStart = startSlider.getValue() * scan.getScreenshotDuration();
 		final double clipEnd = endSlider.getValue() * scan.getScreenshotDuration();
+		return new GifJob(scan, path, clipStart, clipEnd, minSizeBytes, maxSizeBytes, targetWidth, targetHeight,
+				decimator, overlayTextField.getText(), textSize);
+	}
+
+	private void createGIF(final Path path) {
+		final GifJob job = createJob(path);
+		MainFrame.getMainFrame().setBusy(true);
 		ConcurrenceManager.executeLater(() -> {
-			boolean success = videoProcessor.convert(overlayTextField.getText(), statusArea, path, clipStart, clipEnd,
-					minSizeBytes, maxSizeBytes, targetWidth, targetHeight, decimator, textSize);
+			boolean success = true;
+			try {
+				videoProcessor.convert(job, statusArea);
+			} catch (IOException ioe) {
+				log(ioe);
+				success = false;
+			}
 			MainFrame.getMainFrame().setBusy(false);
 			if (success) {
 				statusArea.appendStatus("Done!");
@@ -244,8 +308,17 @@ public class MainPanel extends JPanel {
 
 	/**
 	 * Execute this on the Event Dispatch thread
+	 * 
+	 * @param queue
+	 *            If this is true, the GIF is added to the JobQueue rather than
+	 *            created right away.
 	 */
-	private void fire() {
+	private void fire(boolean queue) {
+
+		if (startSlider.getValue() >= endSlider.getValue()) {
+			statusArea.appendStatus("The clip is empty. Move the end after the start.");
+			return;
+		}
 
 		if (TargetSize.FILESIZE.equals(targetSizeComboBox.getSelectedItem())) {
 			final int maxSizeBytes = 1000 * targetSize;
@@ -296,7 +369,12 @@ public class MainPanel extends JPanel {
 				// but knowing on standard error is nice
 				log(ioe);
 			}
-			createGIF(Paths.get(mostRecentGIFDirectory, filename).toAbsolutePath());
+			Path path = Paths.get(mostRecentGIFDirectory, filename).toAbsolutePath();
+			if (queue) {
+				JobQueue.getQueue().add(createJob(path));
+			} else {
+				createGIF(path);
+			}
 		}
 	}
 
@@ -372,7 +450,11 @@ public class MainPanel extends JPanel {
 				}
 				startLabel.setText("Start: "
 						+ TextHelper.getTimeDurationFromSeconds(startSlider.getValue() * scan.getScreenshotDuration()));
+				startPrefetcher.onMove(startSlider.getValue());
 				if (!startSlider.getValueIsAdjusting()) {
+					if (snapToSceneCut(startSlider)) {
+						return;
+					}
 					if (videoProcessor != null) {
 						updateStartScreenshot();
 					}
@@ -389,7 +471,11 @@ public class MainPanel extends JPanel {
 				}
 				endLabel.setText("End: "
 						+ TextHelper.getTimeDurationFromSeconds(endSlider.getValue() * scan.getScreenshotDuration()));
+				endPrefetcher.onMove(endSlider.getValue());
 				if (!endSlider.getValueIsAdjusting()) {
+					if (snapToSceneCut(endSlider)) {
+						return;
+					}
 					if (videoProcessor != null) {
 						updateEndScreenshot();
 					}
@@ -543,8 +629,7 @@ public class MainPanel extends JPanel {
 						int size = Integer.parseInt(overlayTextSizeField.getText());
 						if (size >= 1) {
 							textSize = size;
-							updateStartScreenshot();
-							updateEndScreenshot();
+							updateOverlay();
 						} else {
 							overlayTextSizeField.setText(Integer.toString(textSize));
 						}
@@ -564,6 +649,22 @@ public class MainPanel extends JPanel {
 		leftPanel.add(Box.createVerticalStrut(15));
 		leftPanel.add(new JSeparator(SwingConstants.HORIZONTAL));
 		leftPanel.add(Box.createVerticalStrut(15));
+		snapCheckBox = new JCheckBox("Snap start and end to scene cuts");
+		snapCheckBox.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				// finding the scene cuts reads the whole video, so we only
+				// start once someone wants them
+				if (snapCheckBox.isSelected()) {
+					KeyframeIndex.getIndex(scan, true);
+				}
+			}
+		});
+		leftPanel.add(GUIHelper.wrapLeftAligned(snapCheckBox));
+		onDisable.add(snapCheckBox);
+		leftPanel.add(Box.createVerticalStrut(15));
+		leftPanel.add(new JSeparator(SwingConstants.HORIZONTAL));
+		leftPanel.add(Box.createVerticalStrut(15));
 		onDisable.add(framerateDecimatorComboBox);
 
 		JPanel createGIFPanel = new JPanel(new BorderLayout());
@@ -576,9 +677,17 @@ public class MainPanel extends JPanel {
 					MainFrame.getMainFrame().setBusy(false);
 					return;
 				}
-				fire();
+				fire(false);
+			}
+		});
+		queueButton.addActionListener(new ActionListener(){
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				fire(true);
 			}
 		});
+		createGIFPanel.add(queueButton, BorderLayout.EAST);
+		onDisable.add(queueButton);
 		createGIFPanel.setMaximumSize(new Dimension(480, 30));
 		leftPanel.add(createGIFPanel);
 		leftPanel.add(Box.createVerticalStrut(15));
@@ -601,6 +710,35 @@ public class MainPanel extends JPanel {
 		}
 	}
 
+	/**
+	 * If snapping is on, and the slider has been let go near a scene cut,
+	 * move it onto the cut. Until the scene cuts have been found, this does
+	 * nothing. It only looks at the indexes in memory, so it never waits on
+	 * the disk. This method should be executed on the Event Dispatch Thread.
+	 * 
+	 * @return true if the slider was moved, in which case it fires another
+	 *         change event.
+	 */
+	private boolean snapToSceneCut(JSlider slider) {
+		if (!snapCheckBox.isSelected()) {
+			return false;
+		}
+		KeyframeIndex index = KeyframeIndex.getIndex(scan, true);
+		if (index == null) {
+			return false;
+		}
+		double cut = index.getNearestSceneCut(slider.getValue() * scan.getScreenshotDuration(), SNAP_SECONDS);
+		if (Double.isNaN(cut)) {
+			return false;
+		}
+		int value = (int) Math.round(cut * scan.getScreenshotsPerSecond());
+		if (value == slider.getValue()) {
+			return false;
+		}
+		slider.setValue(value);
+		return slider.getValue() == value;
+	}
+
 	/**
 	 * This method may be executed from any thread asynchronously.
 	 */
@@ -613,9 +751,11 @@ public class MainPanel extends JPanel {
 			});
 		};
 		EventQueue.invokeLater(() -> endSlider.setEnabled(false));
-		ConcurrenceManager.executeLater(
-				() -> endCacheMap.get(new Tuple<>(currentText, textSize)).screenShot(callback, previewImageEndPanel,
-						getStatusProcessor(), currentText, endSlider.getValue(), 480, 270, textSize, true));
+		final long request = endRequest.incrementAndGet();
+		final int frame = endSlider.getValue();
+		Future<?> task = ConcurrenceManager.executeLater(() -> endCache.screenShot(callback, previewImageEndPanel,
+				getStatusProcessor(), frame, 480, 270, true, () -> endRequest.get() == request));
+		cancelStale(endTask.getAndSet(task));
 	}
 
 	/**
@@ -630,9 +770,22 @@ public class MainPanel extends JPanel {
 			});
 		};
 		EventQueue.invokeLater(() -> startSlider.setEnabled(false));
-		ConcurrenceManager.executeLater(
-				() -> startCacheMap.get(new Tuple<>(currentText, textSize)).screenShot(callback, previewImageStartPanel,
-						getStatusProcessor(), currentText, startSlider.getValue(), 480, 270, textSize, true));
+		final long request = startRequest.incrementAndGet();
+		final int frame = startSlider.getValue();
+		Future<?> task = ConcurrenceManager.executeLater(() -> startCache.screenShot(callback, previewImageStartPanel,
+				getStatusProcessor(), frame, 480, 270, true, () -> startRequest.get() == request));
+		cancelStale(startTask.getAndSet(task));
+	}
+
+	/**
+	 * Cancel a screenshot task that's been superseded. If it's still queued,
+	 * it never runs, and if it's already running, it notices on its own that
+	 * it isn't current anymore, so we don't interrupt it.
+	 */
+	private static void cancelStale(Future<?> task) {
+		if (task != null) {
+			task.cancel(false);
+		}
 	}
 
 	public JButton getFireButton() {
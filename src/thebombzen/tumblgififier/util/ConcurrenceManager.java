@@ -4,17 +4,20 @@ import static thebombzen.tumblgififier.TumblGIFifier.log;
 import java.awt.EventQueue;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import thebombzen.tumblgififier.OperatingSystem;
 import thebombzen.tumblgififier.TumblGIFifier;
 import thebombzen.tumblgififier.gui.MainFrame;
 import thebombzen.tumblgififier.util.io.IOHelper;
@@ -41,7 +44,7 @@ public final class ConcurrenceManager {
 	 * This is a list of all processes started by our program. It's used so we
 	 * can end them all upon exit.
 	 */
-	private static volatile List<Process> processes = new ArrayList<>();
+	private static volatile List<Process> processes = new CopyOnWriteArrayList<>();
 
 	/**
 	 * These are a list of jobs that must be executed when the program shuts
@@ -128,6 +131,67 @@ public final class ConcurrenceManager {
 		return p.getInputStream();
 	}
 
+	/**
+	 * Create a subprocess and return it, so the caller can end that process
+	 * individually. This automatically redirects standard error to standard
+	 * out. The process is still tracked like any other, so stopAll() will end
+	 * it as well.
+	 * 
+	 * @param args
+	 *            The program name and arguments to execute. This is NOT passed
+	 *            to a shell so everything from spaces to empty strings are
+	 *            passed on.
+	 * @return The process that was started.
+	 * @throws ProcessTerminatedException
+	 *             if we're in the middle of cleaning up and refuse to start
+	 *             new processes.
+	 * @throws IOException
+	 *             If an I/O error occurs.
+	 */
+	public static Process startProcess(String... args) throws IOException {
+		return startProcess(true, args);
+	}
+
+	/**
+	 * Create a subprocess and return it, like startProcess(String...). If
+	 * mergeErrors is false, standard error is discarded rather than
+	 * redirected to standard out, which is what we want if standard out
+	 * carries data rather than messages.
+	 */
+	public static Process startProcess(boolean mergeErrors, String... args) throws IOException {
+		if (cleaningUp) {
+			throw new ProcessTerminatedException("Refusing to start a process while cleaning up.");
+		}
+		ProcessBuilder pbuilder = new ProcessBuilder(args);
+		if (mergeErrors) {
+			pbuilder.redirectErrorStream(true);
+		} else {
+			pbuilder.redirectError(new File(OperatingSystem.getLocalOS().getNullStream()));
+		}
+		Process p = pbuilder.start();
+		processes.removeIf(process -> !process.isAlive());
+		processes.add(p);
+		return p;
+	}
+
+	/**
+	 * Returns the arguments with "nice -n 19" in front on unix, so that the
+	 * process runs at the lowest CPU priority. This is for background work
+	 * that shouldn't slow down anything the user is waiting on. Elsewhere the
+	 * arguments are returned as they are.
+	 */
+	public static String[] niceArgs(String... args) {
+		if (!OperatingSystem.getLocalOS().isUnix()) {
+			return args;
+		}
+		String[] niceArgs = new String[args.length + 3];
+		niceArgs[0] = "nice";
+		niceArgs[1] = "-n";
+		niceArgs[2] = "19";
+		System.arraycopy(args, 0, niceArgs, 3, args.length);
+		return niceArgs;
+	}
+
 	/**
 	 * Create a subprocess and execute the arguments. This automatically
 	 * redirects standard error to standard out. Log its output on the full log.
@@ -232,6 +296,8 @@ public final class ConcurrenceManager {
 	private static void cleanUp() {
 		stopAll();
 		threadPool.shutdown();
+		backgroundPool.shutdownNow();
+		idlePool.shutdownNow();
 		System.out.println();
 		cleanUpJobs.stream().forEachOrdered((task) -> {
 			task.run();
@@ -270,6 +336,58 @@ public final class ConcurrenceManager {
 		return threadPool.submit(r);
 	}
 
+	/**
+	 * This queues a given Runnable to be executed once, after a delay.
+	 */
+	public static Future<?> executeAfter(long delay, TimeUnit timeUnit, Runnable r) {
+		return threadPool.schedule(r, delay, timeUnit);
+	}
+
+	/**
+	 * These are low-priority threads for speculative work, such as
+	 * prefetching, which should never hold up anything the user is waiting
+	 * on. Each task gets a thread of its own, so one prefetch never waits
+	 * behind another.
+	 */
+	private static ExecutorService backgroundPool = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "Background");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	/**
+	 * This executes a given Runnable in the background, on a thread that
+	 * yields to everything else. It doesn't wait for anything else that's
+	 * running in the background, so the task should be short, or stop on its
+	 * own when it isn't wanted.
+	 */
+	public static Future<?> executeInBackground(Runnable r) {
+		return backgroundPool.submit(r);
+	}
+
+	/**
+	 * These are low-priority threads, one per core, for long-running work that
+	 * should only use whatever CPU nothing else wants.
+	 */
+	private static ExecutorService idlePool = Executors
+			.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+				Thread thread = new Thread(r, "Idle");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+
+	/**
+	 * This queues a given Runnable to be executed on one of the idle threads.
+	 * Unlike executeLater, these tasks may take as long as they like, and may
+	 * even wait on work queued with executeLater, since they don't hold up the
+	 * main thread pool.
+	 */
+	public static Future<?> executeWhenIdle(Runnable r) {
+		return idlePool.submit(r);
+	}
+
 	/**
 	 * This queues a runnable to be executed at regular intervals. It's called
 	 * an "Imprecise" tick clock because there is no guarantee that the
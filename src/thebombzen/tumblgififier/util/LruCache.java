@@ -0,0 +1,96 @@
+package thebombzen.tumblgififier.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * This is a least-recently-used cache whose capacity is a total weight, such
+ * as a number of bytes, rather than a number of entries. When adding an entry
+ * pushes the total over the capacity, the least recently used entries are
+ * evicted until it fits again. This class is thread-safe.
+ * 
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the values.
+ */
+public class LruCache<K, V> {
+
+	private final Map<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final ToLongFunction<? super V> weigher;
+	private final long capacity;
+	private long weight = 0L;
+
+	/**
+	 * @param capacity
+	 *            The most total weight the cache may hold.
+	 * @param weigher
+	 *            This computes the weight of each value. It must return the
+	 *            same weight for a value every time.
+	 */
+	public LruCache(long capacity, ToLongFunction<? super V> weigher) {
+		this.capacity = capacity;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Returns the value for this key and marks it as recently used, or null if
+	 * it isn't in the cache.
+	 */
+	public synchronized V get(K key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * Add a value to the cache, replacing any value for the same key, and
+	 * evict the least recently used entries if it's over capacity. A value
+	 * that's heavier than the whole capacity is not added.
+	 */
+	public synchronized void put(K key, V value) {
+		long valueWeight = weigher.applyAsLong(value);
+		V old = entries.remove(key);
+		if (old != null) {
+			weight -= weigher.applyAsLong(old);
+		}
+		if (valueWeight > capacity) {
+			return;
+		}
+		entries.put(key, value);
+		weight += valueWeight;
+		Iterator<V> it = entries.values().iterator();
+		while (weight > capacity && it.hasNext()) {
+			weight -= weigher.applyAsLong(it.next());
+			it.remove();
+		}
+	}
+
+	public synchronized void remove(K key) {
+		V old = entries.remove(key);
+		if (old != null) {
+			weight -= weigher.applyAsLong(old);
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0L;
+	}
+
+	/**
+	 * Returns the total weight of everything in the cache.
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+}
@@ -1,20 +1,35 @@
 package thebombzen.tumblgififier.util.text;
 
 import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.font.TextLayout;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import thebombzen.tumblgififier.util.io.IOHelper;
+import java.util.Map;
+import thebombzen.tumblgififier.util.ConcurrenceManager;
+import thebombzen.tumblgififier.util.DefaultTask;
+import thebombzen.tumblgififier.util.Tuple;
 import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
 
 public final class TextHelper {
 
 	private static TextHelper instance = null;
 
-	public static TextHelper getTextHelper() {
+	public static synchronized TextHelper getTextHelper() {
 		if (instance == null) {
 			instance = new TextHelper();
 		}
@@ -22,38 +37,49 @@ public final class TextHelper {
 	}
 
 	/**
-	 * We dump the overlay text to a file so we don't have to escape it.
+	 * We keep the overlay files of this many messages.
 	 */
-	private Path tempOverlayPath;
+	public static final int MAX_OVERLAY_FILES = 64;
 
 	/**
-	 * This is the escaped filename of the tempOverlayFile.
+	 * We dump the overlay text to a file so we don't have to escape it. Each
+	 * message gets its own file, which is never rewritten, so any number of
+	 * conversions can use their filters at once. This maps each message to
+	 * its file. A long-running session can see any number of captions, so we
+	 * keep the files of the most recently used MAX_OVERLAY_FILES messages, and
+	 * delete the rest. Every attempt asks for its file again when it builds
+	 * its filter, so a caption that's being converted stays recent.
 	 */
-	private String tempOverlayEscapedFilename;
+	private final Map<String, Path> overlayFiles = new LinkedHashMap<String, Path>(16, 0.75F, true){
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Path> eldest) {
+			if (size() > MAX_OVERLAY_FILES) {
+				deleteOverlayFile(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	};
 	private String fontFile = null;
+	private Font font = null;
 
 	/**
 	 * This is the escaped filename of the Open Sans font file location. Using a
 	 * getter allows it to be lazily populated.
 	 */
-	private String getFontFile() {
+	private synchronized String getFontFile() {
 		if (fontFile == null) {
 			fontFile = escapeForVideoFilter(ResourcesManager.getOpenSansResource().getLocation().toString());
 		}
 		return fontFile;
 	}
 
-	{
-		try {
-			tempOverlayPath = IOHelper.createTempFile();
-			tempOverlayEscapedFilename = escapeForVideoFilter(tempOverlayPath.toString());
-		} catch (IOException ioe) {
-			throw new Error();
-		}
-	}
-
 	private TextHelper() {
-
+		// the files aren't marked for deleteOnExit, which would remember every
+		// one of them until exit
+		ConcurrenceManager.addShutdownTask(new DefaultTask(0, this::deleteOverlayFiles));
 	}
 
 	/**
@@ -75,9 +101,9 @@ public final class TextHelper {
 
 	/**
 	 * This creates the drawtext filter to be used with the text overlay
-	 * feature. Just drop right after -vf. Note that you shouldn't use this more
-	 * than once at a time, because it dumps the message to a file and points
-	 * the filter to that file.
+	 * feature. Just drop right after -vf. It dumps the message to a file and
+	 * points the filter to that file, which stays put while the message is
+	 * in use.
 	 * 
 	 * @param width
 	 *            The video width
@@ -93,18 +119,131 @@ public final class TextHelper {
 	public String createDrawTextString(int width, int height, int fontSize, String message) {
 		int size = (int) Math.ceil(fontSize * height / 1080D);
 		int borderw = (int) Math.ceil(size * 7D / fontSize);
-		try (Writer writer = Files.newBufferedWriter(tempOverlayPath)) {
-			writer.write(message);
-		} catch (IOException ex) {
-			log(ex);
+		String overlayFile = getOverlayFile(message);
+		if (overlayFile == null) {
 			return "";
 		}
 		String drawText = "drawtext=x=(w-tw)*0.5:y=0.935*(h-0.5*" + size
 				+ "):bordercolor=black:fontcolor=white:borderw=" + borderw + ":fontfile=" + getFontFile() + ":fontsize="
-				+ size + ":textfile=" + tempOverlayEscapedFilename;
+				+ size + ":textfile=" + overlayFile;
 		return drawText;
 	}
 
+	/**
+	 * Returns the escaped filename of the file holding this message, writing
+	 * it if it's new, or null if it couldn't be written.
+	 */
+	private synchronized String getOverlayFile(String message) {
+		Path overlayFile = overlayFiles.get(message);
+		if (overlayFile == null) {
+			Path path = null;
+			try {
+				path = Files.createTempFile(ResourcesManager.getTemporaryDirectory(), "tumblgififier", ".tmp")
+						.toAbsolutePath();
+				try (Writer writer = Files.newBufferedWriter(path)) {
+					writer.write(message);
+				}
+			} catch (IOException ex) {
+				log(ex);
+				deleteOverlayFile(path);
+				return null;
+			}
+			overlayFile = path;
+			overlayFiles.put(message, overlayFile);
+		}
+		return escapeForVideoFilter(overlayFile.toString());
+	}
+
+	private static void deleteOverlayFile(Path path) {
+		if (path == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException ioe) {
+			log(ioe);
+		}
+	}
+
+	private synchronized void deleteOverlayFiles() {
+		overlayFiles.values().forEach(TextHelper::deleteOverlayFile);
+		overlayFiles.clear();
+	}
+
+	/**
+	 * Render the overlay text the way createDrawTextString's drawtext filter
+	 * would, but in Java2D, onto a transparent image that can be drawn over a
+	 * screenshot. The geometry is worked out at the size of the video and then
+	 * scaled down to the size of the screenshot, so it lines up with what
+	 * ends up in the GIF.
+	 * 
+	 * @param width
+	 *            The video width
+	 * @param height
+	 *            The video height
+	 * @param shotWidth
+	 *            The width of the screenshot it goes over
+	 * @param shotHeight
+	 *            The height of the screenshot it goes over
+	 * @param fontSize
+	 *            The font point size of the message we want to render
+	 * @param message
+	 *            The text of the message we want to render
+	 * @return The overlay, or null if there's nothing to draw or no font to
+	 *         draw it with.
+	 */
+	public BufferedImage createOverlayImage(int width, int height, int shotWidth, int shotHeight, int fontSize,
+			String message) {
+		if (!validateString(message) || !ResourcesManager.loadedPkgs.contains("OpenSans")) {
+			return null;
+		}
+		Font font = getFont();
+		if (font == null) {
+			return null;
+		}
+		int size = (int) Math.ceil(fontSize * height / 1080D);
+		int borderw = (int) Math.ceil(size * 7D / fontSize);
+		BufferedImage overlay = new BufferedImage(shotWidth, shotHeight, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = overlay.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+			g.scale((double) shotWidth / width, (double) shotHeight / height);
+			font = font.deriveFont((float) size);
+			TextLayout layout = new TextLayout(message, font, g.getFontRenderContext());
+			// drawtext's x and y are the top left of the text, and tw is the
+			// advance of the whole line. The baseline is one ascent down.
+			double x = (width - layout.getAdvance()) * 0.5D;
+			double y = 0.935D * (height - 0.5D * size) + g.getFontMetrics(font).getAscent();
+			Shape outline = layout.getOutline(AffineTransform.getTranslateInstance(x, y));
+			g.setColor(Color.BLACK);
+			// The stroke is centered on the outline, so it has to be twice as
+			// wide as the border.
+			g.setStroke(new BasicStroke(2F * borderw, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+			g.draw(outline);
+			g.setColor(Color.WHITE);
+			g.fill(outline);
+		} finally {
+			g.dispose();
+		}
+		return overlay;
+	}
+
+	/**
+	 * This is Open Sans, as a Java font, or null if it can't be loaded. It's
+	 * loaded lazily, and only once.
+	 */
+	private synchronized Font getFont() {
+		if (font == null) {
+			try (InputStream in = Files.newInputStream(ResourcesManager.getOpenSansResource().getLocation())) {
+				font = Font.createFont(Font.TRUETYPE_FONT, in);
+			} catch (IOException | FontFormatException ex) {
+				log(ex);
+			}
+		}
+		return font;
+	}
+
 	/**
 	 * Tests for a string's "validity." A string is "valid" provided that is is
 	 * not null and is not empty.
@@ -179,6 +318,27 @@ public final class TextHelper {
 		}
 	}
 
+	/**
+	 * Returns the size of the frames that come out of the scaler
+	 * createVideoFilter adds, so raw frames can be read without any other
+	 * information. With a boxed scale, this mirrors the rounding of ffmpeg's
+	 * force_original_aspect_ratio=decrease.
+	 * 
+	 * @return the (width, height) of the output.
+	 */
+	public Tuple<Integer, Integer> getScaledSize(int width, int height, boolean boxedScale, int originalWidth,
+			int originalHeight) {
+		if (!(width > 0 && width != originalWidth || height > 0 && height != originalHeight)) {
+			return new Tuple<>(originalWidth, originalHeight);
+		}
+		if (!boxedScale) {
+			return new Tuple<>(width, height);
+		}
+		long boxedWidth = ((long) height * originalWidth + originalHeight / 2) / originalHeight;
+		long boxedHeight = ((long) width * originalHeight + originalWidth / 2) / originalWidth;
+		return new Tuple<>((int) Math.min(boxedWidth, width), (int) Math.min(boxedHeight, height));
+	}
+
 	public String createVideoFilter(String preprocess, String postprocess, int width, int height, boolean boxedScale,
 			int decimator, int originalWidth, int originalHeight, int overlaySize, String overlayText) {
 		log("Creating video filter.");
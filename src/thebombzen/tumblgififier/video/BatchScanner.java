@@ -0,0 +1,243 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import thebombzen.tumblgififier.util.ConcurrenceManager;
+import thebombzen.tumblgififier.util.text.StatusProcessor;
+
+/**
+ * This scans every video in a directory tree. Scanning a video mostly means
+ * waiting on mpv, so we scan several at once, and hand back each result as
+ * soon as it's ready rather than when they're all done. Files that obviously
+ * aren't videos are skipped without starting mpv at all.
+ */
+public class BatchScanner {
+
+	/**
+	 * We run this many scans at once, by default.
+	 */
+	public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Files with these extensions are assumed to be videos. Anything else is
+	 * checked for the signature of a video container.
+	 */
+	private static final Set<String> VIDEO_EXTENSIONS = new HashSet<>(Arrays.asList("3g2", "3gp", "asf", "avi",
+			"divx", "f4v", "flv", "m2ts", "m2v", "m4v", "mkv", "mov", "mp4", "mpeg", "mpg", "mts", "mxf", "nut", "ogv",
+			"qt", "rm", "rmvb", "ts", "vob", "webm", "wmv", "y4m"));
+
+	/**
+	 * The MPEG-TS sync byte appears every this many bytes.
+	 */
+	private static final int TS_PACKET_SIZE = 188;
+
+	/**
+	 * The result of scanning one file.
+	 */
+	public static class Result {
+		private final Path path;
+		private final VideoScan scan;
+		private final long probeNanos;
+
+		private Result(Path path, VideoScan scan, long probeNanos) {
+			this.path = path;
+			this.scan = scan;
+			this.probeNanos = probeNanos;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		/**
+		 * The scan, or null if mpv couldn't read the file as a video, or the
+		 * scan failed.
+		 */
+		public VideoScan getScan() {
+			return scan;
+		}
+
+		/**
+		 * How long the scan took, in milliseconds.
+		 */
+		public double getProbeMillis() {
+			return probeNanos * 1E-6D;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %s, %.1f ms", path, scan, getProbeMillis());
+		}
+	}
+
+	/**
+	 * We don't care about the status messages from each scan.
+	 */
+	private static final StatusProcessor QUIET_PROCESSOR = new StatusProcessor(){
+		@Override
+		public void appendStatus(String status) {
+		}
+
+		@Override
+		public void clearStatus() {
+		}
+
+		@Override
+		public void replaceStatus(String status) {
+		}
+	};
+
+	private final int parallelism;
+
+	public BatchScanner() {
+		this(DEFAULT_PARALLELISM);
+	}
+
+	public BatchScanner(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Scan every video under the given directory, following subdirectories.
+	 * This blocks until every scan is finished, but the consumer is called
+	 * with each result, on this thread, as soon as it's ready. The results
+	 * come in the order they finish, not the order of the files. A file that
+	 * fails to scan gets a result with a null scan, and the rest carry on.
+	 * Subdirectories we can't read are logged and skipped.
+	 *
+	 * @return the number of files that were scanned.
+	 * @throws IOException
+	 *             if the directory itself can't be read.
+	 */
+	public int scan(Path directory, Consumer<? super Result> consumer) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+		CompletionService<Result> completion = new ExecutorCompletionService<>(pool);
+		// submitted, then finished
+		int[] counts = {0, 0};
+		try {
+			Files.walkFileTree(directory, new SimpleFileVisitor<Path>(){
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (!Files.isRegularFile(file) || !isProbablyVideo(file)) {
+						return FileVisitResult.CONTINUE;
+					}
+					completion.submit(() -> scanFile(file));
+					counts[0]++;
+					// hand out whatever's ready while we keep walking
+					Future<Result> done;
+					while ((done = completion.poll()) != null) {
+						try {
+							consumer.accept(getResult(done));
+						} catch (InterruptedException ie) {
+							Thread.currentThread().interrupt();
+							return FileVisitResult.TERMINATE;
+						}
+						counts[1]++;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+					if (file.equals(directory)) {
+						throw exc;
+					}
+					log(exc);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			while (counts[1] < counts[0]) {
+				consumer.accept(getResult(completion.take()));
+				counts[1]++;
+			}
+		} catch (InterruptedException ie) {
+			throw new IOException(ie);
+		} finally {
+			pool.shutdownNow();
+		}
+		return counts[0];
+	}
+
+	private static Result scanFile(Path path) {
+		long start = System.nanoTime();
+		VideoScan scan;
+		try {
+			scan = VideoScan.scanFile(QUIET_PROCESSOR, path);
+		} catch (RuntimeException ex) {
+			log(ex);
+			scan = null;
+		}
+		Result result = new Result(path, scan, System.nanoTime() - start);
+		log("Batch scan: " + result);
+		return result;
+	}
+
+	private static Result getResult(Future<Result> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException ee) {
+			// scanFile catches anything a single file can throw, so this is
+			// something worse, like running out of memory
+			return ConcurrenceManager.sneakyThrow(ee.getCause());
+		}
+	}
+
+	/**
+	 * Returns true if this file might be a video. This only looks at the
+	 * extension, and if that's unfamiliar, at the first few bytes of the file,
+	 * so it's much cheaper than asking mpv. It can be fooled, but then mpv
+	 * just fails to scan it.
+	 */
+	public static boolean isProbablyVideo(Path path) {
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0 && VIDEO_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH))) {
+			return true;
+		}
+		byte[] header = new byte[TS_PACKET_SIZE + 1];
+		int length = 0;
+		try (InputStream in = Files.newInputStream(path)) {
+			int read;
+			while (length < header.length && (read = in.read(header, length, header.length - length)) > 0) {
+				length += read;
+			}
+		} catch (IOException ioe) {
+			log(ioe);
+			return false;
+		}
+		if (length < 12) {
+			return false;
+		}
+		String ascii = new String(header, 0, length, StandardCharsets.ISO_8859_1);
+		return ascii.startsWith("\u001AE\u00DF\u00A3") // Matroska, WebM
+				|| ascii.startsWith("ftyp", 4) // MP4, MOV, 3GP
+				|| ascii.startsWith("RIFF") && ascii.startsWith("AVI ", 8)
+				|| ascii.startsWith("FLV") || ascii.startsWith("OggS")
+				|| ascii.startsWith("0&\u00B2u") // ASF, WMV
+				|| ascii.startsWith("\u0000\u0000\u0001\u00BA") // MPEG-PS
+				|| ascii.startsWith("\u0000\u0000\u0001\u00B3") // MPEG video
+				|| ascii.startsWith("nut/multimedia container") || ascii.startsWith("YUV4MPEG2")
+				|| length > TS_PACKET_SIZE && header[0] == 0x47 && header[TS_PACKET_SIZE] == 0x47;
+	}
+}
@@ -0,0 +1,230 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import thebombzen.tumblgififier.util.ConcurrenceManager;
+import thebombzen.tumblgififier.util.io.IOHelper;
+import thebombzen.tumblgififier.util.io.resources.ProcessTerminatedException;
+
+/**
+ * This represents one attempt at encoding a GIF at a particular size. Each
+ * attempt has its own temporary files and keeps track of its own subprocesses,
+ * so several attempts can run at once and any one of them can be cancelled
+ * without disturbing the others.
+ */
+public class EncodeAttempt {
+
+	private final double scale;
+	private final int width;
+	private final int height;
+
+	private final String source;
+	private final double duration;
+
+	private final Path gifFile;
+	private final Path nutFile;
+	private final Path paletteFile;
+
+	private final List<Process> processes = new ArrayList<>();
+	private volatile boolean cancelled = false;
+	private volatile boolean aborted = false;
+
+	private volatile long size = -1L;
+	private volatile long estimatedSize = -1L;
+	private volatile IOException error = null;
+
+	public EncodeAttempt(double scale, int width, int height) throws IOException {
+		this(scale, width, height, null, -1D);
+	}
+
+	/**
+	 * Create an attempt that encodes something other than the whole clip, for
+	 * example a handful of short samples of it.
+	 * 
+	 * @param source
+	 *            What mpv should open instead of the clip, or null for the
+	 *            clip itself.
+	 * @param duration
+	 *            The duration of the source in seconds. Ignored if source is
+	 *            null.
+	 */
+	public EncodeAttempt(double scale, int width, int height, String source, double duration) throws IOException {
+		this.scale = scale;
+		this.width = width;
+		this.height = height;
+		this.source = source;
+		this.duration = duration;
+		this.gifFile = IOHelper.createTempFile();
+		this.nutFile = IOHelper.createTempFile();
+		this.paletteFile = IOHelper.createTempFile();
+	}
+
+	/**
+	 * Start a subprocess on behalf of this attempt. Standard error is
+	 * redirected to standard out, and this returns immediately.
+	 *
+	 * @return an InputStream that reads from the output of the process.
+	 * @throws ProcessTerminatedException
+	 *             if this attempt was cancelled, or if the process could not be
+	 *             started.
+	 */
+	public InputStream exec(String... args) throws ProcessTerminatedException {
+		return exec(true, args);
+	}
+
+	/**
+	 * Start a subprocess on behalf of this attempt whose standard output is
+	 * data, such as raw video. Standard error is discarded, and this returns
+	 * immediately.
+	 *
+	 * @return an InputStream that reads from the standard output of the
+	 *         process.
+	 * @throws ProcessTerminatedException
+	 *             if this attempt was cancelled, or if the process could not be
+	 *             started.
+	 */
+	public InputStream execData(String... args) throws ProcessTerminatedException {
+		return exec(false, args);
+	}
+
+	private synchronized InputStream exec(boolean mergeErrors, String... args) throws ProcessTerminatedException {
+		if (cancelled || aborted) {
+			throw new ProcessTerminatedException("Attempt cancelled.");
+		}
+		log(String.join(" ", args));
+		try {
+			Process p = ConcurrenceManager.startProcess(mergeErrors, args);
+			processes.add(p);
+			return new BufferedInputStream(p.getInputStream());
+		} catch (ProcessTerminatedException pte) {
+			throw pte;
+		} catch (IOException ioe) {
+			throw new ProcessTerminatedException(ioe);
+		}
+	}
+
+	/**
+	 * Throws an exception if this attempt has been cancelled. A cancelled
+	 * process just looks like it reached end-of-file, so every stage should
+	 * check this before trusting its output.
+	 */
+	public void checkCancelled() throws ProcessTerminatedException {
+		if (cancelled) {
+			throw new ProcessTerminatedException("Attempt cancelled.");
+		}
+	}
+
+	/**
+	 * Cancel this attempt and end all of its subprocesses. This may be called
+	 * from any thread.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		processes.stream().filter(Process::isAlive).forEach(Process::destroy);
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Abort this attempt because it's already too big, and end all of its
+	 * subprocesses. Unlike a cancelled attempt, an aborted attempt still
+	 * counts as a measurement: an estimate of the size it would have reached.
+	 * This may be called from any thread.
+	 */
+	public synchronized void abort(long estimatedSize) {
+		this.estimatedSize = estimatedSize;
+		aborted = true;
+		processes.stream().filter(Process::isAlive).forEach(Process::destroy);
+	}
+
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	/**
+	 * The size this attempt would have reached if it hadn't been aborted, or
+	 * -1 if it wasn't aborted.
+	 */
+	public long getEstimatedSize() {
+		return estimatedSize;
+	}
+
+	/**
+	 * Delete all the temporary files belonging to this attempt.
+	 */
+	public void deleteFiles() {
+		IOHelper.deleteTempFile(gifFile);
+		IOHelper.deleteTempFile(nutFile);
+		IOHelper.deleteTempFile(paletteFile);
+	}
+
+	public double getScale() {
+		return scale;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * What mpv should open for this attempt, or null if it encodes the whole
+	 * clip.
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * The duration of the source, or -1 if it encodes the whole clip.
+	 */
+	public double getDuration() {
+		return source != null ? duration : -1D;
+	}
+
+	public Path getGifFile() {
+		return gifFile;
+	}
+
+	public Path getNutFile() {
+		return nutFile;
+	}
+
+	public Path getPaletteFile() {
+		return paletteFile;
+	}
+
+	/**
+	 * The size of the finished GIF, or -1 if it hasn't finished. An aborted
+	 * attempt reports its estimated size here.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	/**
+	 * The error that ended this attempt, or null if there wasn't one.
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	public void setError(IOException error) {
+		this.error = error;
+	}
+
+}
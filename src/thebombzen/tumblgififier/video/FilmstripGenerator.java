@@ -0,0 +1,159 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import thebombzen.tumblgififier.util.ConcurrenceManager;
+
+/**
+ * This takes a screenshot of every slider position in the whole video, in the
+ * background, and puts them in the ThumbnailStore, where every ShotCache for
+ * the video finds them. The timeline is split into one segment per core but
+ * one, and each segment is taken in chunks by its own low-priority mpv
+ * process, so on a machine with several cores the whole thing is done soon
+ * after the video is opened. Whenever a GIF is being converted, we wait
+ * between chunks until it's finished.
+ *
+ * The filmstrip only takes a share of the store. If the whole video wouldn't
+ * fit in it, we take every few slider positions instead of all of them, so
+ * the filmstrip never pushes out the screenshots the user has actually looked
+ * at.
+ */
+public class FilmstripGenerator {
+
+	/**
+	 * Each mpv process takes this many screenshots. Between chunks is when we
+	 * notice that we've been cancelled or should pause, so they shouldn't be
+	 * too long.
+	 */
+	public static final int CHUNK_FRAMES = 4 * ShotCache.WINDOW_FRAMES;
+
+	/**
+	 * One fewer than the idle threads, so there's always one left over for
+	 * the KeyframeIndex.
+	 */
+	public static final int DEFAULT_SEGMENTS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+	/**
+	 * The filmstrip takes up at most this fraction of the ThumbnailStore.
+	 */
+	public static final double STORE_SHARE = 0.25D;
+
+	/**
+	 * Roughly how much a screenshot takes in the store, as a JPEG.
+	 */
+	static final long SHOT_BYTES = 32L * 1024L;
+
+	/**
+	 * While a conversion is running, we check this often to see whether it's
+	 * finished.
+	 */
+	private static final long PAUSE_MILLIS = 500L;
+
+	private final ShotCache cache;
+	private final int shotWidth;
+	private final int shotHeight;
+	private final int segments;
+
+	private final List<Future<?>> tasks = new ArrayList<>();
+	private final AtomicInteger framesDone = new AtomicInteger();
+	private volatile boolean cancelled = false;
+	/**
+	 * We take every stride-th slider position.
+	 */
+	private int stride = 1;
+
+	public FilmstripGenerator(ShotCache cache, int shotWidth, int shotHeight) {
+		this(cache, shotWidth, shotHeight, DEFAULT_SEGMENTS);
+	}
+
+	public FilmstripGenerator(ShotCache cache, int shotWidth, int shotHeight, int segments) {
+		this.cache = cache;
+		this.shotWidth = shotWidth;
+		this.shotHeight = shotHeight;
+		this.segments = Math.max(1, segments);
+	}
+
+	/**
+	 * Returns how many slider positions apart the filmstrip's screenshots
+	 * should be, so that they fit in their share of a store this big.
+	 */
+	static int getStride(int frameCount, long storeBytes) {
+		long budget = (long) (storeBytes * STORE_SHARE) / SHOT_BYTES;
+		if (budget <= 0L) {
+			return Math.max(1, frameCount);
+		}
+		return (int) Math.max(1L, (frameCount + budget - 1L) / budget);
+	}
+
+	/**
+	 * Start generating. This returns immediately.
+	 */
+	public synchronized void start() {
+		int frameCount = cache.getFrameCount();
+		stride = getStride(frameCount, ThumbnailStore.getStore().getMaxBytes());
+		for (int i = 0; i < segments; i++) {
+			int first = (int) ((long) frameCount * i / segments);
+			int last = (int) ((long) frameCount * (i + 1) / segments);
+			// every segment starts on a multiple of the stride
+			first = (first + stride - 1) / stride * stride;
+			final int firstF = first;
+			if (last > first) {
+				tasks.add(ConcurrenceManager.executeWhenIdle(() -> generate(firstF, last)));
+			}
+		}
+	}
+
+	/**
+	 * Stop generating. Chunks that are already being taken are finished.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		tasks.forEach(task -> task.cancel(false));
+	}
+
+	/**
+	 * Returns true once every segment has been taken, or given up on.
+	 */
+	public synchronized boolean isFinished() {
+		return !tasks.isEmpty() && tasks.stream().allMatch(Future::isDone);
+	}
+
+	/**
+	 * Returns roughly how much of the timeline has been covered, from 0 to 1.
+	 */
+	public double getProgress() {
+		int frameCount = cache.getFrameCount();
+		return frameCount <= 0 ? 1D : Math.min(1D, (double) framesDone.get() / frameCount);
+	}
+
+	/**
+	 * Take the screenshots from first, inclusive, to last, exclusive.
+	 */
+	private void generate(int first, int last) {
+		int stride = this.stride;
+		for (int chunk = first; chunk < last && !cancelled; chunk += CHUNK_FRAMES * stride) {
+			while (VideoProcessor.isConverting() && !cancelled) {
+				try {
+					Thread.sleep(PAUSE_MILLIS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+			if (cancelled) {
+				return;
+			}
+			int frames = Math.min(CHUNK_FRAMES, (last - chunk + stride - 1) / stride);
+			try {
+				cache.store(chunk, shotWidth, shotHeight, frames, stride);
+			} catch (IOException ioe) {
+				log(ioe);
+				return;
+			}
+			framesDone.addAndGet(Math.min(frames * stride, last - chunk));
+		}
+	}
+}
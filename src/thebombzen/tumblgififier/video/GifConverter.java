@@ -0,0 +1,153 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import thebombzen.tumblgififier.util.text.StatusProcessor;
+
+/**
+ * This runs GifJobs, several at once, for anyone who wants GIFs without the
+ * GUI. Each job gets its own VideoProcessor, and with it its own temporary
+ * files, so jobs never see each other's state. The only thing they share is
+ * the PaletteCache, which is thread-safe, so converting the same clip twice
+ * still reuses the palette.
+ */
+public class GifConverter {
+
+	/**
+	 * Each conversion already keeps a few cores busy with its own attempts
+	 * and segments, so by default we run one job for every four cores.
+	 */
+	public static final int DEFAULT_THREADS_PER_JOB = 4;
+	public static final int DEFAULT_PARALLELISM = Math.max(1,
+			Runtime.getRuntime().availableProcessors() / DEFAULT_THREADS_PER_JOB);
+
+	/**
+	 * If nobody is watching a job, its status messages go to the log.
+	 */
+	static final StatusProcessor LOG_PROCESSOR = new StatusProcessor(){
+		@Override
+		public void appendStatus(String status) {
+			log(status);
+		}
+
+		@Override
+		public void clearStatus() {
+		}
+
+		@Override
+		public void replaceStatus(String status) {
+			log(status);
+		}
+	};
+
+	/**
+	 * This is only created if a job is submitted, since a GifConverter that's
+	 * only used through convert doesn't need threads of its own.
+	 */
+	private ExecutorService pool = null;
+	private final PaletteCache paletteCache = new PaletteCache();
+	private final int parallelism;
+	private final int threadsPerJob;
+	private boolean background = false;
+
+	public GifConverter() {
+		this(DEFAULT_PARALLELISM, DEFAULT_THREADS_PER_JOB);
+	}
+
+	/**
+	 * @param parallelism
+	 *            How many jobs run at once.
+	 * @param threadsPerJob
+	 *            The most mpv processes each job runs at once, which caps how
+	 *            many segments and speculative attempts it uses.
+	 */
+	public GifConverter(int parallelism, int threadsPerJob) {
+		this.parallelism = Math.max(1, parallelism);
+		this.threadsPerJob = Math.max(1, threadsPerJob);
+	}
+
+	private synchronized ExecutorService getPool() {
+		if (pool == null) {
+			AtomicInteger threads = new AtomicInteger();
+			pool = Executors.newFixedThreadPool(parallelism, r -> {
+				Thread thread = new Thread(r, "GifConverter-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * If this is set, the jobs are background conversions, which aren't
+	 * counted by VideoProcessor.getForegroundThreads.
+	 */
+	public void setBackground(boolean background) {
+		this.background = background;
+	}
+
+	/**
+	 * Queue a job. This returns immediately.
+	 */
+	public CompletableFuture<GifResult> submit(GifJob job) {
+		return submit(job, LOG_PROCESSOR);
+	}
+
+	/**
+	 * Queue a job, and report its progress to the given processor. This
+	 * returns immediately. If the future is cancelled before the job starts,
+	 * the job is skipped, but a job that's already running is finished.
+	 *
+	 * @return a future that completes with the result, or exceptionally with
+	 *         whatever went wrong.
+	 */
+	public CompletableFuture<GifResult> submit(GifJob job, StatusProcessor processor) {
+		CompletableFuture<GifResult> future = new CompletableFuture<>();
+		getPool().execute(() -> {
+			if (future.isDone()) {
+				return;
+			}
+			try {
+				future.complete(convert(job, processor));
+			} catch (IOException | RuntimeException ex) {
+				future.completeExceptionally(ex);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Run a job on this thread, logging its status. This blocks until the GIF
+	 * is written.
+	 */
+	public GifResult convert(GifJob job) throws IOException {
+		return convert(job, LOG_PROCESSOR);
+	}
+
+	/**
+	 * Run a job on this thread. This blocks until the GIF is written.
+	 */
+	public GifResult convert(GifJob job, StatusProcessor processor) throws IOException {
+		long start = System.nanoTime();
+		VideoProcessor videoProcessor = new VideoProcessor(job.getScan(), paletteCache);
+		videoProcessor.setSegments(threadsPerJob);
+		videoProcessor.setBackground(background);
+		videoProcessor.setSpeculativeCandidates(Math.min(videoProcessor.getSpeculativeCandidates(), threadsPerJob));
+		videoProcessor.convert(job, processor);
+		return new GifResult(job, Files.size(job.getOutput()), System.nanoTime() - start);
+	}
+
+	/**
+	 * Stop accepting jobs. Jobs that were already submitted are still run.
+	 */
+	public synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package thebombzen.tumblgififier.video;
+
+import java.nio.file.Path;
+
+/**
+ * Everything needed to convert one clip to a GIF. This is immutable, so it
+ * can be handed to another thread, or kept around and submitted again.
+ */
+public final class GifJob {
+
+	private final VideoScan scan;
+	private final Path output;
+	private final double startTime;
+	private final double endTime;
+	private final long minSize;
+	private final long maxSize;
+	private final int targetWidth;
+	private final int targetHeight;
+	private final int decimator;
+	private final String overlay;
+	private final int overlaySize;
+
+	/**
+	 * @param scan
+	 *            The video to convert.
+	 * @param output
+	 *            Where to write the GIF.
+	 * @param startTime
+	 *            The start of the clip, in seconds.
+	 * @param endTime
+	 *            The end of the clip, in seconds.
+	 * @param minSize
+	 *            The smallest acceptable filesize, in bytes, or zero if we're
+	 *            scaling to a width or height instead.
+	 * @param maxSize
+	 *            The largest acceptable filesize, in bytes.
+	 * @param targetWidth
+	 *            The width to scale to, or -1.
+	 * @param targetHeight
+	 *            The height to scale to, or -1.
+	 * @param decimator
+	 *            How many frames to drop after every one we keep.
+	 * @param overlay
+	 *            The text to overlay, or the empty string for none.
+	 * @param overlaySize
+	 *            The font size of the overlay text.
+	 */
+	public GifJob(VideoScan scan, Path output, double startTime, double endTime, long minSize, long maxSize,
+			int targetWidth, int targetHeight, int decimator, String overlay, int overlaySize) {
+		if (scan == null || output == null) {
+			throw new NullPointerException();
+		}
+		if (endTime <= startTime) {
+			throw new IllegalArgumentException("The clip must end after it starts.");
+		}
+		this.scan = scan;
+		this.output = output;
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.targetWidth = targetWidth;
+		this.targetHeight = targetHeight;
+		this.decimator = decimator;
+		this.overlay = overlay == null ? "" : overlay;
+		this.overlaySize = overlaySize;
+	}
+
+	public VideoScan getScan() {
+		return scan;
+	}
+
+	public Path getOutput() {
+		return output;
+	}
+
+	public double getStartTime() {
+		return startTime;
+	}
+
+	public double getEndTime() {
+		return endTime;
+	}
+
+	public long getMinSize() {
+		return minSize;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public int getTargetWidth() {
+		return targetWidth;
+	}
+
+	public int getTargetHeight() {
+		return targetHeight;
+	}
+
+	public int getDecimator() {
+		return decimator;
+	}
+
+	public String getOverlay() {
+		return overlay;
+	}
+
+	public int getOverlaySize() {
+		return overlaySize;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("GifJob [%s, %.3f-%.3f, %s]", scan.getLocation(), startTime, endTime, output);
+	}
+}
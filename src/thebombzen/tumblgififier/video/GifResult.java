@@ -0,0 +1,49 @@
+package thebombzen.tumblgififier.video;
+
+import java.nio.file.Path;
+
+/**
+ * What came of a GifJob that finished successfully.
+ */
+public final class GifResult {
+
+	private final GifJob job;
+	private final long size;
+	private final long nanos;
+
+	public GifResult(GifJob job, long size, long nanos) {
+		this.job = job;
+		this.size = size;
+		this.nanos = nanos;
+	}
+
+	public GifJob getJob() {
+		return job;
+	}
+
+	/**
+	 * Where the GIF was written.
+	 */
+	public Path getOutput() {
+		return job.getOutput();
+	}
+
+	/**
+	 * The size of the GIF, in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * How long the conversion took, in milliseconds.
+	 */
+	public double getMillis() {
+		return nanos * 1E-6D;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d bytes, %.1f ms", job.getOutput(), size, getMillis());
+	}
+}
@@ -0,0 +1,414 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
+import thebombzen.tumblgififier.util.text.StatusProcessor;
+
+/**
+ * This is a queue of GIFs to make, which are made one after another, or a few
+ * at a time, in the background. The queue is saved on disk whenever it
+ * changes, so anything that wasn't finished when the program quit is picked
+ * up again the next time it starts.
+ *
+ * Each job is allowed a fixed number of mpv processes at once, and a job only
+ * starts if the cores it needs aren't already taken by the other jobs or by
+ * GIFs being made from the window, so the number of mpv processes never gets
+ * much past the number of cores, however many jobs are queued. The filmstrip
+ * and the keyframe index already wait for conversions to finish, and their
+ * mpv processes are niced, so they don't count.
+ */
+public class JobQueue {
+
+	private static JobQueue instance = null;
+
+	public static synchronized JobQueue getQueue() {
+		if (instance == null) {
+			instance = new JobQueue(ResourcesManager.getLocalFile("job-queue.txt"),
+					GifConverter.DEFAULT_THREADS_PER_JOB);
+		}
+		return instance;
+	}
+
+	/**
+	 * How long a job waits before checking again whether there are cores free
+	 * for it.
+	 */
+	private static final long PAUSE_MILLIS = 500L;
+
+	private static class Entry {
+		/**
+		 * This is null for a job loaded from the queue file until it's about
+		 * to run, since scanning the video can take a while.
+		 */
+		private GifJob job;
+		/**
+		 * The fields from the queue file, which are saved as they are until the
+		 * job has been scanned.
+		 */
+		private final String[] saved;
+		private final Path output;
+		/**
+		 * When the job was added, from System.currentTimeMillis, so that it
+		 * means something after a restart.
+		 */
+		private final long queued;
+		private boolean running = false;
+
+		private Entry(GifJob job, long queued) {
+			this.job = job;
+			this.saved = null;
+			this.output = job.getOutput();
+			this.queued = queued;
+		}
+
+		private Entry(String[] saved) {
+			this.job = null;
+			this.saved = saved;
+			this.output = Paths.get(unescape(saved[10]));
+			this.queued = Long.parseLong(saved[0]);
+		}
+	}
+
+	private final Path queueFile;
+	private final int slots;
+	private final int threadsPerJob;
+	private final GifConverter converter;
+	private final ExecutorService pool;
+
+	/**
+	 * The jobs that are waiting or running, in the order they were added.
+	 */
+	private final List<Entry> entries = new ArrayList<>();
+	private boolean started = false;
+	private int completed = 0;
+	private int failed = 0;
+	private long totalWaitMillis = 0L;
+	private long firstStartMillis = -1L;
+	private StatusProcessor statusProcessor = null;
+
+	/**
+	 * @param queueFile
+	 *            Where the queue is saved.
+	 * @param threadsPerJob
+	 *            The most mpv processes each job runs at once.
+	 */
+	public JobQueue(Path queueFile, int threadsPerJob) {
+		this.queueFile = queueFile;
+		this.threadsPerJob = Math.max(1, threadsPerJob);
+		this.slots = Math.max(1, Runtime.getRuntime().availableProcessors() / this.threadsPerJob);
+		// the converter's own pool is never used, since we only call convert
+		this.converter = new GifConverter(slots, this.threadsPerJob);
+		this.converter.setBackground(true);
+		AtomicInteger threads = new AtomicInteger();
+		this.pool = Executors.newFixedThreadPool(slots, r -> {
+			Thread thread = new Thread(r, "JobQueue-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Finished jobs, failures, and the state of the queue are reported here.
+	 * Each job's own progress goes to the log.
+	 */
+	public synchronized void setStatusProcessor(StatusProcessor statusProcessor) {
+		this.statusProcessor = statusProcessor;
+	}
+
+	/**
+	 * Load the jobs that were saved by the last session, and start running
+	 * them. Jobs added before this are held until it's called, since mpv may
+	 * not be ready yet. Only the first call does anything.
+	 */
+	public synchronized void start() {
+		if (started) {
+			return;
+		}
+		started = true;
+		List<Entry> pending = new ArrayList<>(entries);
+		entries.clear();
+		entries.addAll(load());
+		entries.addAll(pending);
+		save();
+		entries.forEach(entry -> pool.execute(() -> run(entry)));
+		if (!entries.isEmpty()) {
+			report(String.format("Resuming %d queued GIFs.", entries.size()));
+		}
+	}
+
+	/**
+	 * Add a job to the end of the queue, and save the queue. This returns
+	 * immediately.
+	 */
+	public synchronized void add(GifJob job) {
+		Entry entry = new Entry(job, System.currentTimeMillis());
+		entries.add(entry);
+		save();
+		if (started) {
+			pool.execute(() -> run(entry));
+		}
+		report(String.format("Queued %s. %s", job.getOutput().getFileName(), getSummary()));
+	}
+
+	private void run(Entry entry) {
+		if (entry.job == null && !scan(entry)) {
+			return;
+		}
+		synchronized (this) {
+			waitForCores();
+			entry.running = true;
+			long now = System.currentTimeMillis();
+			totalWaitMillis += Math.max(0L, now - entry.queued);
+			if (firstStartMillis < 0) {
+				firstStartMillis = now;
+			}
+		}
+		GifResult result = null;
+		try {
+			result = converter.convert(entry.job);
+		} catch (IOException | RuntimeException ex) {
+			log(ex);
+		}
+		synchronized (this) {
+			entries.remove(entry);
+			save();
+			if (result != null) {
+				completed++;
+				report(String.format("Queued GIF done: %s, %d bytes. %s", result.getOutput().getFileName(),
+						result.getSize(), getSummary()));
+			} else {
+				failed++;
+				report(String.format("Queued GIF failed: %s. %s", entry.output.getFileName(), getSummary()));
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Scan the video of a job that was loaded from the queue file. This
+	 * happens outside the lock, so it doesn't hold up the rest of the queue.
+	 * If the video can't be read anymore, the job is dropped.
+	 *
+	 * @return true if the job can run.
+	 */
+	private boolean scan(Entry entry) {
+		GifJob job = null;
+		try {
+			job = createJob(entry.saved);
+		} catch (RuntimeException ex) {
+			log(ex);
+		}
+		synchronized (this) {
+			if (job != null) {
+				entry.job = job;
+				return true;
+			}
+			entries.remove(entry);
+			save();
+			report("Dropping a queued GIF, because this can't be read: " + unescape(entry.saved[11]));
+			return false;
+		}
+	}
+
+	/**
+	 * Wait until the cores a job needs aren't taken by the running jobs and the
+	 * foreground conversions. If nothing at all is running, the job starts
+	 * anyway, so that a job that wants more than all the cores still runs.
+	 */
+	private synchronized void waitForCores() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		while (true) {
+			int busy = getRunningCount() * threadsPerJob + VideoProcessor.getForegroundThreads();
+			if (busy == 0 || busy + threadsPerJob <= cores) {
+				return;
+			}
+			try {
+				wait(PAUSE_MILLIS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private synchronized void report(String status) {
+		log(status);
+		if (statusProcessor != null) {
+			statusProcessor.appendStatus(status);
+		}
+	}
+
+	/**
+	 * Returns how many jobs are waiting to start.
+	 */
+	public synchronized int getQueueDepth() {
+		return (int) entries.stream().filter(entry -> !entry.running).count();
+	}
+
+	/**
+	 * Returns how many jobs are running.
+	 */
+	public synchronized int getRunningCount() {
+		return (int) entries.stream().filter(entry -> entry.running).count();
+	}
+
+	/**
+	 * Returns how many jobs can run at once.
+	 */
+	public int getSlots() {
+		return slots;
+	}
+
+	public synchronized int getCompletedCount() {
+		return completed;
+	}
+
+	public synchronized int getFailedCount() {
+		return failed;
+	}
+
+	/**
+	 * Returns how long the jobs that have started so far waited in the queue,
+	 * on average, in milliseconds.
+	 */
+	public synchronized double getAverageWaitMillis() {
+		int startedJobs = completed + failed + getRunningCount();
+		return startedJobs == 0 ? 0D : (double) totalWaitMillis / startedJobs;
+	}
+
+	/**
+	 * Returns how many jobs have been finished per hour since the first one
+	 * started this session.
+	 */
+	public synchronized double getThroughput() {
+		if (firstStartMillis < 0 || completed == 0) {
+			return 0D;
+		}
+		double hours = Math.max(1L, System.currentTimeMillis() - firstStartMillis) / 3600000D;
+		return completed / hours;
+	}
+
+	/**
+	 * Returns a line describing the state of the queue.
+	 */
+	public synchronized String getSummary() {
+		return String.format("Queue: %d waiting, %d running, %d done, %d failed, %.1f s average wait, %.1f GIFs/hour",
+				getQueueDepth(), getRunningCount(), completed, failed, getAverageWaitMillis() / 1000D,
+				getThroughput());
+	}
+
+	/**
+	 * Each line of the queue file is a tab-separated job. Text that might
+	 * contain a tab or a newline is escaped.
+	 */
+	private List<Entry> load() {
+		List<Entry> loaded = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(queueFile, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", -1);
+				if (parts.length != 12) {
+					continue;
+				}
+				try {
+					loaded.add(new Entry(parts));
+				} catch (RuntimeException ex) {
+					log(ex);
+				}
+			}
+		} catch (NoSuchFileException nsfe) {
+			// nothing's been queued yet
+		} catch (IOException ioe) {
+			log(ioe);
+		}
+		return loaded;
+	}
+
+	/**
+	 * Scan the video for a line of the queue file, and make the job.
+	 *
+	 * @return the job, or null if the video can't be read.
+	 */
+	private static GifJob createJob(String[] parts) {
+		VideoScan scan = VideoScan.scanFile(GifConverter.LOG_PROCESSOR, Paths.get(unescape(parts[11])));
+		if (scan == null) {
+			return null;
+		}
+		return new GifJob(scan, Paths.get(unescape(parts[10])), Double.parseDouble(parts[1]),
+				Double.parseDouble(parts[2]), Long.parseLong(parts[3]), Long.parseLong(parts[4]),
+				Integer.parseInt(parts[5]), Integer.parseInt(parts[6]), Integer.parseInt(parts[7]), unescape(parts[9]),
+				Integer.parseInt(parts[8]));
+	}
+
+	private void save() {
+		Path temp = queueFile.resolveSibling(queueFile.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			for (Entry entry : entries) {
+				GifJob job = entry.job;
+				if (job == null) {
+					writer.write(String.join("\t", entry.saved));
+					writer.write(System.lineSeparator());
+					continue;
+				}
+				writer.write(String.format("%d\t%s\t%s\t%d\t%d\t%d\t%d\t%d\t%d\t%s\t%s\t%s%n", entry.queued,
+						Double.toString(job.getStartTime()), Double.toString(job.getEndTime()), job.getMinSize(),
+						job.getMaxSize(), job.getTargetWidth(), job.getTargetHeight(), job.getDecimator(),
+						job.getOverlaySize(), escape(job.getOverlay()), escape(job.getOutput().toString()),
+						escape(job.getScan().getLocation().toAbsolutePath().toString())));
+			}
+		} catch (IOException ioe) {
+			log(ioe);
+			return;
+		}
+		try {
+			Files.move(temp, queueFile, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ioe) {
+			log(ioe);
+		}
+	}
+
+	private static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String text) {
+		StringBuilder sb = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c != '\\' || i + 1 >= text.length()) {
+				sb.append(c);
+				continue;
+			}
+			char next = text.charAt(++i);
+			switch (next) {
+				case 't':
+					sb.append('\t');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				default:
+					sb.append(next);
+					break;
+			}
+		}
+		return sb.toString();
+	}
+}
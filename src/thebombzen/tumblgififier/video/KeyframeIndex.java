@@ -0,0 +1,399 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import thebombzen.tumblgififier.util.ConcurrenceManager;
+import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
+
+/**
+ * This knows where the keyframes and scene cuts of a video are. mpv can only
+ * start decoding at a keyframe, so whenever it's asked to start somewhere
+ * else, it decodes everything from the keyframe before, and on a video with
+ * long GOPs that's most of the work. Knowing where the keyframes are lets us
+ * start where decoding is free, and know what a seek will cost rather than
+ * guess.
+ *
+ * Building an index means reading the whole video, so it's done in the
+ * background, when the machine is otherwise idle, and saved with the rest of
+ * the scan in the ProbeCache. Until it's ready, getIndex returns null, and
+ * everyone carries on as if there were no index. Finding the scene cuts means
+ * decoding every frame rather than just the keyframes, so that's only done
+ * for whoever asks for them.
+ */
+public class KeyframeIndex {
+
+	/**
+	 * Consecutive screenshots that differ by more than this, on average, as a
+	 * fraction of full brightness, are on either side of a scene cut.
+	 */
+	public static final double SCENE_THRESHOLD = 0.12D;
+
+	/**
+	 * A cut also has to differ by this many times as much as the screenshots
+	 * just before it, so that fast motion doesn't look like a cut.
+	 */
+	private static final double SCENE_CONTRAST = 3D;
+
+	/**
+	 * Scene cuts are detected on screenshots this small, in gray.
+	 */
+	private static final int SAMPLE_WIDTH = 32;
+	private static final int SAMPLE_HEIGHT = 18;
+
+	/**
+	 * We keep the indexes of this many videos in memory, forgetting the least
+	 * recently used. The rest are still in the ProbeCache.
+	 */
+	public static final int MAX_LOADED = 64;
+
+	/**
+	 * If building an index fails, we don't try again for this long, since
+	 * it'd most likely fail again after reading the whole video.
+	 */
+	public static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * While a GIF is being made, we check this often whether it's done before
+	 * starting a pass.
+	 */
+	private static final long PAUSE_MILLIS = 500L;
+
+	private static final Map<Path, KeyframeIndex> indexes = createLruMap();
+	/**
+	 * When building an index last failed for each video, in milliseconds.
+	 */
+	private static final Map<Path, Long> failures = createLruMap();
+	private static final Set<Path> building = new HashSet<>();
+	/**
+	 * Videos whose scene cuts have been asked for, but not found yet.
+	 */
+	private static final Set<Path> sceneCutsWanted = new HashSet<>();
+
+	private static <V> Map<Path, V> createLruMap() {
+		return new LinkedHashMap<Path, V>(16, 0.75F, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Path, V> eldest) {
+				return size() > MAX_LOADED;
+			}
+		};
+	}
+
+	/**
+	 * Returns the index for this video, or null if there isn't one yet, in
+	 * which case it's loaded from the ProbeCache or built in the background.
+	 * The index might not have the scene cuts. This only looks in memory, and
+	 * never blocks on the disk or on mpv, so it's safe to call from anywhere,
+	 * including the Event Dispatch Thread.
+	 */
+	public static KeyframeIndex getIndex(VideoScan scan) {
+		return getIndex(scan, false);
+	}
+
+	/**
+	 * Returns the index for this video, like getIndex(VideoScan).
+	 *
+	 * @param sceneCuts
+	 *            If this is true, we only return an index that has the scene
+	 *            cuts, and if there isn't one yet, they're found in the
+	 *            background after the keyframes.
+	 */
+	public static synchronized KeyframeIndex getIndex(VideoScan scan, boolean sceneCuts) {
+		Path path = scan.getLocation();
+		KeyframeIndex index = indexes.get(path);
+		if (index != null && (!sceneCuts || index.hasSceneCuts())) {
+			return index;
+		}
+		if (sceneCuts) {
+			sceneCutsWanted.add(path);
+		}
+		if (building.contains(path)) {
+			return null;
+		}
+		Long failed = failures.get(path);
+		if (failed != null && System.currentTimeMillis() - failed < RETRY_MILLIS) {
+			return null;
+		}
+		building.add(path);
+		// Looking in the ProbeCache is quick, so it isn't queued behind the
+		// idle work, but it does touch the disk.
+		ConcurrenceManager.executeLater(() -> {
+			KeyframeIndex cached = index != null ? index : ProbeCache.getProbeCache().getIndex(path);
+			if (!store(path, cached)) {
+				ConcurrenceManager.executeWhenIdle(() -> build(scan, cached));
+			}
+		});
+		return null;
+	}
+
+	/**
+	 * Remember an index, and decide whether there's more to build. If there
+	 * isn't, the video is no longer marked as building.
+	 *
+	 * @return true if the index is complete enough for everyone who's asked.
+	 */
+	private static synchronized boolean store(Path path, KeyframeIndex index) {
+		if (index != null) {
+			indexes.put(path, index);
+			failures.remove(path);
+		}
+		if (index == null || !index.hasSceneCuts() && sceneCutsWanted.contains(path)) {
+			return false;
+		}
+		building.remove(path);
+		sceneCutsWanted.remove(path);
+		return true;
+	}
+
+	/**
+	 * Build what's missing from a video's index, and save it to the
+	 * ProbeCache as we go. The keyframes come first, since everyone wants
+	 * them, and then the scene cuts, if anyone's asked for them by then. If
+	 * anything fails, we give up for a while.
+	 *
+	 * Each pass reads the whole video, so it blocks for a while. The keyframe
+	 * pass decodes only the keyframes, and the scene cut pass decodes every
+	 * frame, but only scales down the screenshots we'd show on the sliders, so
+	 * both are much faster than playing the video. Like the filmstrip, we
+	 * don't start a pass while a GIF is being made.
+	 */
+	private static void build(VideoScan scan, KeyframeIndex index) {
+		Path path = scan.getLocation();
+		try {
+			do {
+				while (VideoProcessor.isConverting()) {
+					Thread.sleep(PAUSE_MILLIS);
+				}
+				long start = System.nanoTime();
+				if (index == null) {
+					double[] keyframes = findKeyframes(scan);
+					if (keyframes.length == 0) {
+						throw new IOException("mpv found no keyframes in " + scan.getLocation());
+					}
+					index = new KeyframeIndex(keyframes, null);
+				} else {
+					index = index.withSceneCuts(findSceneCuts(scan));
+				}
+				log(String.format("Indexed %s: %s, %.1f s", path, index, (System.nanoTime() - start) * 1E-9D));
+				ProbeCache.getProbeCache().putIndex(path, index);
+			} while (!store(path, index));
+		} catch (IOException | InterruptedException | RuntimeException ex) {
+			log(ex);
+			synchronized (KeyframeIndex.class) {
+				building.remove(path);
+				sceneCutsWanted.remove(path);
+				failures.put(path, System.currentTimeMillis());
+			}
+		}
+	}
+
+	/**
+	 * We tell mpv to skip every frame that isn't a keyframe, and have it write
+	 * a line for each frame it does decode with framecrc, which is a muxer
+	 * that writes a checksum and a timestamp instead of the frame itself.
+	 */
+	private static double[] findKeyframes(VideoScan scan) throws IOException {
+		Process process = ConcurrenceManager.startProcess(false,
+				ConcurrenceManager.niceArgs(ResourcesManager.getMpvLocation().getLocation().toString(),
+						scan.getLocation().toString(), "--config=no", "--msg-color=no",
+						"--log-file=" + ResourcesManager.getLocalFile("mpv-keyframes.log"), "--input-terminal=no",
+						"--really-quiet", "--aid=no", "--sid=no", "--vd-lavc-skipframe=nonkey", "--orawts",
+						"--of=framecrc", "--ovc=rawvideo", "--lavfi-complex=[vid1]scale=16:16,format=gray[vo]",
+						"--o=-"));
+		List<Double> keyframes = new ArrayList<>();
+		double timeBase = Double.NaN;
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.startsWith("#tb 0:")) {
+					String[] fraction = line.substring(6).trim().split("/");
+					try {
+						timeBase = Double.parseDouble(fraction[0]) / Double.parseDouble(fraction[1]);
+					} catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+						throw new IOException("Bad time base from framecrc: " + line);
+					}
+				} else if (!line.isEmpty() && !line.startsWith("#")) {
+					// stream, dts, pts, duration, size, checksum
+					String[] parts = line.split(",");
+					if (parts.length < 3 || Double.isNaN(timeBase)) {
+						throw new IOException("Unexpected output from framecrc: " + line);
+					}
+					try {
+						keyframes.add(Long.parseLong(parts[2].trim()) * timeBase);
+					} catch (NumberFormatException nfe) {
+						throw new IOException("Unexpected output from framecrc: " + line);
+					}
+				}
+			}
+		} finally {
+			if (process.isAlive()) {
+				process.destroy();
+			}
+		}
+		double[] times = keyframes.stream().mapToDouble(Double::doubleValue).sorted().distinct().toArray();
+		// Some containers start a little after zero, but mpv counts from
+		// wherever the video starts.
+		if (times.length > 0 && times[0] < scan.getScreenshotDuration()) {
+			times[0] = 0D;
+		}
+		return times;
+	}
+
+	/**
+	 * We take a tiny gray screenshot at every slider position, and compare
+	 * each one to the one before it. A cut is at the first screenshot of the
+	 * new scene, so snapping a slider to it lands exactly on a slider
+	 * position.
+	 */
+	private static double[] findSceneCuts(VideoScan scan) throws IOException {
+		Process process = ConcurrenceManager.startProcess(false,
+				ConcurrenceManager.niceArgs(ResourcesManager.getMpvLocation().getLocation().toString(),
+						scan.getLocation().toString(), "--config=no", "--msg-color=no",
+						"--log-file=" + ResourcesManager.getLocalFile("mpv-scenes.log"), "--input-terminal=no",
+						"--really-quiet", "--aid=no", "--sid=no", "--ofps=" + scan.getScreenshotsPerSecond(),
+						"--of=rawvideo", "--ovc=rawvideo",
+						"--lavfi-complex=[vid1]scale=" + SAMPLE_WIDTH + ":" + SAMPLE_HEIGHT + ",format=gray[vo]",
+						"--o=-"));
+		List<Double> cuts = new ArrayList<>();
+		byte[] previous = new byte[SAMPLE_WIDTH * SAMPLE_HEIGHT];
+		byte[] current = new byte[SAMPLE_WIDTH * SAMPLE_HEIGHT];
+		double lastDifference = Double.NaN;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(process.getInputStream()))) {
+			for (int frame = 0;; frame++) {
+				try {
+					in.readFully(current);
+				} catch (EOFException eof) {
+					break;
+				}
+				if (frame > 0) {
+					long total = 0;
+					for (int i = 0; i < current.length; i++) {
+						total += Math.abs((current[i] & 0xFF) - (previous[i] & 0xFF));
+					}
+					double difference = total / (255D * current.length);
+					if (difference > SCENE_THRESHOLD
+							&& (Double.isNaN(lastDifference) || difference > SCENE_CONTRAST * lastDifference)) {
+						cuts.add(frame * scan.getScreenshotDuration());
+					}
+					lastDifference = difference;
+				}
+				byte[] swap = previous;
+				previous = current;
+				current = swap;
+			}
+		} finally {
+			if (process.isAlive()) {
+				process.destroy();
+			}
+		}
+		return cuts.stream().mapToDouble(Double::doubleValue).toArray();
+	}
+
+	private final double[] keyframes;
+	private final double[] sceneCuts;
+
+	/**
+	 * @param keyframes
+	 *            The timestamps of the keyframes, in seconds, sorted.
+	 * @param sceneCuts
+	 *            The timestamps of the scene cuts, in seconds, sorted, or
+	 *            null if they haven't been found.
+	 */
+	public KeyframeIndex(double[] keyframes, double[] sceneCuts) {
+		this.keyframes = keyframes.clone();
+		this.sceneCuts = sceneCuts == null ? null : sceneCuts.clone();
+	}
+
+	/**
+	 * Returns a copy of this index with the scene cuts.
+	 */
+	public KeyframeIndex withSceneCuts(double[] sceneCuts) {
+		return new KeyframeIndex(keyframes, sceneCuts);
+	}
+
+	public double[] getKeyframes() {
+		return keyframes.clone();
+	}
+
+	/**
+	 * Returns the scene cuts, or null if they haven't been found.
+	 */
+	public double[] getSceneCuts() {
+		return sceneCuts == null ? null : sceneCuts.clone();
+	}
+
+	public boolean hasSceneCuts() {
+		return sceneCuts != null;
+	}
+
+	/**
+	 * Returns the last keyframe at or before this time, which is where mpv
+	 * starts decoding when it's asked to start here. Everything from there
+	 * to the time itself is decoded anyway, so it's free to take.
+	 */
+	public double getSeekPoint(double time) {
+		int i = Arrays.binarySearch(keyframes, time);
+		if (i >= 0) {
+			return keyframes[i];
+		}
+		int before = -i - 2;
+		return before >= 0 ? keyframes[before] : 0D;
+	}
+
+	/**
+	 * Returns the first keyframe after this time, or positive infinity if
+	 * this is in the last GOP.
+	 */
+	public double getNextKeyframe(double time) {
+		int i = Arrays.binarySearch(keyframes, time);
+		int after = i >= 0 ? i + 1 : -i - 1;
+		return after < keyframes.length ? keyframes[after] : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Returns the scene cut closest to this time, or NaN if there isn't one
+	 * within the given distance, or the scene cuts haven't been found.
+	 */
+	public double getNearestSceneCut(double time, double maxDistance) {
+		if (sceneCuts == null) {
+			return Double.NaN;
+		}
+		int i = Arrays.binarySearch(sceneCuts, time);
+		if (i >= 0) {
+			return sceneCuts[i];
+		}
+		int after = -i - 1;
+		double best = Double.NaN;
+		for (int j = after - 1; j <= after; j++) {
+			if (j >= 0 && j < sceneCuts.length && Math.abs(sceneCuts[j] - time) <= maxDistance
+					&& (Double.isNaN(best) || Math.abs(sceneCuts[j] - time) < Math.abs(best - time))) {
+				best = sceneCuts[j];
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("KeyframeIndex [%d keyframes, %s scene cuts]", keyframes.length,
+				sceneCuts == null ? "no" : Integer.toString(sceneCuts.length));
+	}
+}
@@ -0,0 +1,201 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import thebombzen.tumblgififier.util.io.IOHelper;
+
+/**
+ * The palette hardly changes when all we change is the scale, so rather than
+ * running palettegen on every attempt, we keep the palettes we've generated
+ * here. A palette is only reused if the colors of the new attempt haven't
+ * drifted too far from the colors of the attempt it was generated from, which
+ * we check by comparing coarse color histograms of a few sample frames.
+ */
+public class PaletteCache {
+
+	/**
+	 * A palette is reused if the total variation distance between the
+	 * histograms is at most this, i.e. if at most this fraction of the pixels
+	 * would have to change bins to turn one histogram into the other.
+	 */
+	public static final double DEFAULT_MAX_DRIFT = 0.1D;
+
+	/**
+	 * Histograms have this many bits per channel.
+	 */
+	public static final int HISTOGRAM_BITS = 4;
+	public static final int HISTOGRAM_SIZE = 1 << 3 * HISTOGRAM_BITS;
+
+	private static final int MAX_ENTRIES = 16;
+
+	/**
+	 * This identifies the frames a palette was generated from, apart from the
+	 * scale.
+	 */
+	public static final class Key {
+		private final Path clip;
+		private final double startTime;
+		private final double endTime;
+		private final String overlay;
+		private final int overlaySize;
+		private final int decimator;
+
+		public Key(Path clip, double startTime, double endTime, String overlay, int overlaySize, int decimator) {
+			this.clip = clip;
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.overlay = overlay == null ? "" : overlay;
+			this.overlaySize = overlaySize;
+			this.decimator = decimator;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(clip, startTime, endTime, overlay, overlaySize, decimator);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return clip.equals(other.clip) && startTime == other.startTime && endTime == other.endTime
+					&& overlay.equals(other.overlay) && overlaySize == other.overlaySize
+					&& decimator == other.decimator;
+		}
+	}
+
+	private static class CachedPalette {
+		private final Path paletteFile;
+		private final double[] histogram;
+
+		private CachedPalette(Path paletteFile, double[] histogram) {
+			this.paletteFile = paletteFile;
+			this.histogram = histogram;
+		}
+	}
+
+	private final Map<Key, CachedPalette> entries = new LinkedHashMap<Key, CachedPalette>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, CachedPalette> eldest) {
+			if (size() > MAX_ENTRIES) {
+				IOHelper.deleteTempFile(eldest.getValue().paletteFile);
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private double maxDrift = DEFAULT_MAX_DRIFT;
+
+	public double getMaxDrift() {
+		return maxDrift;
+	}
+
+	public void setMaxDrift(double maxDrift) {
+		this.maxDrift = maxDrift;
+	}
+
+	/**
+	 * If there's a palette for this key whose histogram is close enough to the
+	 * given one, copy it to the destination.
+	 * 
+	 * @return true if a palette was copied, false if a new one must be
+	 *         generated.
+	 */
+	public synchronized boolean load(Key key, double[] histogram, Path destination) throws IOException {
+		CachedPalette entry = entries.get(key);
+		if (entry == null || histogram == null) {
+			return false;
+		}
+		double drift = distance(entry.histogram, histogram);
+		if (drift > maxDrift) {
+			log(String.format("Palette drifted by %.3f, regenerating.", drift));
+			return false;
+		}
+		log(String.format("Palette drifted by %.3f, reusing.", drift));
+		Files.copy(entry.paletteFile, destination, StandardCopyOption.REPLACE_EXISTING);
+		return true;
+	}
+
+	/**
+	 * Remember a newly generated palette for this key, along with the
+	 * histogram of the frames it was generated from. This replaces any
+	 * palette already stored for the key.
+	 */
+	public synchronized void store(Key key, double[] histogram, Path paletteFile) throws IOException {
+		if (histogram == null) {
+			return;
+		}
+		Path copy = IOHelper.createTempFile();
+		Files.copy(paletteFile, copy, StandardCopyOption.REPLACE_EXISTING);
+		CachedPalette old = entries.put(key, new CachedPalette(copy, histogram));
+		if (old != null) {
+			IOHelper.deleteTempFile(old.paletteFile);
+		}
+	}
+
+	/**
+	 * Forget every palette.
+	 */
+	public synchronized void clear() {
+		entries.values().forEach(entry -> IOHelper.deleteTempFile(entry.paletteFile));
+		entries.clear();
+	}
+
+	/**
+	 * Add the pixels of a bgr24 frame to a histogram of counts.
+	 */
+	public static void addToHistogram(long[] counts, byte[] bgr, int length) {
+		int shift = 8 - HISTOGRAM_BITS;
+		for (int j = 0; j + 2 < length; j += 3) {
+			int b = (bgr[j] & 0xFF) >> shift;
+			int g = (bgr[j + 1] & 0xFF) >> shift;
+			int r = (bgr[j + 2] & 0xFF) >> shift;
+			counts[(r << HISTOGRAM_BITS | g) << HISTOGRAM_BITS | b]++;
+		}
+	}
+
+	/**
+	 * Turn a histogram of counts into one of fractions, or null if it's empty.
+	 */
+	public static double[] normalize(long[] counts) {
+		long total = 0L;
+		for (long count : counts) {
+			total += count;
+		}
+		if (total == 0L) {
+			return null;
+		}
+		double[] histogram = new double[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			histogram[i] = (double) counts[i] / total;
+		}
+		return histogram;
+	}
+
+	/**
+	 * The total variation distance between two normalized histograms, from 0
+	 * to 1.
+	 */
+	public static double distance(double[] a, double[] b) {
+		double sum = 0D;
+		for (int i = 0; i < a.length; i++) {
+			sum += Math.abs(a[i] - b[i]);
+		}
+		return 0.5D * sum;
+	}
+
+}
@@ -0,0 +1,308 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import thebombzen.tumblgififier.util.ConcurrenceManager;
+import thebombzen.tumblgififier.util.DefaultTask;
+import thebombzen.tumblgififier.util.io.IOHelper;
+import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
+
+/**
+ * Scanning a video with mpv can take seconds, and the answer never changes
+ * unless the file does, so we remember the results of each scan on disk. An
+ * entry is only used if the size and modification time of the file still
+ * match what they were when it was scanned. The KeyframeIndex of a file is
+ * kept with its scan, once it's been built.
+ *
+ * Changes are saved a moment after they're made, so scanning a whole folder
+ * writes the file a handful of times rather than once per clip. Before we
+ * save, we read back what's on disk, so that entries saved by another process
+ * in the meantime, such as another --convert, aren't lost.
+ */
+public class ProbeCache {
+
+	/**
+	 * We remember this many files, forgetting the least recently used. This
+	 * is enough for a few folders of hundreds of clips each, so that batch
+	 * conversions of the same folder find their scans again.
+	 */
+	public static final int MAX_ENTRIES = 4096;
+
+	/**
+	 * Changes are saved this long after the first one that hasn't been.
+	 */
+	public static final long SAVE_DELAY_MILLIS = 2000L;
+
+	private static ProbeCache instance = null;
+
+	public static synchronized ProbeCache getProbeCache() {
+		if (instance == null) {
+			instance = new ProbeCache(ResourcesManager.getLocalFile("probe-cache.txt"));
+			ConcurrenceManager.addShutdownTask(new DefaultTask(0, instance::flush));
+		}
+		return instance;
+	}
+
+	private static class ProbeEntry {
+		private final long size;
+		private final long modified;
+		private final int width;
+		private final int height;
+		private final double duration;
+		private final double framerate;
+		private KeyframeIndex index = null;
+
+		private ProbeEntry(long size, long modified, int width, int height, double duration, double framerate) {
+			this.size = size;
+			this.modified = modified;
+			this.width = width;
+			this.height = height;
+			this.duration = duration;
+			this.framerate = framerate;
+		}
+	}
+
+	private final Path cacheFile;
+	private final Map<Path, ProbeEntry> entries = new LinkedHashMap<Path, ProbeEntry>(16, 0.75F, true){
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, ProbeEntry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	private boolean loaded = false;
+	private boolean dirty = false;
+	private Future<?> pendingSave = null;
+
+	public ProbeCache(Path cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Look up a file we've scanned before.
+	 *
+	 * @return the scan, or null if we haven't scanned it, or it's changed
+	 *         since we did.
+	 */
+	public synchronized VideoScan get(Path path) {
+		ProbeEntry entry = getEntry(path);
+		if (entry == null) {
+			return null;
+		}
+		return new VideoScan(entry.width, entry.height, entry.duration, path, entry.framerate);
+	}
+
+	/**
+	 * Look up the KeyframeIndex of a file we've scanned before.
+	 *
+	 * @return the index, or null if we haven't built one, or the file has
+	 *         changed since we did.
+	 */
+	public synchronized KeyframeIndex getIndex(Path path) {
+		ProbeEntry entry = getEntry(path);
+		return entry == null ? null : entry.index;
+	}
+
+	/**
+	 * Remember the KeyframeIndex of a file, and save the cache soon. This
+	 * does nothing unless the scan of the file is already here.
+	 */
+	public synchronized void putIndex(Path path, KeyframeIndex index) {
+		ProbeEntry entry = getEntry(path);
+		if (entry == null) {
+			return;
+		}
+		entry.index = index;
+		scheduleSave();
+	}
+
+	/**
+	 * Returns the entry for this file, or null if there isn't one, or it's
+	 * out of date.
+	 */
+	private ProbeEntry getEntry(Path path) {
+		load();
+		Path key = path.toAbsolutePath().normalize();
+		ProbeEntry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			if (Files.size(path) != entry.size || Files.getLastModifiedTime(path).toMillis() != entry.modified) {
+				entries.remove(key);
+				return null;
+			}
+		} catch (IOException ioe) {
+			log(ioe);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Remember a scan, and save the cache soon. If the file hasn't changed
+	 * since we last scanned it, its KeyframeIndex is kept.
+	 */
+	public synchronized void put(VideoScan scan) {
+		Path path = scan.getLocation();
+		KeyframeIndex index = getIndex(path);
+		try {
+			ProbeEntry entry = new ProbeEntry(Files.size(path), Files.getLastModifiedTime(path).toMillis(), scan.getWidth(),
+					scan.getHeight(), scan.getDuration(), scan.getFramerate());
+			entry.index = index;
+			entries.put(path.toAbsolutePath().normalize(), entry);
+		} catch (IOException ioe) {
+			log(ioe);
+			return;
+		}
+		scheduleSave();
+	}
+
+	private void scheduleSave() {
+		dirty = true;
+		if (pendingSave == null) {
+			pendingSave = ConcurrenceManager.executeAfter(SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS, this::flush);
+		}
+	}
+
+	/**
+	 * Save the cache now, if anything's changed since it was last saved.
+	 */
+	public synchronized void flush() {
+		if (pendingSave != null) {
+			pendingSave.cancel(false);
+			pendingSave = null;
+		}
+		if (dirty) {
+			dirty = false;
+			save();
+		}
+	}
+
+	/**
+	 * Each line of the cache file is a tab-separated entry, with the path
+	 * last, since it's the only thing that might contain a tab. Before the
+	 * path are the keyframes and the scene cuts, each a comma-separated list,
+	 * or a dash if they haven't been found yet. Older cache files don't have
+	 * them.
+	 */
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		read(entries);
+	}
+
+	/**
+	 * Read the cache file into a map, oldest entries first.
+	 */
+	private void read(Map<Path, ProbeEntry> entries) {
+		try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", 9);
+				if (parts.length < 9) {
+					parts = line.split("\t", 7);
+					if (parts.length < 7) {
+						continue;
+					}
+				}
+				try {
+					ProbeEntry entry = new ProbeEntry(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+							Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), Double.parseDouble(parts[4]),
+							Double.parseDouble(parts[5]));
+					if (parts.length == 9 && !parts[6].equals("-")) {
+						entry.index = new KeyframeIndex(parseTimes(parts[6]),
+								parts[7].equals("-") ? null : parseTimes(parts[7]));
+					}
+					entries.put(Paths.get(parts[parts.length - 1]), entry);
+				} catch (RuntimeException ex) {
+					log(ex);
+				}
+			}
+		} catch (NoSuchFileException nsfe) {
+			// nothing's been cached yet
+		} catch (IOException ioe) {
+			log(ioe);
+		}
+	}
+
+	private void save() {
+		// Anything another process saved since we loaded is kept, as older
+		// than anything of ours.
+		Map<Path, ProbeEntry> saved = new LinkedHashMap<>();
+		read(saved);
+		saved.keySet().removeAll(entries.keySet());
+		if (!saved.isEmpty()) {
+			Map<Path, ProbeEntry> ours = new LinkedHashMap<>(entries);
+			entries.clear();
+			entries.putAll(saved);
+			entries.putAll(ours);
+		}
+		// Every save gets a temporary file of its own, so concurrent saves
+		// can't write over each other's before they're moved into place.
+		Path temp;
+		try {
+			Files.createDirectories(cacheFile.toAbsolutePath().getParent());
+			temp = Files.createTempFile(cacheFile.toAbsolutePath().getParent(), cacheFile.getFileName().toString(),
+					".tmp");
+		} catch (IOException ioe) {
+			log(ioe);
+			return;
+		}
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			for (Map.Entry<Path, ProbeEntry> e : entries.entrySet()) {
+				ProbeEntry entry = e.getValue();
+				writer.write(String.format("%d\t%d\t%d\t%d\t%s\t%s\t%s\t%s\t%s%n", entry.size, entry.modified,
+						entry.width, entry.height, Double.toString(entry.duration), Double.toString(entry.framerate),
+						entry.index == null ? "-" : formatTimes(entry.index.getKeyframes()),
+						entry.index == null || !entry.index.hasSceneCuts() ? "-"
+								: formatTimes(entry.index.getSceneCuts()),
+						e.getKey()));
+			}
+		} catch (IOException ioe) {
+			log(ioe);
+			IOHelper.deleteQuietly(temp);
+			return;
+		}
+		try {
+			Files.move(temp, cacheFile, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException amnse) {
+			try {
+				Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException ioe) {
+				log(ioe);
+				IOHelper.deleteQuietly(temp);
+			}
+		} catch (IOException ioe) {
+			log(ioe);
+			IOHelper.deleteQuietly(temp);
+		}
+	}
+
+	private static double[] parseTimes(String times) {
+		return times.isEmpty() ? new double[0]
+				: Arrays.stream(times.split(",")).mapToDouble(Double::parseDouble).toArray();
+	}
+
+	private static String formatTimes(double[] times) {
+		return Arrays.stream(times).mapToObj(Double::toString).collect(Collectors.joining(","));
+	}
+}
@@ -0,0 +1,290 @@
+package thebombzen.tumblgififier.video;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class picks the scale of each attempt when we're searching for a GIF
+ * that fits in a filesize window. Rather than bisecting, it fits a curve of
+ * filesize against pixel count through every attempt measured so far and aims
+ * for the middle of the window. Bisection is only used as a safeguard, when
+ * the curve predicts something outside of the known bracket.
+ */
+public class ScaleSearch {
+
+	/**
+	 * The default number of full encodes we're willing to run once we have a
+	 * GIF that fits under the maximum size.
+	 */
+	public static final int DEFAULT_MAX_ITERATIONS = 6;
+
+	/**
+	 * GIF filesize is roughly proportional to the pixel count, which means
+	 * it's roughly proportional to the square of the scale. We use this until
+	 * we've measured two different scales.
+	 */
+	public static final double DEFAULT_EXPONENT = 2D;
+
+	/**
+	 * Predictions this close to the edge of the bracket, relative to its width,
+	 * are not trusted. We bisect instead.
+	 */
+	private static final double BRACKET_MARGIN = 0.02D;
+
+	/**
+	 * This represents one measured (or estimated) attempt.
+	 */
+	private static class Measurement {
+		private final double scale;
+		private final double size;
+		private final double weight;
+
+		private Measurement(double scale, double size, double weight) {
+			this.scale = scale;
+			this.size = size;
+			this.weight = weight;
+		}
+	}
+
+	private final List<Measurement> measurements = new ArrayList<>();
+
+	private final long minSize;
+	private final long maxSize;
+	private final int maxIterations;
+	private final double initialScale;
+	private final double maxScale;
+
+	private double defaultExponent = DEFAULT_EXPONENT;
+
+	private double lowScale = 0D;
+	/**
+	 * The smallest scale known to be too big. Infinity means nothing has been
+	 * too big yet, so the maximum scale is still on the table.
+	 */
+	private double highScale = Double.POSITIVE_INFINITY;
+	private int iterations = 0;
+	private long bestSize = -1L;
+
+	public ScaleSearch(long minSize, long maxSize, double initialScale) {
+		this(minSize, maxSize, initialScale, 1D, DEFAULT_MAX_ITERATIONS);
+	}
+
+	/**
+	 * @param maxScale
+	 *            The largest scale we're allowed to try. This is normally 1,
+	 *            but it's smaller if we're reading a downscaled intermediate.
+	 */
+	public ScaleSearch(long minSize, long maxSize, double initialScale, double maxScale, int maxIterations) {
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.initialScale = Math.min(initialScale, maxScale);
+		this.maxScale = maxScale;
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * This is the size we aim for, the center of the acceptable window.
+	 */
+	public double getTargetSize() {
+		return 0.5D * (minSize + maxSize);
+	}
+
+	/**
+	 * Record the filesize produced by a full encode at the given scale. This
+	 * counts as an iteration.
+	 */
+	public void addMeasurement(double scale, long size) {
+		iterations++;
+		if (size <= maxSize && size > bestSize) {
+			bestSize = size;
+		}
+		addMeasurement(scale, size, 1D);
+	}
+
+	/**
+	 * Record an attempt that was aborted partway through because it was
+	 * already too big. It counts as an iteration and it moves the bracket, but
+	 * since the size is extrapolated it only counts partially toward the fit.
+	 */
+	public void addAbortedMeasurement(double scale, double estimatedSize) {
+		iterations++;
+		if (scale < highScale) {
+			highScale = scale;
+		}
+		addMeasurement(scale, Math.max(estimatedSize, maxSize + 1D), 0.5D);
+	}
+
+	/**
+	 * Record a filesize that was estimated rather than measured from a full
+	 * encode. The weight determines how much it counts toward the fit relative
+	 * to a real measurement, which has weight 1. Estimates do not count as
+	 * iterations, and only full-weight measurements move the bracket.
+	 */
+	public void addMeasurement(double scale, double size, double weight) {
+		if (scale <= 0D || size <= 0D || weight <= 0D) {
+			return;
+		}
+		measurements.add(new Measurement(scale, size, weight));
+		if (weight < 1D) {
+			return;
+		}
+		if (size > maxSize && scale < highScale) {
+			highScale = scale;
+		} else if (size < minSize && scale > lowScale) {
+			lowScale = scale;
+		}
+	}
+
+	/**
+	 * Returns true if a GIF of this size at this scale is good enough to keep.
+	 * GIFs smaller than the window are fine if we're already at the maximum
+	 * scale.
+	 */
+	public boolean isAcceptable(double scale, long size) {
+		return size > 0 && size <= maxSize && (size >= minSize || scale >= maxScale);
+	}
+
+	/**
+	 * Returns true if we've run out of iterations. We never give up until
+	 * something has fit under the maximum size.
+	 */
+	public boolean isExhausted() {
+		return iterations >= maxIterations && bestSize >= 0;
+	}
+
+	/**
+	 * The exponent we assume until we've measured two different scales. This
+	 * is normally DEFAULT_EXPONENT, but it can be set if we know better, e.g.
+	 * from a calibration.
+	 */
+	public void setDefaultExponent(double defaultExponent) {
+		this.defaultExponent = clampExponent(defaultExponent);
+	}
+
+	/**
+	 * Returns the exponent of the current fit, i.e. how fast the filesize
+	 * grows with the scale.
+	 */
+	public double getExponent() {
+		double[] fit = fit();
+		return fit == null ? defaultExponent : fit[1];
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	public double getLowScale() {
+		return lowScale;
+	}
+
+	public double getHighScale() {
+		return Math.min(highScale, maxScale);
+	}
+
+	/**
+	 * Predict the filesize we'll get at a given scale, using the current fit.
+	 * Returns a negative number if nothing has been measured yet.
+	 */
+	public double predictSize(double scale) {
+		double[] fit = fit();
+		if (fit == null) {
+			return -1D;
+		}
+		return Math.exp(fit[0] + fit[1] * Math.log(scale));
+	}
+
+	/**
+	 * Predict the scale that produces the given filesize, using the current
+	 * fit. Returns a negative number if nothing has been measured yet. This
+	 * does not respect the bracket.
+	 */
+	public double predictScale(double size) {
+		double[] fit = fit();
+		if (fit == null) {
+			return -1D;
+		}
+		return Math.exp((Math.log(size) - fit[0]) / fit[1]);
+	}
+
+	/**
+	 * Returns the scale that should be tried next.
+	 */
+	public double nextScale() {
+		double next = measurements.isEmpty() ? initialScale : predictScale(getTargetSize());
+		double low = lowScale;
+		double high = Math.min(highScale, maxScale);
+		double margin = (high - low) * BRACKET_MARGIN;
+		if (!Double.isFinite(next) || next <= low + margin || next >= high - margin) {
+			if (next >= high - margin && highScale > maxScale) {
+				return maxScale;
+			}
+			next = 0.5D * (low + high);
+		}
+		return next;
+	}
+
+	/**
+	 * Fit log(size) = c + k * log(scale). If the target is bracketed by
+	 * measurements, this is the secant between the two closest measurements on
+	 * either side of it. Otherwise it's a weighted least-squares fit through
+	 * every measurement, weighted toward those closest to the target.
+	 *
+	 * @return {c, k}, or null if there's nothing to fit.
+	 */
+	private double[] fit() {
+		if (measurements.isEmpty()) {
+			return null;
+		}
+		double target = getTargetSize();
+		Measurement below = null;
+		Measurement above = null;
+		for (Measurement m : measurements) {
+			if (m.size <= target && (below == null || m.scale > below.scale)) {
+				below = m;
+			} else if (m.size > target && (above == null || m.scale < above.scale)) {
+				above = m;
+			}
+		}
+		if (below != null && above != null && above.scale > below.scale) {
+			double k = (Math.log(above.size) - Math.log(below.size))
+					/ (Math.log(above.scale) - Math.log(below.scale));
+			k = clampExponent(k);
+			return new double[]{Math.log(below.size) - k * Math.log(below.scale), k};
+		}
+		double sw = 0D, sx = 0D, sy = 0D, sxx = 0D, sxy = 0D;
+		for (Measurement m : measurements) {
+			double x = Math.log(m.scale);
+			double y = Math.log(m.size);
+			double distance = 1D + Math.abs(y - Math.log(target));
+			double w = m.weight / (distance * distance);
+			sw += w;
+			sx += w * x;
+			sy += w * y;
+			sxx += w * x * x;
+			sxy += w * x * y;
+		}
+		double meanX = sx / sw;
+		double meanY = sy / sw;
+		double varX = sxx / sw - meanX * meanX;
+		double k;
+		if (varX < 1E-6D) {
+			k = defaultExponent;
+		} else {
+			k = clampExponent((sxy / sw - meanX * meanY) / varX);
+		}
+		return new double[]{meanY - k * meanX, k};
+	}
+
+	/**
+	 * Noisy measurements can produce silly exponents, especially when two
+	 * scales are very close together, so we keep it in a sane range.
+	 */
+	private static double clampExponent(double k) {
+		if (!Double.isFinite(k)) {
+			return DEFAULT_EXPONENT;
+		}
+		return Math.max(0.75D, Math.min(k, 3.5D));
+	}
+
+}
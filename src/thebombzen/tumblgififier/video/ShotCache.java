@@ -2,17 +2,26 @@ package thebombzen.tumblgififier.video;
 
 import static thebombzen.tumblgififier.TumblGIFifier.log;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
-import javax.imageio.ImageIO;
 import thebombzen.tumblgififier.gui.ImagePanel;
 import thebombzen.tumblgififier.util.ConcurrenceManager;
-import thebombzen.tumblgififier.util.io.IOHelper;
+import thebombzen.tumblgififier.util.LruCache;
+import thebombzen.tumblgififier.util.Tuple;
 import thebombzen.tumblgififier.util.io.resources.Resource;
 import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
 import thebombzen.tumblgififier.util.text.StatusProcessor;
@@ -26,78 +35,430 @@ public class ShotCache {
 
 	private VideoScan scan;
 
+	/**
+	 * This is lazily populated by getFingerprint. The empty string means we
+	 * tried and failed.
+	 */
+	private String fingerprint = null;
+
 	public VideoScan getScan() {
 		return scan;
 	}
 
-	public void setScan(VideoScan scan) {
+	public synchronized void setScan(VideoScan scan) {
 		this.scan = scan;
+		this.fingerprint = null;
+	}
+
+	/**
+	 * Screenshots take this much of the heap at most, by default.
+	 */
+	public static final long DEFAULT_IMAGE_CACHE_BYTES = Math.min(256L * 1024L * 1024L,
+			Runtime.getRuntime().maxMemory() / 8L);
+
+	/**
+	 * This holds the screenshots we've taken, keyed by (end, frame number). It
+	 * is bounded by the memory of the pixels, not the number of images.
+	 * Anything evicted is taken again by mpv if it's needed. The screenshots
+	 * never have the overlay text on them, since that's drawn over them when
+	 * they're displayed, so changing the text doesn't invalidate anything.
+	 */
+	private final LruCache<Tuple<Boolean, Integer>, BufferedImage> images = new LruCache<>(
+			DEFAULT_IMAGE_CACHE_BYTES, ShotCache::getImageBytes);
+
+	/**
+	 * The screenshots that are being taken right now, keyed like the cache,
+	 * each mapped to the run it's part of.
+	 */
+	private final ConcurrentMap<Tuple<Boolean, Integer>, CompletableFuture<Map<Integer, BufferedImage>>> inFlight =
+			new ConcurrentHashMap<>();
+
+	/**
+	 * The same, but for prefetches. These are kept apart because nobody waits
+	 * on a prefetch: it runs at low priority and may be given up partway
+	 * through, so it's quicker to take the screenshot again in the foreground.
+	 */
+	private final ConcurrentMap<Tuple<Boolean, Integer>, CompletableFuture<Map<Integer, BufferedImage>>> prefetching =
+			new ConcurrentHashMap<>();
+
+	/**
+	 * Returns roughly how much memory the pixels of an image take.
+	 */
+	private static long getImageBytes(BufferedImage image) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType())
+				/ 8L;
+	}
+
+	/**
+	 * On a miss, we take this many screenshots at once, centered on the one
+	 * we wanted.
+	 */
+	public static final int WINDOW_FRAMES = 17;
+
+	/**
+	 * Returns the number of screenshots in the video, i.e. the number of
+	 * positions on a slider.
+	 */
+	public int getFrameCount() {
+		return (int) (scan.getDuration() * scan.getScreenshotsPerSecond());
 	}
 
-	private Map<Integer, Path> shotFiles = new HashMap<>();
-	private Map<Integer, Path> endShotFiles = new HashMap<>();
+	/**
+	 * Returns true if this screenshot is already in the cache.
+	 */
+	public boolean isCached(int frameNumber, boolean end) {
+		return images.get(new Tuple<>(end, frameNumber)) != null;
+	}
 
+	/**
+	 * Returns true if this screenshot is in the cache, or on its way there.
+	 */
+	private boolean isAvailable(int frameNumber, boolean end) {
+		Tuple<Boolean, Integer> key = new Tuple<>(end, frameNumber);
+		return isCached(frameNumber, end) || inFlight.containsKey(key) || prefetching.containsKey(key);
+	}
+
+	/**
+	 * Make sure the window of screenshots starting at the given frame is in
+	 * the cache, taking any that aren't. This blocks, and it's meant to be run
+	 * in the background, ahead of where the user is going. The screenshots are
+	 * taken by a low-priority mpv of this cache's own, so this never holds up
+	 * a screenshot someone is waiting on.
+	 * 
+	 * @param isWanted
+	 *            This is checked as the screenshots are taken. If it returns
+	 *            false, we stop, and keep only what we have so far.
+	 * @return true if anything had to be taken.
+	 */
+	public boolean prefetch(int frameNumber, int shotWidth, int shotHeight, boolean end, BooleanSupplier isWanted)
+			throws IOException {
+		int first = Math.max(frameNumber, 0);
+		int last = Math.min(frameNumber + WINDOW_FRAMES, getFrameCount()) - 1;
+		for (int i = first; i <= last; i++) {
+			if (!isAvailable(i, end)) {
+				loadStored(i, shotWidth, shotHeight, end);
+			}
+		}
+		while (first <= last && isAvailable(first, end)) {
+			first++;
+		}
+		while (last >= first && isAvailable(last, end)) {
+			last--;
+		}
+		if (first > last) {
+			return false;
+		}
+		screenShot0(first, shotWidth, shotHeight, last - first + 1, end, isWanted);
+		return true;
+	}
+
+	/**
+	 * Returns the fingerprint we use for this video in the ThumbnailStore, or
+	 * null if it couldn't be read. The frame numbers depend on how many
+	 * screenshots we take per second, so that's part of it too.
+	 */
+	private synchronized String getFingerprint() {
+		if (fingerprint == null) {
+			try {
+				fingerprint = ThumbnailStore.fingerprint(scan.getLocation()) + "@" + scan.getScreenshotsPerSecond();
+			} catch (IOException ioe) {
+				log(ioe);
+				fingerprint = "";
+			}
+		}
+		return fingerprint.isEmpty() ? null : fingerprint;
+	}
+
+	/**
+	 * Look for a screenshot in the ThumbnailStore, and if it's there, add it
+	 * to the cache.
+	 * 
+	 * @return the screenshot, or null if it isn't there.
+	 */
+	private BufferedImage loadStored(int frameNumber, int shotWidth, int shotHeight, boolean end) {
+		String fingerprint = getFingerprint();
+		if (fingerprint == null) {
+			return null;
+		}
+		BufferedImage image = ThumbnailStore.getStore().get(fingerprint, shotWidth, shotHeight, frameNumber);
+		if (image != null) {
+			images.put(new Tuple<>(end, frameNumber), image);
+		}
+		return image;
+	}
+
+	/**
+	 * Make sure a run of screenshots is in the ThumbnailStore, taking any that
+	 * aren't with a new low-priority mpv process. Unlike prefetch, this
+	 * doesn't touch the memory cache, so it can cover the whole video without
+	 * pushing out what the user is looking at. This blocks.
+	 * 
+	 * @param frames
+	 *            The number of screenshots in the run.
+	 * @param stride
+	 *            The run takes every stride-th screenshot, starting at
+	 *            frameNumber.
+	 * @return the number of screenshots that had to be taken.
+	 */
+	public int store(int frameNumber, int shotWidth, int shotHeight, int frames, int stride) throws IOException {
+		String fingerprint = getFingerprint();
+		if (fingerprint == null) {
+			return 0;
+		}
+		ThumbnailStore store = ThumbnailStore.getStore();
+		int first = Math.max(frameNumber, 0);
+		int last = Math.min(frameNumber + (frames - 1) * stride, getFrameCount() - 1);
+		if (last < first) {
+			return 0;
+		}
+		last -= (last - first) % stride;
+		while (first <= last && store.contains(fingerprint, shotWidth, shotHeight, first)) {
+			first += stride;
+		}
+		while (last >= first && store.contains(fingerprint, shotWidth, shotHeight, last)) {
+			last -= stride;
+		}
+		if (first > last) {
+			return 0;
+		}
+		Map<Integer, BufferedImage> shots = screenShotProcess(first, shotWidth, shotHeight,
+				(last - first) / stride + 1, stride, true, () -> true);
+		shots.forEach((frame, image) -> store.put(fingerprint, shotWidth, shotHeight, frame, image));
+		return shots.size();
+	}
+
+	/**
+	 * Take a screenshot, or fetch it from the cache, and pass it to the
+	 * callback. If another thread is already taking the window that contains
+	 * it, we wait for that rather than take it again, unless it's only being
+	 * prefetched.
+	 * 
+	 * @param isCurrent
+	 *            This is checked before starting mpv and before calling the
+	 *            callback. If it returns false, this request has been
+	 *            superseded, so we do neither.
+	 */
 	public void screenShot(final Consumer<? super BufferedImage> callback, final ImagePanel parentPanel,
-			final StatusProcessor processor, final String overlay, int frameNumber, final int shotWidth,
-			final int shotHeight, final int overlaySize, final boolean end) {
-		final Map<Integer, Path> shotFiles = end ? this.endShotFiles : this.shotFiles;
+			final StatusProcessor processor, int frameNumber, final int shotWidth, final int shotHeight,
+			final boolean end, final BooleanSupplier isCurrent) {
 		double time = frameNumber * scan.getScreenshotDuration();
 		if (time < 0 || time > scan.getDuration()) {
 			throw new IllegalArgumentException("Time out of bounds!");
 		}
 		final int frameNumberF = time + scan.getScreenshotDuration() > scan.getDuration() ? frameNumber - 1
 				: frameNumber;
-		if (shotFiles.get(frameNumberF) == null) {
-			try {
-				screenShot0(overlay, frameNumberF - 8, shotWidth, shotHeight, overlaySize, 17, end);
-			} catch (IOException ioe) {
-				log(ioe);
-				processor.appendStatus("Oh noes, it appears something went wrong.");
-				return;
-			}
-		}
+		Tuple<Boolean, Integer> key = new Tuple<>(end, frameNumberF);
+		BufferedImage image = images.get(key);
 		try {
-			callback.accept(ImageIO.read(Files.newInputStream(shotFiles.get(frameNumberF))));
+			if (image == null) {
+				CompletableFuture<Map<Integer, BufferedImage>> pending = inFlight.get(key);
+				if (pending != null) {
+					try {
+						image = pending.join().get(frameNumberF);
+					} catch (CompletionException ce) {
+						// whoever took it has already reported it, so we try
+						// again ourselves
+						log(ce.getCause());
+					}
+				}
+			}
+			if (image == null) {
+				image = loadStored(frameNumberF, shotWidth, shotHeight, end);
+			}
+			if (image == null) {
+				if (!isCurrent.getAsBoolean()) {
+					return;
+				}
+				int first = getWindowStart(frameNumberF);
+				int last = first + WINDOW_FRAMES - 1;
+				while (first < frameNumberF && isAvailable(first, end)) {
+					first++;
+				}
+				while (last > frameNumberF && isAvailable(last, end)) {
+					last--;
+				}
+				image = screenShot0(first, shotWidth, shotHeight, last - first + 1, end, null).get(frameNumberF);
+				if (image == null) {
+					throw new IOException("mpv did not produce frame " + frameNumberF);
+				}
+			}
 		} catch (IOException ioe) {
 			log(ioe);
 			processor.appendStatus("Oh noes, it appears something went wrong.");
 			return;
 		}
+		if (isCurrent.getAsBoolean()) {
+			callback.accept(image);
+		}
+	}
+
+	/**
+	 * Returns the first frame of the window we take around a screenshot we
+	 * don't have. Normally the window is centered on it. But if there's a
+	 * keyframe in the first half of the window, we start there instead,
+	 * since mpv would otherwise decode the whole GOP before it just to reach
+	 * the start of the window.
+	 */
+	private int getWindowStart(int frameNumber) {
+		int first = frameNumber - WINDOW_FRAMES / 2;
+		KeyframeIndex index = KeyframeIndex.getIndex(scan);
+		if (index == null) {
+			return first;
+		}
+		double keyframe = index.getSeekPoint(frameNumber * scan.getScreenshotDuration());
+		int keyframeNumber = (int) Math.ceil(keyframe / scan.getScreenshotDuration() - 1E-6D);
+		return Math.min(Math.max(first, keyframeNumber), frameNumber);
 	}
 
-	private void screenShot0(String overlay, int frameNumber, int shotWidth, int shotHeight, int overlaySize,
-			int frames, boolean end) throws IOException {
-		log(String.format("Screenshotting: %s, %d, %d, %d, %d, %d, %b", overlay, frameNumber, shotWidth, shotHeight,
-				overlaySize, frames, end));
+	/**
+	 * Take a run of screenshots, and add them to the cache. While they're
+	 * being taken, each one is marked as in flight, so anyone else who wants
+	 * one of them waits for us instead of taking it again.
+	 * 
+	 * @param prefetchWanted
+	 *            If this is a prefetch, this says whether it's still wanted.
+	 *            It's null for screenshots that someone is waiting on.
+	 * @return the screenshots that were taken, by frame number.
+	 */
+	private Map<Integer, BufferedImage> screenShot0(int frameNumber, int shotWidth, int shotHeight, int frames,
+			boolean end, BooleanSupplier prefetchWanted) throws IOException {
+		log(String.format("Screenshotting: %d, %d, %d, %d, %b", frameNumber, shotWidth, shotHeight, frames, end));
 		if (frameNumber < 0) {
 			frameNumber = 0;
 		}
-		if (frameNumber + frames > scan.getDuration() * scan.getScreenshotsPerSecond()) {
-			frames = (int) (scan.getDuration() * scan.getScreenshotsPerSecond() - frameNumber);
+		if (frameNumber + frames > getFrameCount()) {
+			frames = getFrameCount() - frameNumber;
+		}
+		ConcurrentMap<Tuple<Boolean, Integer>, CompletableFuture<Map<Integer, BufferedImage>>> runs =
+				prefetchWanted == null ? inFlight : prefetching;
+		CompletableFuture<Map<Integer, BufferedImage>> future = new CompletableFuture<>();
+		List<Tuple<Boolean, Integer>> claimed = new ArrayList<>();
+		for (int i = frameNumber; i < frameNumber + frames; i++) {
+			Tuple<Boolean, Integer> key = new Tuple<>(end, i);
+			if (runs.putIfAbsent(key, future) == null) {
+				claimed.add(key);
+			}
+		}
+		try {
+			Map<Integer, BufferedImage> shots = screenShot1(frameNumber, shotWidth, shotHeight, frames,
+					prefetchWanted);
+			for (Map.Entry<Integer, BufferedImage> shot : shots.entrySet()) {
+				Tuple<Boolean, Integer> key = new Tuple<>(end, shot.getKey());
+				if (images.get(key) == null) {
+					images.put(key, shot.getValue());
+				}
+			}
+			future.complete(shots);
+			String fingerprint = getFingerprint();
+			if (fingerprint != null && !shots.isEmpty()) {
+				ConcurrenceManager.executeLater(() -> shots.forEach((frame, image) -> ThumbnailStore.getStore()
+						.put(fingerprint, shotWidth, shotHeight, frame, image)));
+			}
+			return shots;
+		} catch (IOException | RuntimeException ex) {
+			future.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			for (Tuple<Boolean, Integer> key : claimed) {
+				runs.remove(key, future);
+			}
 		}
-		final Map<Integer, Path> shotFiles = end ? this.endShotFiles : this.shotFiles;
-		Path shotPath = IOHelper.createTempFile();
-		IOHelper.deleteTempFile(shotPath);
+	}
+
+	/**
+	 * Take a run of screenshots without touching the cache. We ask the
+	 * ThumbnailWorker for this video first, and if there isn't one, or it
+	 * fails, we start mpv just for these screenshots. Prefetches use a
+	 * low-priority worker of their own.
+	 */
+	private Map<Integer, BufferedImage> screenShot1(int frameNumber, int shotWidth, int shotHeight, int frames,
+			BooleanSupplier prefetchWanted) throws IOException {
+		Map<Integer, BufferedImage> shots = null;
+		boolean prefetch = prefetchWanted != null;
+		BooleanSupplier isWanted = prefetch ? prefetchWanted : () -> true;
+		ThumbnailWorker worker = ThumbnailWorker.getWorker(scan, prefetch ? this : null);
+		if (worker != null) {
+			String videoFilter = TextHelper.getTextHelper().createVideoFilter(null, null, shotWidth, shotHeight, true,
+					0, scan.getWidth(), scan.getHeight(), 0, null);
+			try {
+				double start = frameNumber * scan.getScreenshotDuration();
+				KeyframeIndex index = KeyframeIndex.getIndex(scan);
+				List<BufferedImage> taken = worker.takeShots(start, frames, scan.getScreenshotDuration(),
+						index == null ? -1D : index.getSeekPoint(start),
+						"sws_flags=spline;[vid1]" + videoFilter + "[vo]", isWanted);
+				shots = new HashMap<>();
+				for (int i = 0; i < taken.size(); i++) {
+					shots.put(frameNumber + i, taken.get(i));
+				}
+			} catch (IOException ioe) {
+				log(ioe);
+			}
+		}
+		if (shots == null) {
+			shots = screenShotProcess(frameNumber, shotWidth, shotHeight, frames, 1, prefetch, isWanted);
+		}
+		return shots;
+	}
+
+	/**
+	 * Take a run of screenshots with a new mpv process. mpv writes raw bgr24
+	 * frames to its standard output, and we read each one straight into the
+	 * pixels of a BufferedImage we've already allocated, so nothing is
+	 * encoded, decoded, copied, or written to disk.
+	 * 
+	 * @param stride
+	 *            We take every stride-th screenshot, starting at frameNumber,
+	 *            until we have the number of frames asked for.
+	 * @param background
+	 *            If this is true, mpv is run at the lowest CPU priority, where
+	 *            we can.
+	 * @param isWanted
+	 *            This is checked after every screenshot. If it returns false,
+	 *            we stop mpv and return what we have so far.
+	 */
+	private Map<Integer, BufferedImage> screenShotProcess(int frameNumber, int shotWidth, int shotHeight, int frames,
+			int stride, boolean background, BooleanSupplier isWanted) throws IOException {
 		Resource mpv = ResourcesManager.getMpvLocation();
 		double startTimeCode = frameNumber * scan.getScreenshotDuration();
-		String videoFilter = TextHelper.getTextHelper().createVideoFilter(null, "format=rgb24", shotWidth, shotHeight,
-				true, 5, scan.getWidth(), scan.getHeight(), overlaySize, overlay);
-		ConcurrenceManager.exec(false, true, mpv.getLocation().toString(), scan.getLocation().toString(), "--config=no",
+		String videoFilter = TextHelper.getTextHelper().createVideoFilter(null, "format=bgr24", shotWidth, shotHeight,
+				true, 5, scan.getWidth(), scan.getHeight(), 0, null);
+		Tuple<Integer, Integer> size = TextHelper.getTextHelper().getScaledSize(shotWidth, shotHeight, true,
+				scan.getWidth(), scan.getHeight());
+		String[] args = {mpv.getLocation().toString(), scan.getLocation().toString(), "--config=no",
 				"--msg-level=all=v", "--msg-color=no",
-				"--log-file=" + ResourcesManager.getLocalFile("mpv-screenshot.log"), "--input-terminal=no", "--aid=no",
-				"--sid=no", "--correct-downscaling", "--scale=spline36", "--dscale=spline36", "--cscale=spline36",
-				"--ofps=" + scan.getScreenshotsPerSecond(), "--of=image2", "--ovc=png", "--term-status-msg=",
-				"--sws-scaler=spline", "--lavfi-complex=sws_flags=spline;[vid1]" + videoFilter + "[vo]",
-				"--start=" + startTimeCode, "--frames=" + (frames - 1), "--o=" + shotPath.toString() + "_%06d.png");
-		for (int i = 0; i < frames; i++) {
-			String name = String.format("%s_%06d.png", shotPath.toString(), i + 1);
-			Path tempShotPath = Paths.get(name);
-			IOHelper.markTempFile(tempShotPath);
-			if (shotFiles.get(frameNumber + i) != null) {
-				IOHelper.deleteTempFile(tempShotPath);
-			} else {
-				shotFiles.put(frameNumber + i, tempShotPath);
+				"--log-file=" + ResourcesManager.getLocalFile("mpv-screenshot.log"), "--input-terminal=no",
+				"--really-quiet", "--aid=no", "--sid=no", "--correct-downscaling", "--scale=spline36",
+				"--dscale=spline36", "--cscale=spline36", "--ofps=" + scan.getScreenshotsPerSecond() / stride,
+				"--of=rawvideo", "--ovc=rawvideo", "--sws-scaler=spline",
+				"--lavfi-complex=sws_flags=spline;[vid1]" + videoFilter + "[vo]", "--start=" + startTimeCode,
+				"--frames=" + (frames - 1), "--o=-"};
+		if (background) {
+			args = ConcurrenceManager.niceArgs(args);
+		}
+		log(String.join(" ", args));
+		Process process = ConcurrenceManager.startProcess(false, args);
+		Map<Integer, BufferedImage> shots = new HashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(process.getInputStream()))) {
+			for (int i = 0; i < frames; i++) {
+				BufferedImage image = new BufferedImage(size.getFirst(), size.getSecond(),
+						BufferedImage.TYPE_3BYTE_BGR);
+				byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+				try {
+					in.readFully(pixels);
+				} catch (EOFException eof) {
+					break;
+				}
+				shots.put(frameNumber + i * stride, image);
+				if (!isWanted.getAsBoolean()) {
+					break;
+				}
+			}
+		} finally {
+			if (process.isAlive()) {
+				process.destroy();
 			}
 		}
+		return shots;
 	}
 }
@@ -0,0 +1,198 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.io.IOException;
+import thebombzen.tumblgififier.util.ConcurrenceManager;
+
+/**
+ * This fills a ShotCache ahead of a slider while the user drags it, so that
+ * the screenshot is already there when they let go. It keeps track of how fast
+ * and in which direction the slider is moving, and takes windows of
+ * screenshots in front of it in the background, further ahead the faster it
+ * moves. If the slider changes direction, anything we planned in the old
+ * direction is dropped, including the window that's being taken.
+ */
+public class ShotPrefetcher {
+
+	/**
+	 * We try to stay this many seconds of dragging ahead of the slider.
+	 */
+	public static final double LOOKAHEAD_SECONDS = 1.5D;
+
+	/**
+	 * We never prefetch more than this many windows ahead, however fast the
+	 * slider is moving.
+	 */
+	public static final int MAX_LOOKAHEAD_WINDOWS = 8;
+
+	/**
+	 * The velocity is smoothed over roughly this many seconds, since slider
+	 * events are jittery.
+	 */
+	private static final double SMOOTHING_TIME = 0.15D;
+
+	/**
+	 * If the slider hasn't moved for this many seconds, it's considered to be
+	 * at rest.
+	 */
+	private static final double REST_TIME = 0.3D;
+
+	private final ShotCache cache;
+	private final int shotWidth;
+	private final int shotHeight;
+	private final boolean end;
+
+	private int frame = -1;
+	private long lastMoveTime = 0L;
+	/**
+	 * In screenshots per second.
+	 */
+	private double velocity = 0D;
+
+	/**
+	 * True while a background task is taking windows. This is cleared by the
+	 * task itself, under the lock, so a move never goes unnoticed.
+	 */
+	private boolean running = false;
+
+	public ShotPrefetcher(ShotCache cache, int shotWidth, int shotHeight, boolean end) {
+		this.cache = cache;
+		this.shotWidth = shotWidth;
+		this.shotHeight = shotHeight;
+		this.end = end;
+	}
+
+	/**
+	 * Tell the prefetcher that the slider has moved. This returns immediately,
+	 * so it's safe to call on the Event Dispatch Thread for every change
+	 * event, including while the slider is being dragged.
+	 */
+	public synchronized void onMove(int frame) {
+		long now = System.nanoTime();
+		if (this.frame >= 0 && frame != this.frame) {
+			double elapsed = Math.max((now - lastMoveTime) * 1E-9D, 1E-3D);
+			double instant = (frame - this.frame) / elapsed;
+			if (elapsed > REST_TIME || Math.signum(instant) != Math.signum(velocity)) {
+				// Starting again, or reversing. Either way, the old velocity
+				// tells us nothing.
+				velocity = instant;
+			} else {
+				double alpha = 1D - Math.exp(-elapsed / SMOOTHING_TIME);
+				velocity += alpha * (instant - velocity);
+			}
+		}
+		this.frame = frame;
+		this.lastMoveTime = now;
+		if (!running) {
+			running = true;
+			ConcurrenceManager.executeInBackground(this::run);
+		}
+	}
+
+	/**
+	 * Take windows one at a time until there's nothing left to take. The plan
+	 * is made again before every window, so it follows the slider.
+	 */
+	private void run() {
+		int previous = -1;
+		while (true) {
+			int window;
+			synchronized (this) {
+				window = nextWindow();
+				// If the last window is still missing, mpv couldn't take it, so
+				// there's no use trying again.
+				if (window < 0 || window == previous) {
+					running = false;
+					return;
+				}
+			}
+			try {
+				final int planned = window;
+				cache.prefetch(window, shotWidth, shotHeight, end, () -> isWanted(planned));
+			} catch (IOException | RuntimeException ex) {
+				log(ex);
+				synchronized (this) {
+					running = false;
+				}
+				return;
+			}
+			previous = window;
+		}
+	}
+
+	/**
+	 * Returns the first frame of the nearest window in the direction of travel
+	 * that isn't fully cached, or -1 if there isn't one. Windows are aligned to
+	 * multiples of ShotCache.WINDOW_FRAMES, so consecutive slider positions
+	 * ask for the same windows rather than overlapping ones.
+	 */
+	private int nextWindow() {
+		if (frame < 0) {
+			return -1;
+		}
+		double speed = velocity;
+		if ((System.nanoTime() - lastMoveTime) * 1E-9D > REST_TIME) {
+			speed = 0D;
+		}
+		int size = ShotCache.WINDOW_FRAMES;
+		int current = frame / size;
+		int last = (cache.getFrameCount() - 1) / size;
+		if (speed == 0D) {
+			// At rest, so we don't know which way they'll go next.
+			for (int window : new int[]{current, current + 1, current - 1}) {
+				if (window >= 0 && window <= last && !isCached(window * size)) {
+					return window * size;
+				}
+			}
+			return -1;
+		}
+		int direction = speed > 0D ? 1 : -1;
+		int windows = (int) Math.ceil(Math.abs(speed) * LOOKAHEAD_SECONDS / size);
+		windows = Math.max(1, Math.min(windows, MAX_LOOKAHEAD_WINDOWS));
+		for (int i = 0; i <= windows; i++) {
+			int window = current + direction * i;
+			if (window < 0 || window > last) {
+				break;
+			}
+			if (!isCached(window * size)) {
+				return window * size;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if the window starting at this frame is still one that
+	 * nextWindow might choose, i.e. it's within reach of the slider in the
+	 * direction of travel. This is checked while the window is being taken,
+	 * so a reversal cancels it.
+	 */
+	private synchronized boolean isWanted(int start) {
+		if (frame < 0) {
+			return false;
+		}
+		int size = ShotCache.WINDOW_FRAMES;
+		int offset = start / size - frame / size;
+		double speed = velocity;
+		if ((System.nanoTime() - lastMoveTime) * 1E-9D > REST_TIME) {
+			speed = 0D;
+		}
+		if (speed == 0D) {
+			return Math.abs(offset) <= 1;
+		}
+		int windows = (int) Math.ceil(Math.abs(speed) * LOOKAHEAD_SECONDS / size);
+		windows = Math.max(1, Math.min(windows, MAX_LOOKAHEAD_WINDOWS));
+		offset *= speed > 0D ? 1 : -1;
+		return offset >= 0 && offset <= windows;
+	}
+
+	private boolean isCached(int start) {
+		int stop = Math.min(start + ShotCache.WINDOW_FRAMES, cache.getFrameCount());
+		for (int i = start; i < stop; i++) {
+			if (!cache.isCached(i, end)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,505 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import thebombzen.tumblgififier.util.ConcurrenceManager;
+import thebombzen.tumblgififier.util.DefaultTask;
+import thebombzen.tumblgififier.util.io.IOHelper;
+import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
+
+/**
+ * This keeps preview screenshots on disk between sessions, so a video that's
+ * opened again can be scrubbed without running mpv at all. Screenshots are
+ * keyed by a fingerprint of the video file, the size of the screenshot, and
+ * the frame number.
+ *
+ * Rather than one file per screenshot, they're stored as JPEGs packed into a
+ * handful of append-only segment files, and an index says where each one is.
+ * Each record in a segment also carries its own key, so anything written after
+ * the index was last saved is recovered by reading the end of the segment.
+ * When the store gets too big, the least recently used segment is deleted.
+ */
+public class ThumbnailStore {
+
+	/**
+	 * The store takes up at most this much disk space, by default.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024L * 1024L;
+
+	/**
+	 * Once a segment reaches this size, we start a new one. Segments are
+	 * evicted whole, so this is also how much is evicted at once.
+	 */
+	public static final long SEGMENT_BYTES = 16L * 1024L * 1024L;
+
+	/**
+	 * We hash this many bytes at each of a few places in the file when we
+	 * fingerprint it.
+	 */
+	private static final int FINGERPRINT_SAMPLE_BYTES = 64 * 1024;
+	private static final int FINGERPRINT_SAMPLES = 4;
+
+	private static final int INDEX_VERSION = 1;
+
+	private static ThumbnailStore instance = null;
+
+	public static synchronized ThumbnailStore getStore() {
+		if (instance == null) {
+			instance = new ThumbnailStore(ResourcesManager.getLocalResourceLocation().resolve("thumbnails"),
+					DEFAULT_MAX_BYTES);
+			ConcurrenceManager.addShutdownTask(new DefaultTask(0, instance::saveIndex));
+		}
+		return instance;
+	}
+
+	/**
+	 * Fingerprint a file quickly, without reading all of it. The fingerprint
+	 * covers the size, the modification time, and a hash of a few samples
+	 * spread across the file, which is enough to tell if it's been replaced
+	 * or edited.
+	 *
+	 * @return a hex string.
+	 */
+	public static String fingerprint(Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new Error(nsae);
+		}
+		long size = Files.size(file);
+		long modified = Files.getLastModifiedTime(file).toMillis();
+		ByteBuffer header = ByteBuffer.allocate(16);
+		header.putLong(size).putLong(modified);
+		digest.update(header.array());
+		ByteBuffer sample = ByteBuffer.allocate(FINGERPRINT_SAMPLE_BYTES);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (int i = 0; i < FINGERPRINT_SAMPLES; i++) {
+				long position = Math.max(0L, (size - FINGERPRINT_SAMPLE_BYTES) * i / (FINGERPRINT_SAMPLES - 1));
+				sample.clear();
+				while (sample.hasRemaining() && channel.read(sample, position + sample.position()) > 0) {
+					// keep reading
+				}
+				sample.flip();
+				digest.update(sample);
+			}
+		}
+		StringBuilder builder = new StringBuilder();
+		for (byte b : digest.digest()) {
+			builder.append(String.format("%02x", b));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Where a screenshot is stored.
+	 */
+	private static class Entry {
+		private final int segment;
+		private final long offset;
+		private final int length;
+
+		private Entry(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static class Segment {
+		private final int id;
+		/**
+		 * Everything before this offset is in the index.
+		 */
+		private long length;
+		private long lastUsed;
+		private final List<String> keys = new ArrayList<>();
+
+		private Segment(int id, long length, long lastUsed) {
+			this.id = id;
+			this.length = length;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private final Path directory;
+	private final long maxBytes;
+
+	private final Map<String, Entry> entries = new HashMap<>();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	private RandomAccessFile current = null;
+	private boolean loaded = false;
+	private boolean broken = false;
+
+	public ThumbnailStore(Path directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns how much disk space the store takes up at most.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	private static String createKey(String fingerprint, int width, int height, int frameNumber) {
+		return fingerprint + ":" + width + "x" + height + ":" + frameNumber;
+	}
+
+	/**
+	 * Returns true if this screenshot is in the store, without reading it.
+	 */
+	public synchronized boolean contains(String fingerprint, int width, int height, int frameNumber) {
+		return ensureLoaded() && entries.containsKey(createKey(fingerprint, width, height, frameNumber));
+	}
+
+	/**
+	 * Fetch a screenshot from the store. The screenshot is read and decoded
+	 * outside the lock, so this doesn't hold up anyone else using the store.
+	 *
+	 * @return the screenshot, or null if it isn't there.
+	 */
+	public BufferedImage get(String fingerprint, int width, int height, int frameNumber) {
+		String key = createKey(fingerprint, width, height, frameNumber);
+		Entry entry;
+		synchronized (this) {
+			if (!ensureLoaded()) {
+				return null;
+			}
+			entry = entries.get(key);
+			if (entry == null) {
+				return null;
+			}
+			segments.get(entry.segment).lastUsed = System.currentTimeMillis();
+		}
+		byte[] data = new byte[entry.length];
+		try (RandomAccessFile file = new RandomAccessFile(getSegmentFile(entry.segment).toFile(), "r")) {
+			file.seek(entry.offset);
+			file.readFully(data);
+		} catch (IOException ioe) {
+			// the segment may have been evicted since we looked
+			log(ioe);
+			forget(key, entry);
+			return null;
+		}
+		try {
+			BufferedImage image = ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)));
+			if (image == null) {
+				forget(key, entry);
+			}
+			return image;
+		} catch (IOException ioe) {
+			log(ioe);
+			forget(key, entry);
+			return null;
+		}
+	}
+
+	/**
+	 * Forget a screenshot that couldn't be read, unless it's been replaced in
+	 * the meantime.
+	 */
+	private synchronized void forget(String key, Entry entry) {
+		if (entries.get(key) == entry) {
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Add a screenshot to the store, if it isn't already there. This encodes
+	 * and writes it, so it's best not run on a thread anyone is waiting on.
+	 */
+	public void put(String fingerprint, int width, int height, int frameNumber, BufferedImage image) {
+		String key = createKey(fingerprint, width, height, frameNumber);
+		synchronized (this) {
+			if (!ensureLoaded() || entries.containsKey(key)) {
+				return;
+			}
+		}
+		if (image.getType() == BufferedImage.TYPE_CUSTOM) {
+			// The JPEG writer doesn't cope with unusual layouts, like the
+			// padded pixels from the ThumbnailWorker.
+			BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(),
+					BufferedImage.TYPE_3BYTE_BGR);
+			Graphics2D g = copy.createGraphics();
+			g.drawImage(image, 0, 0, null);
+			g.dispose();
+			image = copy;
+		}
+		ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+		try (ImageOutputStream out = new MemoryCacheImageOutputStream(jpeg)) {
+			if (!ImageIO.write(image, "jpg", out)) {
+				return;
+			}
+		} catch (IOException ioe) {
+			log(ioe);
+			return;
+		}
+		synchronized (this) {
+			if (entries.containsKey(key)) {
+				return;
+			}
+			try {
+				append(key, jpeg.toByteArray());
+			} catch (IOException ioe) {
+				log(ioe);
+				IOHelper.closeQuietly(current);
+				current = null;
+			}
+		}
+	}
+
+	/**
+	 * Append a record to the current segment, which is a key, a length, and
+	 * the data.
+	 */
+	private void append(String key, byte[] data) throws IOException {
+		Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+		if (segment == null || segment.length >= SEGMENT_BYTES) {
+			IOHelper.closeQuietly(current);
+			int id = segment == null ? 0 : segment.id + 1;
+			segment = new Segment(id, 0L, System.currentTimeMillis());
+			segments.put(id, segment);
+			current = new RandomAccessFile(getSegmentFile(id).toFile(), "rw");
+			current.setLength(0L);
+			evict();
+		} else if (current == null) {
+			current = new RandomAccessFile(getSegmentFile(segment.id).toFile(), "rw");
+		}
+		ByteArrayOutputStream record = new ByteArrayOutputStream(data.length + key.length() + 8);
+		DataOutputStream out = new DataOutputStream(record);
+		out.writeUTF(key);
+		out.writeInt(data.length);
+		int headerLength = out.size();
+		out.write(data);
+		current.seek(segment.length);
+		current.write(record.toByteArray());
+		entries.put(key, new Entry(segment.id, segment.length + headerLength, data.length));
+		segment.keys.add(key);
+		segment.length += record.size();
+		segment.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Delete the least recently used segments until we're under the limit.
+	 * The segment being written is never deleted.
+	 */
+	private void evict() {
+		long total = segments.values().stream().mapToLong(s -> s.length).sum();
+		while (total > maxBytes - SEGMENT_BYTES && segments.size() > 1) {
+			Segment oldest = null;
+			for (Segment segment : segments.headMap(segments.lastKey()).values()) {
+				if (oldest == null || segment.lastUsed < oldest.lastUsed) {
+					oldest = segment;
+				}
+			}
+			removeSegment(oldest);
+			total -= oldest.length;
+		}
+	}
+
+	private void removeSegment(Segment segment) {
+		segments.remove(segment.id);
+		for (String key : segment.keys) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.segment == segment.id) {
+				entries.remove(key);
+			}
+		}
+		IOHelper.deleteQuietly(getSegmentFile(segment.id));
+	}
+
+	private Path getSegmentFile(int id) {
+		return directory.resolve(String.format("segment-%06d.dat", id));
+	}
+
+	private Path getIndexFile() {
+		return directory.resolve("index.dat");
+	}
+
+	/**
+	 * Load the index, the first time we need it. Records past the end of what
+	 * the index knows about are recovered from the segments themselves.
+	 *
+	 * @return false if the store can't be used.
+	 */
+	private boolean ensureLoaded() {
+		if (loaded) {
+			return !broken;
+		}
+		loaded = true;
+		try {
+			Files.createDirectories(directory);
+		} catch (IOException ioe) {
+			log(ioe);
+			broken = true;
+			return false;
+		}
+		if (Files.exists(getIndexFile())) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Files.newInputStream(getIndexFile())))) {
+				readIndex(in);
+			} catch (IOException ioe) {
+				log(ioe);
+				entries.clear();
+				segments.clear();
+			}
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.dat")) {
+			for (Path file : stream) {
+				int id = parseSegmentId(file);
+				if (id < 0) {
+					continue;
+				}
+				Segment segment = segments.get(id);
+				if (segment == null) {
+					segment = new Segment(id, 0L, Files.getLastModifiedTime(file).toMillis());
+					segments.put(id, segment);
+				}
+				recover(segment, file);
+			}
+		} catch (IOException ioe) {
+			log(ioe);
+		}
+		for (Iterator<Segment> it = segments.values().iterator(); it.hasNext();) {
+			Segment segment = it.next();
+			if (!Files.exists(getSegmentFile(segment.id))) {
+				it.remove();
+				segment.keys.forEach(entries::remove);
+			}
+		}
+		return true;
+	}
+
+	private static int parseSegmentId(Path file) {
+		String name = file.getFileName().toString();
+		try {
+			return Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length()));
+		} catch (NumberFormatException | IndexOutOfBoundsException ex) {
+			return -1;
+		}
+	}
+
+	private void readIndex(DataInputStream in) throws IOException {
+		if (in.readInt() != INDEX_VERSION) {
+			return;
+		}
+		int segmentCount = in.readInt();
+		for (int i = 0; i < segmentCount; i++) {
+			Segment segment = new Segment(in.readInt(), in.readLong(), in.readLong());
+			int entryCount = in.readInt();
+			for (int j = 0; j < entryCount; j++) {
+				String key = in.readUTF();
+				long offset = in.readLong();
+				int length = in.readInt();
+				entries.put(key, new Entry(segment.id, offset, length));
+				segment.keys.add(key);
+			}
+			segments.put(segment.id, segment);
+		}
+	}
+
+	/**
+	 * Read the records in a segment that the index doesn't know about. A
+	 * record cut short by a crash is dropped, along with anything after it.
+	 */
+	private void recover(Segment segment, Path file) throws IOException {
+		long fileLength = Files.size(file);
+		if (fileLength <= segment.length) {
+			return;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.seek(segment.length);
+			while (segment.length < fileLength) {
+				try {
+					String key = raf.readUTF();
+					int length = raf.readInt();
+					long offset = raf.getFilePointer();
+					if (length < 0 || offset + length > fileLength) {
+						break;
+					}
+					entries.put(key, new Entry(segment.id, offset, length));
+					segment.keys.add(key);
+					segment.length = offset + length;
+					raf.seek(segment.length);
+				} catch (EOFException eof) {
+					break;
+				}
+			}
+			raf.setLength(segment.length);
+		}
+	}
+
+	/**
+	 * Write the index, replacing the old one.
+	 */
+	public synchronized void saveIndex() {
+		if (!loaded || broken) {
+			return;
+		}
+		IOHelper.closeQuietly(current);
+		current = null;
+		Path temp = directory.resolve("index.dat.tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(segments.size());
+			for (Segment segment : segments.values()) {
+				out.writeInt(segment.id);
+				out.writeLong(segment.length);
+				out.writeLong(segment.lastUsed);
+				List<String> live = new ArrayList<>();
+				for (String key : segment.keys) {
+					Entry entry = entries.get(key);
+					if (entry != null && entry.segment == segment.id) {
+						live.add(key);
+					}
+				}
+				out.writeInt(live.size());
+				for (String key : live) {
+					Entry entry = entries.get(key);
+					out.writeUTF(key);
+					out.writeLong(entry.offset);
+					out.writeInt(entry.length);
+				}
+			}
+		} catch (IOException ioe) {
+			log(ioe);
+			return;
+		}
+		try {
+			Files.move(temp, getIndexFile(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ioe) {
+			log(ioe);
+		}
+	}
+}
@@ -0,0 +1,308 @@
+package thebombzen.tumblgififier.video;
+
+import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import thebombzen.tumblgififier.OperatingSystem;
+import thebombzen.tumblgififier.util.ConcurrenceManager;
+import thebombzen.tumblgififier.util.DefaultTask;
+import thebombzen.tumblgififier.util.Tuple;
+import thebombzen.tumblgififier.util.io.IOHelper;
+import thebombzen.tumblgififier.util.io.resources.ProcessTerminatedException;
+import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
+
+/**
+ * This is a long-lived mpv process that takes screenshots of one video on
+ * request. Starting mpv, probing the container, and seeking from scratch costs
+ * far more than decoding a few frames, so rather than start mpv for every
+ * screenshot, we keep one paused mpv around per video and send it requests.
+ * When the requested frame is a little way ahead of where it already is, in
+ * the same GOP, it decodes forward instead of seeking.
+ *
+ * mpv's JSON IPC needs a unix socket or a named pipe, neither of which Java 8
+ * can open, so we talk to it through lib/thumbnail-worker.lua over standard
+ * input and output instead.
+ *
+ * Prefetching gets workers of its own, niced where we can, so a prefetch never
+ * holds up a screenshot the user is waiting on.
+ */
+public class ThumbnailWorker {
+
+	/**
+	 * Workers that haven't been used for this long are shut down.
+	 */
+	public static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * Keyed by video and by the ShotCache that prefetches with the worker, or
+	 * null for the worker that takes the screenshots the user asked for.
+	 */
+	private static final Map<Tuple<Path, ShotCache>, ThumbnailWorker> workers = new HashMap<>();
+	private static Future<?> reaper = null;
+
+	/**
+	 * This is set if a worker failed to start or misbehaved, in which case we
+	 * don't try again this session, since mpv is probably too old for the
+	 * script.
+	 */
+	private static volatile boolean disabled = false;
+
+	/**
+	 * Returns the worker for this video, creating it if necessary, or null if
+	 * workers aren't available. The process itself is started lazily.
+	 */
+	public static ThumbnailWorker getWorker(VideoScan scan) {
+		return getWorker(scan, null);
+	}
+
+	/**
+	 * Returns the worker that a ShotCache prefetches with, creating it if
+	 * necessary, or null if workers aren't available. It runs at the lowest
+	 * CPU priority, apart from the worker returned by getWorker(VideoScan).
+	 *
+	 * @param prefetcher
+	 *            The cache that prefetches with it, or null for the worker
+	 *            that takes the screenshots the user is waiting on.
+	 */
+	public static synchronized ThumbnailWorker getWorker(VideoScan scan, ShotCache prefetcher) {
+		// Lua writes to standard out in text mode on Windows, which would
+		// mangle the pixels.
+		if (disabled || OperatingSystem.getLocalOS().isWindows()) {
+			return null;
+		}
+		Tuple<Path, ShotCache> key = new Tuple<>(scan.getLocation(), prefetcher);
+		ThumbnailWorker worker = workers.get(key);
+		if (worker == null) {
+			worker = new ThumbnailWorker(scan, prefetcher != null);
+			workers.put(key, worker);
+		}
+		if (reaper == null) {
+			reaper = ConcurrenceManager.createImpreciseTickClock(IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS,
+					ThumbnailWorker::closeIdleWorkers);
+			ConcurrenceManager.addShutdownTask(new DefaultTask(0, ThumbnailWorker::closeAll));
+		}
+		return worker;
+	}
+
+	private static synchronized void closeIdleWorkers() {
+		long now = System.currentTimeMillis();
+		List<Tuple<Path, ShotCache>> idle = new ArrayList<>();
+		for (Map.Entry<Tuple<Path, ShotCache>, ThumbnailWorker> entry : workers.entrySet()) {
+			if (now - entry.getValue().lastUsed > IDLE_TIMEOUT) {
+				idle.add(entry.getKey());
+			}
+		}
+		for (Tuple<Path, ShotCache> key : idle) {
+			workers.remove(key).close();
+		}
+	}
+
+	/**
+	 * Shut down every worker.
+	 */
+	public static synchronized void closeAll() {
+		workers.values().forEach(ThumbnailWorker::close);
+		workers.clear();
+	}
+
+	private static final ColorModel RGB_COLOR_MODEL = new ComponentColorModel(
+			ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+	private final VideoScan scan;
+	private final boolean background;
+
+	private Process process = null;
+	private DataInputStream in = null;
+	private OutputStream out = null;
+	private volatile long lastUsed = System.currentTimeMillis();
+
+	private ThumbnailWorker(VideoScan scan, boolean background) {
+		this.scan = scan;
+		this.background = background;
+	}
+
+	private void start() throws IOException {
+		String[] args = {ResourcesManager.getMpvLocation().getLocation().toString(), scan.getLocation().toString(),
+				"--config=no", "--msg-color=no", "--log-file=" + ResourcesManager.getLocalFile("mpv-worker.log"),
+				"--input-terminal=no", "--really-quiet", "--vo=null", "--aid=no", "--sid=no", "--pause",
+				"--keep-open=always", "--hr-seek=yes", "--sws-scaler=spline",
+				"--script=" + ResourcesManager.getLocalFile("lib").resolve("thumbnail-worker.lua")};
+		if (background) {
+			args = ConcurrenceManager.niceArgs(args);
+		}
+		log(String.join(" ", args));
+		process = ConcurrenceManager.startProcess(false, args);
+		in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+		out = process.getOutputStream();
+	}
+
+	/**
+	 * Take a run of screenshots.
+	 *
+	 * @param start
+	 *            The timestamp of the first screenshot, in seconds.
+	 * @param count
+	 *            How many screenshots to take.
+	 * @param interval
+	 *            The time between screenshots, in seconds.
+	 * @param keyframe
+	 *            The timestamp of the last keyframe at or before start, or a
+	 *            negative number if we don't know it. If we do, the worker
+	 *            only decodes forward to start when it's already past that
+	 *            keyframe, and seeks otherwise.
+	 * @param videoFilter
+	 *            The lavfi-complex graph that renders each screenshot, from
+	 *            [vid1] to [vo].
+	 * @return The screenshots, in order. There may be fewer than requested if
+	 *         the end of the video was reached.
+	 * @throws IOException
+	 *             if the worker failed. It's shut down, and the next request
+	 *             starts a new one.
+	 */
+	public List<BufferedImage> takeShots(double start, int count, double interval, double keyframe,
+			String videoFilter) throws IOException {
+		return takeShots(start, count, interval, keyframe, videoFilter, () -> true);
+	}
+
+	/**
+	 * Take a run of screenshots, like takeShots(double, int, double, double,
+	 * String), but give up partway through if they aren't wanted anymore.
+	 *
+	 * @param isWanted
+	 *            This is checked before the request and after every
+	 *            screenshot. If it returns false, the worker is shut down,
+	 *            since there's no way to stop mpv partway through a request,
+	 *            and we return the screenshots we have so far.
+	 */
+	public synchronized List<BufferedImage> takeShots(double start, int count, double interval, double keyframe,
+			String videoFilter, BooleanSupplier isWanted) throws IOException {
+		if (!isWanted.getAsBoolean()) {
+			return new ArrayList<>();
+		}
+		lastUsed = System.currentTimeMillis();
+		if (process == null || !process.isAlive()) {
+			close();
+			start();
+		}
+		List<BufferedImage> shots = new ArrayList<>(count);
+		try {
+			String request = String.format("%f %d %f %f %s\n", start, count, interval, keyframe, videoFilter);
+			out.write(request.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			while (true) {
+				String line = readLine();
+				if (line.equals("done")) {
+					break;
+				} else if (line.startsWith("error ")) {
+					throw new IOException("Thumbnail worker: " + line.substring(6));
+				} else if (line.startsWith("frame ")) {
+					shots.add(readFrame(line));
+					if (shots.size() < count && !isWanted.getAsBoolean()) {
+						close();
+						break;
+					}
+				} else {
+					throw new IOException("Unexpected output from thumbnail worker: " + line);
+				}
+			}
+		} catch (IOException ioe) {
+			close();
+			if (!(ioe instanceof ProcessTerminatedException)) {
+				disabled = true;
+			}
+			throw ioe;
+		}
+		lastUsed = System.currentTimeMillis();
+		return shots;
+	}
+
+	/**
+	 * Read one frame, whose header line has already been read. The pixels are
+	 * wrapped as they are, padding and all, so they're never copied.
+	 */
+	private BufferedImage readFrame(String header) throws IOException {
+		String[] parts = header.split(" ");
+		int width, height, stride;
+		try {
+			width = Integer.parseInt(parts[1]);
+			height = Integer.parseInt(parts[2]);
+			stride = Integer.parseInt(parts[3]);
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+			throw new IOException("Bad frame header from thumbnail worker: " + header);
+		}
+		String format = parts.length > 4 ? parts[4] : "bgr0";
+		int[] bandOffsets;
+		switch (format) {
+			case "bgr0":
+			case "bgra":
+				bandOffsets = new int[]{2, 1, 0};
+				break;
+			case "rgb0":
+			case "rgba":
+				bandOffsets = new int[]{0, 1, 2};
+				break;
+			default:
+				throw new IOException("Unsupported screenshot format: " + format);
+		}
+		if (width <= 0 || height <= 0 || stride < width * 4) {
+			throw new IOException("Bad frame header from thumbnail worker: " + header);
+		}
+		byte[] pixels = new byte[stride * height];
+		in.readFully(pixels);
+		WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(pixels, pixels.length), width,
+				height, stride, 4, bandOffsets, null);
+		return new BufferedImage(RGB_COLOR_MODEL, raster, false, null);
+	}
+
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				throw new EOFException("Thumbnail worker quit.");
+			}
+			line.write(b);
+		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Shut down the mpv process. Closing its standard input asks it to quit,
+	 * but we don't wait around for it.
+	 */
+	public synchronized void close() {
+		if (process == null) {
+			return;
+		}
+		IOHelper.closeQuietly(out);
+		IOHelper.closeQuietly(in);
+		if (process.isAlive()) {
+			process.destroy();
+		}
+		process = null;
+		in = null;
+		out = null;
+	}
+}
@@ -1,29 +1,74 @@
 package thebombzen.tumblgififier.video;
 
 import static thebombzen.tumblgififier.TumblGIFifier.log;
+import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import thebombzen.tumblgififier.gui.MainFrame;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
+import javax.imageio.ImageIO;
+import thebombzen.tumblgififier.TumblGIFifier;
 import thebombzen.tumblgififier.util.ConcurrenceManager;
+import thebombzen.tumblgififier.util.ExceptionalConsumer;
+import thebombzen.tumblgififier.util.Tuple;
 import thebombzen.tumblgififier.util.io.IOHelper;
+import thebombzen.tumblgififier.util.io.NullOutputStream;
 import thebombzen.tumblgififier.util.io.resources.ProcessTerminatedException;
 import thebombzen.tumblgififier.util.io.resources.Resource;
 import thebombzen.tumblgififier.util.io.resources.ResourcesManager;
 import thebombzen.tumblgififier.util.text.StatusProcessor;
 import thebombzen.tumblgififier.util.text.StatusProcessorWriter;
 import thebombzen.tumblgififier.util.text.TextHelper;
+import thebombzen.tumblgififier.video.gif.ColorIndexer;
+import thebombzen.tumblgififier.video.gif.GifConcatenator;
+import thebombzen.tumblgififier.video.gif.GifWriter;
+import thebombzen.tumblgififier.video.gif.Palette;
+import thebombzen.tumblgififier.video.gif.Quantizer;
 
+/**
+ * This converts clips of one video to GIFs. All the state of a conversion
+ * lives here, so a VideoProcessor runs one conversion at a time, and anything
+ * else that asks waits its turn. Separate VideoProcessors can convert at the
+ * same time, which is how GifConverter runs several jobs at once.
+ */
 public class VideoProcessor {
 
 	public VideoProcessor(VideoScan scan) {
+		this(scan, new PaletteCache());
+	}
+
+	/**
+	 * @param paletteCache
+	 *            The palettes to reuse, which may be shared with other
+	 *            VideoProcessors.
+	 */
+	public VideoProcessor(VideoScan scan, PaletteCache paletteCache) {
 		this.scan = scan;
+		this.paletteCache = paletteCache;
 	}
 
 	private VideoScan scan;
@@ -36,66 +81,475 @@ public class VideoProcessor {
 		this.scan = scan;
 	}
 
-	private Path gifFile;
-	private Path nutFile;
-	private Path paletteFile;
+	/**
+	 * In filesize mode we decode the clip exactly once, into a lossless
+	 * intermediate that already has the framerate cut and the overlay applied.
+	 * Every attempt scales from this file rather than re-decoding the source.
+	 * It's as big as the biggest GIF the budget could plausibly allow, which is
+	 * this many times the scale we estimate from the budget, because some
+	 * clips, especially ones that barely move, compress far better than the
+	 * estimate assumes. If that's at least the size of the video, the
+	 * intermediate isn't scaled at all.
+	 */
+	private static final double INTERMEDIATE_HEADROOM = 3D;
+
+	/**
+	 * Each mpv encode mostly keeps a few cores busy, so by default we run one
+	 * speculative candidate for every four cores, up to three of them.
+	 */
+	public static final int DEFAULT_SPECULATIVE_CANDIDATES = Math.max(1,
+			Math.min(3, Runtime.getRuntime().availableProcessors() / 4));
+
+	/**
+	 * When we have to guess, speculative candidates are spread this far apart
+	 * in scale, relative to the predicted scale. Once we have a measurement
+	 * the prediction is better, so we use half of this.
+	 */
+	private static final double SPECULATIVE_SPREAD = 0.15D;
+
+	/**
+	 * gifsicle usually shrinks our GIFs by a bit. Until we've measured how
+	 * much, we assume it could shrink them this much, so we don't abort an
+	 * attempt that gifsicle would have rescued.
+	 */
+	private static final double DEFAULT_CRUSH_RATIO = 0.6D;
+
+	/**
+	 * We abort an attempt early if its projected size is this many times over
+	 * the budget, and it's at least this far along so the projection means
+	 * something.
+	 */
+	private static final double PROJECTION_MARGIN = 1.5D;
+	private static final double MIN_PROJECTION_PROGRESS = 0.25D;
+
+	/**
+	 * Before encoding long clips in full, we calibrate the search by encoding
+	 * a few short samples spread evenly across the clip, and extrapolating
+	 * their size to the full length. The samples are this many windows of this
+	 * many seconds each, and we only bother if the clip is at least this long.
+	 */
+	private static final int CALIBRATION_WINDOWS = 4;
+	private static final double CALIBRATION_WINDOW_LENGTH = 1D;
+	private static final double CALIBRATION_MIN_CLIP_LENGTH = 12D;
+
+	/**
+	 * We stop calibrating once the extrapolated size is this close to the
+	 * target, relative to the target, or after this many sample encodes.
+	 */
+	private static final double CALIBRATION_TOLERANCE = 0.1D;
+	private static final int MAX_CALIBRATION_ROUNDS = 3;
+
+	/**
+	 * Each mpv process does most of its GIF encoding on one core, so by
+	 * default we split a lone attempt into one segment per core. Every segment
+	 * starts with a full frame, which costs a little filesize, so segments are
+	 * never shorter than MIN_SEGMENT_LENGTH seconds.
+	 */
+	public static final int DEFAULT_SEGMENTS = Runtime.getRuntime().availableProcessors();
+	private static final double MIN_SEGMENT_LENGTH = 2D;
+
+	/**
+	 * By default we let a single-pass encode buffer this many bytes of frames.
+	 * See setSinglePassBudget.
+	 */
+	public static final long DEFAULT_SINGLE_PASS_BUDGET = 512L * 1024L * 1024L;
+
+	/**
+	 * When we write a single-pass GIF ourselves, the collected frames live on
+	 * the Java heap. All the single-pass encodes running at once, across all
+	 * VideoProcessors, may use at most this fraction of the heap for them.
+	 */
+	static final double HEAP_SHARE = 0.5D;
+
+	/**
+	 * How many bytes of heap the single-pass encodes that are running have
+	 * reserved for their collected frames.
+	 */
+	private static final AtomicLong reservedHeap = new AtomicLong();
+
+	/**
+	 * We decide whether a cached palette can be reused from this many frames.
+	 */
+	private static final int PALETTE_SAMPLE_FRAMES = 8;
+
+	/**
+	 * How many conversions are running, across all VideoProcessors.
+	 */
+	private static final AtomicInteger activeConversions = new AtomicInteger();
+
+	/**
+	 * How many mpv processes the running foreground conversions may use
+	 * between them, across all VideoProcessors.
+	 */
+	private static final AtomicInteger foregroundThreads = new AtomicInteger();
+
+	private boolean background = false;
+
+	private int speculativeCandidates = DEFAULT_SPECULATIVE_CANDIDATES;
+
+	private long singlePassBudget = DEFAULT_SINGLE_PASS_BUDGET;
+
+	private boolean javaEncoder = true;
+
+	private boolean javaQuantizer = true;
+
+	private int segments = DEFAULT_SEGMENTS;
+
+	/**
+	 * How many attempts of this conversion are being encoded at once, which
+	 * the single-pass budget is split between.
+	 */
+	private volatile int concurrentAttempts = 1;
+
+	/**
+	 * The ratio of the crushed size to the raw size of the most recent GIF, or
+	 * 1 if we don't crush GIFs.
+	 */
+	private volatile double crushRatio;
+
+	private Path intermediateFile;
+	private int intermediateWidth;
+	private int intermediateHeight;
 
 	private int decimator;
 
-	private double highscale = 1D;
-	private double lowscale = 0D;
+	/**
+	 * This holds the best GIF found so far by the filesize search. See
+	 * isBetter for what "best" means.
+	 */
+	private Path bestGifFile;
+	private long bestGifSize;
+	private double bestGifScale;
+
+	/**
+	 * These are the sizes we've already tried, so we never encode the same
+	 * size twice.
+	 */
+	private Set<Tuple<Integer, Integer>> triedSizes = new HashSet<>();
+
+	private final PaletteCache paletteCache;
+	private PaletteCache.Key paletteKey;
+
+	private ScaleSearch search;
 	private long maxSize;
 	private long minSize;
 	private int targetWidth;
 	private int targetHeight;
-	private double scale = 1D;
 
 	private double clipStartTime;
 	private double clipEndTime;
 
 	private StatusProcessor statusProcessor;
 
-	private int prevWidth = -1;
-	private int prevPrevWidth = -2;
-	private int prevHeight = -1;
-	private int prevPrevHeight = -2;
+	/**
+	 * Every attempt of the current conversion, so that if one fails, we can
+	 * stop the rest without touching anyone else's processes.
+	 */
+	private final List<EncodeAttempt> attempts = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The number of candidate scales that are encoded at once in filesize
+	 * mode. If this is 1, the search is sequential.
+	 */
+	public int getSpeculativeCandidates() {
+		return speculativeCandidates;
+	}
+
+	public void setSpeculativeCandidates(int speculativeCandidates) {
+		this.speculativeCandidates = Math.max(1, speculativeCandidates);
+	}
+
+	/**
+	 * The most memory, in bytes, that each single-pass encode is allowed to use
+	 * for buffered frames. A single-pass encode splits the scaled video into
+	 * palettegen and paletteuse inside one mpv process, so it never writes the
+	 * scaled video or the palette to disk, but paletteuse has to hold every
+	 * frame until the palette is ready. Clips that don't fit are encoded in
+	 * three passes instead. Zero disables single-pass encoding. When several
+	 * candidates are encoded at once, they split this between them.
+	 */
+	public long getSinglePassBudget() {
+		return singlePassBudget;
+	}
+
+	public void setSinglePassBudget(long singlePassBudget) {
+		this.singlePassBudget = Math.max(0L, singlePassBudget);
+	}
 
-	private void adjustScale() throws IOException {
+	/**
+	 * If this is true, GIFs are written by our own GifWriter, which
+	 * compresses frames in parallel, rather than by mpv.
+	 */
+	public boolean isJavaEncoder() {
+		return javaEncoder;
+	}
+
+	public void setJavaEncoder(boolean javaEncoder) {
+		this.javaEncoder = javaEncoder;
+	}
+
+	/**
+	 * If this is true, and we're writing GIFs ourselves, segments and
+	 * three-pass encodes also map the frames to the palette ourselves with a
+	 * Quantizer, rather than having mpv run paletteuse. A single-pass encode
+	 * always runs paletteuse, because its palette never leaves mpv.
+	 */
+	public boolean isJavaQuantizer() {
+		return javaQuantizer;
+	}
+
+	public void setJavaQuantizer(boolean javaQuantizer) {
+		this.javaQuantizer = javaQuantizer;
+	}
+
+	/**
+	 * The most segments a GIF is split into when it's encoded by itself. Each
+	 * segment is encoded by its own process, in parallel, and then the
+	 * segments are joined together. If this is 1, GIFs are never split.
+	 */
+	public int getSegments() {
+		return segments;
+	}
+
+	public void setSegments(int segments) {
+		this.segments = Math.max(1, segments);
+	}
+
+	/**
+	 * Background conversions, like the JobQueue's, only use the cores that
+	 * foreground ones leave free, so they aren't counted by
+	 * getForegroundThreads. Conversions are in the foreground by default.
+	 */
+	public boolean isBackground() {
+		return background;
+	}
+
+	public void setBackground(boolean background) {
+		this.background = background;
+	}
+
+	/**
+	 * The ways createGif can encode an attempt.
+	 */
+	enum EncodeMode {
+		/**
+		 * Split the clip into segments and encode them in parallel. See
+		 * createGifSegmented.
+		 */
+		SEGMENTED,
+		/**
+		 * Encode the clip in one mpv process, holding every frame in memory.
+		 * See createGifSinglePass.
+		 */
+		SINGLE_PASS,
+		/**
+		 * Encode the clip in three passes, through a scaled file on disk. See
+		 * createGifThreePass.
+		 */
+		THREE_PASS;
+	}
+
+	/**
+	 * Returns how many segments a clip of this length should be split into,
+	 * which is 1 if it shouldn't be split.
+	 */
+	static int getSegmentCount(int maxSegments, double length) {
+		return Math.max(1, Math.min(maxSegments, (int) (length / MIN_SEGMENT_LENGTH)));
+	}
+
+	/**
+	 * Returns how an attempt should be encoded. Segments are the fastest if
+	 * we have the cores, so we use them whenever the clip is long enough.
+	 * Otherwise we use a single pass if the frames fit in the budget, and three
+	 * passes if they don't.
+	 * 
+	 * @param bufferedBytes
+	 *            How much memory a single pass would use for buffered frames.
+	 */
+	static EncodeMode getEncodeMode(int segmentCount, double bufferedBytes, long singlePassBudget) {
+		if (segmentCount > 1) {
+			return EncodeMode.SEGMENTED;
+		}
+		if (bufferedBytes <= singlePassBudget) {
+			return EncodeMode.SINGLE_PASS;
+		}
+		return EncodeMode.THREE_PASS;
+	}
+
+	/**
+	 * Returns how much memory a single pass would use to buffer this
+	 * attempt's frames. mpv buffers them as bgr0, four bytes per pixel, and if
+	 * we write the GIF ourselves, we collect them as indices, one more byte
+	 * per pixel.
+	 */
+	private double getBufferedBytes(EncodeAttempt attempt, double length) {
+		return (javaEncoder ? 5D : 4D) * getPixels(attempt, length);
+	}
+
+	/**
+	 * Returns how much of the Java heap a single pass would use to collect
+	 * this attempt's frames, which is nothing if mpv writes the GIF.
+	 */
+	private double getCollectedBytes(EncodeAttempt attempt, double length) {
+		return javaEncoder ? getPixels(attempt, length) : 0D;
+	}
+
+	private double getPixels(EncodeAttempt attempt, double length) {
+		double frames = Math.ceil(length * scan.getFramerate() / (1D + decimator));
+		return (double) attempt.getWidth() * attempt.getHeight() * frames;
+	}
+
+	/**
+	 * Reserve heap for a single pass's collected frames, if that keeps every
+	 * reservation together within HEAP_SHARE of the heap.
+	 * 
+	 * @return true if the heap was reserved, in which case it has to be given
+	 *         back with releaseHeap.
+	 */
+	static boolean reserveHeap(long bytes, long maxMemory) {
+		long limit = (long) (maxMemory * HEAP_SHARE);
+		while (true) {
+			long reserved = reservedHeap.get();
+			if (reserved + bytes > limit) {
+				return false;
+			}
+			if (reservedHeap.compareAndSet(reserved, reserved + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	static void releaseHeap(long bytes) {
+		reservedHeap.addAndGet(-bytes);
+	}
+
+	/**
+	 * The palettes generated so far, which are reused across attempts and
+	 * across conversions of the same clip.
+	 */
+	public PaletteCache getPaletteCache() {
+		return paletteCache;
+	}
+
+	/**
+	 * Returns true if a GIF of this size at this scale is a better result than
+	 * the best one so far. Anything that fits beats anything that doesn't.
+	 * Among acceptable GIFs the closest to the target wins, among the rest
+	 * that fit the biggest wins, and among those that don't fit the smallest
+	 * wins.
+	 */
+	private boolean isBetter(double scale, long size) {
+		if (bestGifSize < 0) {
+			return true;
+		}
+		boolean fits = size <= maxSize;
+		if (fits != bestGifSize <= maxSize) {
+			return fits;
+		}
+		if (!fits) {
+			return size < bestGifSize;
+		}
+		boolean acceptable = search.isAcceptable(scale, size);
+		if (acceptable != search.isAcceptable(bestGifScale, bestGifSize)) {
+			return acceptable;
+		}
+		if (acceptable) {
+			double target = search.getTargetSize();
+			return Math.abs(size - target) < Math.abs(bestGifSize - target);
+		}
+		return size > bestGifSize;
+	}
+
+	/**
+	 * Record the size of a GIF we just created, and keep it if it's the best
+	 * one so far.
+	 */
+	private void adjustScale(EncodeAttempt attempt) throws IOException {
 		StringBuilder sb = new StringBuilder();
 		sb.append("Checking Filesize... ");
-		long currFileSize;
-		currFileSize = Files.size(gifFile);
+		long currFileSize = attempt.getSize();
+		if (attempt.isAborted()) {
+			search.addAbortedMeasurement(attempt.getScale(), currFileSize);
+			sb.append(String.format("Too Big: %dx%d, aborted at about %d%n", attempt.getWidth(), attempt.getHeight(),
+					currFileSize));
+			this.statusProcessor.appendStatus(sb.toString());
+			return;
+		}
+		search.addMeasurement(attempt.getScale(), currFileSize);
 		if (currFileSize > maxSize) {
 			sb.append("Too Big: ");
-			highscale = scale;
-			scale = (lowscale + highscale) * 0.5D;
-		} else if (currFileSize < minSize && scale < 1D) {
+		} else if (!search.isAcceptable(attempt.getScale(), currFileSize)) {
 			sb.append("Too Small: ");
-			lowscale = scale;
-			scale = (lowscale + highscale) * 0.5D;
 		} else {
 			sb.append("Just Right: ");
 		}
-		sb.append(String.format("%d%n", currFileSize));
+		sb.append(String.format("%dx%d, %d%n", attempt.getWidth(), attempt.getHeight(), currFileSize));
 		this.statusProcessor.appendStatus(sb.toString());
+		if (isBetter(attempt.getScale(), currFileSize)) {
+			Files.copy(attempt.getGifFile(), bestGifFile, StandardCopyOption.REPLACE_EXISTING);
+			bestGifSize = currFileSize;
+			bestGifScale = attempt.getScale();
+		}
 	}
 
+	/**
+	 * Returns true if any conversion is running, in which case background work
+	 * should stay out of its way.
+	 */
+	public static boolean isConverting() {
+		return activeConversions.get() > 0;
+	}
+
+	/**
+	 * Returns how many mpv processes the foreground conversions that are
+	 * running may use between them, which is how many cores they want.
+	 */
+	public static int getForegroundThreads() {
+		return foregroundThreads.get();
+	}
+
+	/**
+	 * Convert a clip, logging anything that goes wrong.
+	 * 
+	 * @return true if the GIF was written.
+	 */
 	public boolean convert(String overlay, StatusProcessor outputProcessor, Path path, double startTime, double endTime,
 			long minSize, long maxSize, int targetWidth, int targetHeight, int decimator, int overlaySize) {
-		MainFrame.getMainFrame().setBusy(true);
-		boolean success = true;
 		try {
-			convert0(overlay, outputProcessor, path, startTime, endTime, minSize, maxSize, targetWidth, targetHeight,
-					decimator, overlaySize);
-		} catch (IOException ioe) {
-			log(ioe);
-			success = false;
+			convert(new GifJob(scan, path, startTime, endTime, minSize, maxSize, targetWidth, targetHeight, decimator,
+					overlay, overlaySize), outputProcessor);
+			return true;
+		} catch (IOException | IllegalArgumentException ex) {
+			log(ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Convert a clip of this video. This blocks until the GIF is written.
+	 * 
+	 * @throws IOException
+	 *             if no GIF could be created.
+	 */
+	public synchronized void convert(GifJob job, StatusProcessor outputProcessor) throws IOException {
+		if (!job.getScan().getLocation().equals(scan.getLocation())) {
+			throw new IllegalArgumentException("This job is for another video: " + job);
+		}
+		activeConversions.incrementAndGet();
+		int threads = background ? 0 : segments;
+		foregroundThreads.addAndGet(threads);
+		try {
+			convert0(job.getOverlay(), outputProcessor, job.getOutput(), job.getStartTime(), job.getEndTime(),
+					job.getMinSize(), job.getMaxSize(), job.getTargetWidth(), job.getTargetHeight(),
+					job.getDecimator(), job.getOverlaySize());
+		} finally {
+			foregroundThreads.addAndGet(-threads);
+			activeConversions.decrementAndGet();
+			attempts.clear();
+			IOHelper.deleteTempFile(bestGifFile);
+			IOHelper.deleteTempFile(intermediateFile);
+			intermediateFile = null;
 		}
-		IOHelper.deleteTempFile(gifFile);
-		IOHelper.deleteTempFile(nutFile);
-		IOHelper.deleteTempFile(paletteFile);
-		MainFrame.getMainFrame().setBusy(false);
-		return success;
 	}
 
 	private void convert0(String overlay, StatusProcessor outputProcessor, Path path, double startTime, double endTime,
@@ -109,51 +563,68 @@ public class VideoProcessor {
 		this.decimator = decimator;
 		this.targetWidth = targetWidth;
 		this.targetHeight = targetHeight;
+		this.paletteKey = new PaletteCache.Key(scan.getLocation(), startTime, endTime, overlay, overlaySize,
+				decimator);
 
-		lowscale = 0D;
-		scale = minSize <= 0 ? 1D
+		double scale = minSize <= 0 ? 1D
 				: 1D / Math.sqrt(scan.getWidth() * scan.getHeight() * scan.getFramerate() / (1D + decimator)
 						* (endTime - startTime) / (3D * maxSize));
 		if (scale > 1D) {
 			scale = 1D;
 		}
-		highscale = 1D;
+		double maxScale = minSize <= 0 ? 1D : Math.min(1D, scale * INTERMEDIATE_HEADROOM);
+
+		this.bestGifFile = IOHelper.createTempFile();
+		bestGifSize = -1L;
+		triedSizes.clear();
+		concurrentAttempts = 1;
+		crushRatio = ResourcesManager.loadedPkgs.contains("gifsicle") ? DEFAULT_CRUSH_RATIO : 1D;
 
-		this.gifFile = IOHelper.createTempFile();
-		this.nutFile = IOHelper.createTempFile();
-		this.paletteFile = IOHelper.createTempFile();
+		double exponent = ScaleSearch.DEFAULT_EXPONENT;
+		if (minSize > 0) {
+			createIntermediate(overlay, overlaySize, maxScale);
+			if (targetWidth <= 0 && targetHeight <= 0 && endTime - startTime >= CALIBRATION_MIN_CLIP_LENGTH) {
+				ScaleSearch calibration = calibrate(scale, maxScale);
+				scale = calibration.nextScale();
+				exponent = calibration.getExponent();
+			}
+		}
 
-		prevWidth = -1;
-		prevHeight = -1;
-		prevPrevWidth = -2;
-		prevPrevHeight = -2;
+		search = new ScaleSearch(minSize, maxSize, scale, maxScale, ScaleSearch.DEFAULT_MAX_ITERATIONS);
+		search.setDefaultExponent(exponent);
 
-		long gifLength = Files.size(gifFile);
+		int candidates = minSize > 0 ? speculativeCandidates : 1;
 
-		while (gifLength == 0 || (gifLength < minSize && scale < 1) || gifLength > maxSize) {
-			createGif(overlay, overlaySize);
-			gifLength = Files.size(gifFile);
-			adjustScale();
-			int newWidth = (int) (scan.getWidth() * scale);
-			int newHeight = (int) (scan.getHeight() * scale);
-			if (newWidth == prevWidth && newHeight == prevHeight
-					|| newWidth == prevPrevWidth && newHeight == prevPrevHeight) {
+		while (true) {
+			List<EncodeAttempt> round = createRound(candidates);
+			if (round.isEmpty()) {
 				statusProcessor.appendStatus("Exiting Loop.");
 				break;
 			}
-			prevPrevWidth = prevWidth;
-			prevPrevHeight = prevHeight;
-			prevWidth = newWidth;
-			prevHeight = newHeight;
+			runRound(round, overlay, overlaySize);
+			if (bestGifSize >= 0 && search.isAcceptable(bestGifScale, bestGifSize)) {
+				break;
+			}
+			if (search.isExhausted()) {
+				statusProcessor.appendStatus("Out of attempts, using the closest fit.");
+				break;
+			}
 		}
 
-		Files.copy(gifFile, path, StandardCopyOption.REPLACE_EXISTING);
+		if (bestGifSize < 0) {
+			throw new IOException("No GIF was created.");
+		}
+
+		Files.copy(bestGifFile, path, StandardCopyOption.REPLACE_EXISTING);
 
 	}
 
-	private void createGif(String overlay, int overlaySize) throws IOException {
+	/**
+	 * Create an attempt at the given scale, respecting a target width or height
+	 * if one was asked for.
+	 */
+	private EncodeAttempt createAttempt(double scale) throws IOException {
 		int newWidth, newHeight;
-
 		if (targetWidth > 0) {
 			newWidth = targetWidth;
 			scale = (double) newWidth / (double) scan.getWidth();
@@ -166,109 +637,1085 @@ public class VideoProcessor {
 			newWidth = (int) Math.ceil(scan.getWidth() * scale);
 			newHeight = (int) Math.ceil(scan.getHeight() * scale);
 		}
+		EncodeAttempt attempt = new EncodeAttempt(scale, newWidth, newHeight);
+		attempts.add(attempt);
+		return attempt;
+	}
 
-		PrintWriter writer = new PrintWriter(new StatusProcessorWriter(statusProcessor), true);
+	/**
+	 * Encode a few short samples of the intermediate and extrapolate their
+	 * size to the full length of the clip, repeating until the extrapolated
+	 * size is close to the target. Each sample costs a small fraction of a full
+	 * encode, so the full encodes start from a much better guess. The samples
+	 * are cut out of the intermediate with an EDL, which is exact because
+	 * every FFV1 frame is a keyframe.
+	 * 
+	 * @return a search containing the extrapolated sizes, whose prediction is
+	 *         where the full encodes should start.
+	 */
+	private ScaleSearch calibrate(double initialScale, double maxScale) throws IOException {
+		double clipLength = clipEndTime - clipStartTime;
+		double spacing = clipLength / CALIBRATION_WINDOWS;
+		StringBuilder edl = new StringBuilder("edl://");
+		String intermediate = intermediateFile.toString();
+		int intermediateLength = intermediate.getBytes(StandardCharsets.UTF_8).length;
+		for (int i = 0; i < CALIBRATION_WINDOWS; i++) {
+			double windowStart = (i + 0.5D) * spacing - 0.5D * CALIBRATION_WINDOW_LENGTH;
+			if (i > 0) {
+				edl.append(';');
+			}
+			edl.append(String.format(Locale.ROOT, "%%%d%%%s,%.3f,%.3f", intermediateLength, intermediate,
+					windowStart, CALIBRATION_WINDOW_LENGTH));
+		}
+		double sampleLength = CALIBRATION_WINDOWS * CALIBRATION_WINDOW_LENGTH;
 
-		writer.format("Testing Size: %dx%d%n%n", newWidth, newHeight);
+		ScaleSearch calibration = new ScaleSearch(minSize, maxSize, initialScale, maxScale, MAX_CALIBRATION_ROUNDS);
+		Set<Tuple<Integer, Integer>> sampledSizes = new HashSet<>();
+		PrintWriter quiet = new PrintWriter(new NullOutputStream());
+		for (int i = 0; i < MAX_CALIBRATION_ROUNDS; i++) {
+			double scale = calibration.nextScale();
+			int newWidth = (int) Math.ceil(scan.getWidth() * scale);
+			int newHeight = (int) Math.ceil(scan.getHeight() * scale);
+			if (newWidth <= 0 || newHeight <= 0 || !sampledSizes.add(new Tuple<>(newWidth, newHeight))) {
+				break;
+			}
+			statusProcessor.appendStatus(String.format("Calibrating... %dx%d", newWidth, newHeight));
+			EncodeAttempt sample = new EncodeAttempt(scale, newWidth, newHeight, edl.toString(), sampleLength);
+			attempts.add(sample);
+			long estimate;
+			try {
+				createGif(sample, null, 0, 1, quiet);
+				estimate = (long) (Files.size(sample.getGifFile()) * clipLength / sampleLength);
+			} finally {
+				sample.deleteFiles();
+			}
+			statusProcessor.appendStatus(String.format("Calibrating... %dx%d, about %d", newWidth, newHeight, estimate));
+			calibration.addMeasurement(scale, estimate);
+			double target = calibration.getTargetSize();
+			if (Math.abs(estimate - target) <= target * CALIBRATION_TOLERANCE
+					|| calibration.isAcceptable(scale, estimate)) {
+				break;
+			}
+		}
+		return calibration;
+	}
 
-		writer.print("Scaling Video... \r");
+	/**
+	 * Pick the scales for the next round of attempts. The first one is the
+	 * scale the search predicts, and the rest bracket it on alternating sides.
+	 * Sizes we've already tried and scales outside of the known bracket are
+	 * skipped, so this returns an empty list when there's nothing left to try.
+	 */
+	private List<EncodeAttempt> createRound(int candidates) throws IOException {
+		List<EncodeAttempt> round = new ArrayList<>();
+		double predicted = search.nextScale();
+		double spread = search.getIterations() == 0 ? SPECULATIVE_SPREAD : SPECULATIVE_SPREAD * 0.5D;
+		for (int i = 0; round.size() < candidates && i < 2 * candidates + 1; i++) {
+			int step = (i + 1) / 2;
+			double scale = predicted * (1D + (i % 2 == 1 ? -1D : 1D) * spread * step);
+			if (i > 0 && (scale <= search.getLowScale() || scale >= search.getHighScale())) {
+				continue;
+			}
+			EncodeAttempt attempt = createAttempt(scale);
+			Tuple<Integer, Integer> size = new Tuple<>(attempt.getWidth(), attempt.getHeight());
+			if (attempt.getWidth() <= 0 || attempt.getHeight() <= 0 || !triedSizes.add(size)) {
+				attempt.deleteFiles();
+				continue;
+			}
+			round.add(attempt);
+		}
+		return round;
+	}
+
+	/**
+	 * Encode a round of attempts. A single attempt is encoded on this thread
+	 * with full progress output. Several attempts are encoded at once on the
+	 * thread pool, and as each one finishes, the attempts that can no longer
+	 * beat it are cancelled. We assume a bigger scale always makes a bigger
+	 * file.
+	 */
+	private void runRound(List<EncodeAttempt> round, String overlay, int overlaySize) throws IOException {
+		concurrentAttempts = round.size();
+		if (round.size() == 1) {
+			EncodeAttempt attempt = round.get(0);
+			PrintWriter writer = new PrintWriter(new StatusProcessorWriter(statusProcessor), true);
+			try {
+				createGif(attempt, overlay, overlaySize, segments, writer);
+				attempt.setSize(
+						attempt.isAborted() ? attempt.getEstimatedSize() : Files.size(attempt.getGifFile()));
+				adjustScale(attempt);
+			} finally {
+				writer.close();
+				attempt.deleteFiles();
+			}
+			return;
+		}
 
+		StringBuilder sb = new StringBuilder("Testing Sizes:");
+		for (EncodeAttempt attempt : round) {
+			sb.append(String.format(" %dx%d", attempt.getWidth(), attempt.getHeight()));
+		}
+		statusProcessor.appendStatus(sb.toString());
+
+		BlockingQueue<EncodeAttempt> finished = new LinkedBlockingQueue<>();
+		for (EncodeAttempt attempt : round) {
+			ConcurrenceManager.executeLater(() -> {
+				PrintWriter quiet = new PrintWriter(new NullOutputStream());
+				try {
+					createGif(attempt, overlay, overlaySize, 1, quiet);
+					attempt.setSize(
+							attempt.isAborted() ? attempt.getEstimatedSize() : Files.size(attempt.getGifFile()));
+				} catch (IOException ioe) {
+					attempt.setError(ioe);
+				} finally {
+					finished.add(attempt);
+				}
+			});
+		}
+
+		IOException error = null;
+		for (int i = 0; i < round.size(); i++) {
+			EncodeAttempt attempt;
+			try {
+				attempt = finished.take();
+			} catch (InterruptedException ie) {
+				round.forEach(EncodeAttempt::cancel);
+				error = new ProcessTerminatedException(ie);
+				continue;
+			}
+			try {
+				if (attempt.isCancelled() || error != null) {
+					continue;
+				}
+				if (attempt.getError() != null) {
+					error = attempt.getError();
+					round.forEach(EncodeAttempt::cancel);
+					continue;
+				}
+				adjustScale(attempt);
+				cancelLosers(round, attempt);
+			} finally {
+				attempt.deleteFiles();
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Cancel every unfinished attempt in the round that can't do better than
+	 * the one that just finished.
+	 */
+	private void cancelLosers(List<EncodeAttempt> round, EncodeAttempt done) {
+		long size = done.getSize();
+		boolean tooBig = size > maxSize;
+		boolean acceptable = search.isAcceptable(done.getScale(), size);
+		boolean smallerThanTarget = size < search.getTargetSize();
+		for (EncodeAttempt other : round) {
+			if (other == done || other.getSize() >= 0 || other.isCancelled()) {
+				continue;
+			}
+			boolean bigger = other.getScale() > done.getScale();
+			if (tooBig && bigger || !tooBig && !acceptable && !bigger
+					|| acceptable && (smallerThanTarget ? !bigger : bigger)) {
+				other.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Decode the clip once into a lossless intermediate, applying everything
+	 * that doesn't depend on the output size: the framerate cut, the overlay,
+	 * and the downscale to the largest scale the search may try.
+	 */
+	private void createIntermediate(String overlay, int overlaySize, double maxScale) throws IOException {
+		intermediateWidth = (int) Math.ceil(scan.getWidth() * maxScale);
+		intermediateHeight = (int) Math.ceil(scan.getHeight() * maxScale);
+		intermediateFile = IOHelper.createTempFile();
+
+		PrintWriter writer = new PrintWriter(new StatusProcessorWriter(statusProcessor), true);
+		writer.print("Decoding Clip... \r");
 		writer.flush();
 
 		Resource mpv = ResourcesManager.getMpvLocation();
 
-		String videoFilter = TextHelper.getTextHelper().createVideoFilter(null, "format=bgr0", newWidth, newHeight,
-				false, decimator, scan.getWidth(), scan.getHeight(), overlaySize, overlay);
+		String videoFilter = TextHelper.getTextHelper().createVideoFilter(null, null, intermediateWidth,
+				intermediateHeight, false, decimator, scan.getWidth(), scan.getHeight(), overlaySize, overlay);
 
 		try {
-			scanPercentDone("Scaling Video... ", clipStartTime, clipEndTime - clipStartTime, writer,
+			scanPercentDone("Decoding Clip... ", clipStartTime, clipEndTime - clipStartTime, writer,
 					ConcurrenceManager.exec(false, mpv.getLocation().toString(), scan.getLocation().toString(),
 							"--config=no", "--msg-level=all=v", "--msg-color=no",
-							"--log-file=" + ResourcesManager.getLocalFile("mpv-scale.log"), "--input-terminal=no",
+							"--log-file=" + ResourcesManager.getLocalFile("mpv-decode.log"), "--input-terminal=no",
 							"--aid=no", "--sid=no", "--oautofps", "--of=nut", "--ovc=ffv1", "--correct-downscaling",
 							"--scale=spline36", "--dscale=spline36", "--cscale=spline36",
 							"--term-status-msg=${=playback-time}", "--sws-scaler=spline",
 							"--lavfi-complex=sws_flags=spline; [vid1]" + videoFilter + "[vo]",
 							"--start=" + this.clipStartTime, "--end=" + this.clipEndTime,
-							"--o=" + this.nutFile.toString()));
+							"--o=" + this.intermediateFile.toString()));
 		} catch (ProcessTerminatedException ex) {
-			writer.println("Scaling Video... Error.");
-			ConcurrenceManager.stopAll();
+			writer.println("Decoding Clip... Error.");
 			IOHelper.closeQuietly(writer);
 			throw ex;
 		}
 
-		writer.println("Scaling Video... Done.");
+		writer.println("Decoding Clip... Done.");
+		writer.close();
+	}
 
-		writer.print("Generating Palette... \r");
+	/**
+	 * Create the GIF for an attempt.
+	 * 
+	 * @param maxSegments
+	 *            The most segments the GIF may be split into. This should be 1
+	 *            if the attempt is already running on the thread pool
+	 *            alongside other attempts.
+	 */
+	private void createGif(EncodeAttempt attempt, String overlay, int overlaySize, int maxSegments,
+			PrintWriter writer) throws IOException {
+		int newWidth = attempt.getWidth();
+		int newHeight = attempt.getHeight();
+
+		writer.format("Testing Size: %dx%d%n%n", newWidth, newHeight);
+
+		double length = attempt.getSource() != null ? attempt.getDuration() : clipEndTime - clipStartTime;
+
+		Resource mpv = ResourcesManager.getMpvLocation();
+
+		String videoFilter;
+		List<String> inputArgs = new ArrayList<>();
+		inputArgs.add(mpv.getLocation().toString());
+		if (attempt.getSource() != null || intermediateFile != null) {
+			videoFilter = TextHelper.getTextHelper().createVideoFilter(null, "format=bgr0", newWidth, newHeight, false,
+					0, intermediateWidth, intermediateHeight, 0, null);
+			inputArgs.add(attempt.getSource() != null ? attempt.getSource() : intermediateFile.toString());
+		} else {
+			videoFilter = TextHelper.getTextHelper().createVideoFilter(null, "format=bgr0", newWidth, newHeight, false,
+					decimator, scan.getWidth(), scan.getHeight(), overlaySize, overlay);
+			inputArgs.add(scan.getLocation().toString());
+		}
+		inputArgs.addAll(Arrays.asList("--config=no", "--msg-level=all=v", "--msg-color=no", "--input-terminal=no",
+				"--aid=no", "--sid=no", "--oautofps", "--correct-downscaling", "--scale=spline36", "--dscale=spline36",
+				"--cscale=spline36", "--term-status-msg=${=playback-time}", "--sws-scaler=spline"));
+		double startOffset = attempt.getSource() != null || intermediateFile != null ? 0D : clipStartTime;
+
+		int segmentCount = getSegmentCount(maxSegments, length);
+		EncodeMode mode = getEncodeMode(segmentCount, getBufferedBytes(attempt, length),
+				singlePassBudget / concurrentAttempts);
+		long heapBytes = mode == EncodeMode.SINGLE_PASS ? (long) getCollectedBytes(attempt, length) : 0L;
+		if (heapBytes > 0 && !reserveHeap(heapBytes, Runtime.getRuntime().maxMemory())) {
+			// the other encodes have taken the heap we'd need
+			mode = EncodeMode.THREE_PASS;
+			heapBytes = 0L;
+		}
+		log(String.format("Encoding %dx%d: %s", newWidth, newHeight, mode));
+
+		try {
+			switch (mode) {
+				case SEGMENTED:
+					createGifSegmented(attempt, inputArgs, videoFilter, startOffset, length, segmentCount, writer);
+					break;
+				case SINGLE_PASS:
+					createGifSinglePass(attempt, inputArgs, videoFilter, startOffset, length, writer);
+					break;
+				default:
+					createGifThreePass(attempt, inputArgs, videoFilter, startOffset, length, writer);
+					break;
+			}
+		} finally {
+			if (heapBytes > 0) {
+				releaseHeap(heapBytes);
+			}
+		}
+		if (attempt.isAborted()) {
+			return;
+		}
+
+		if (ResourcesManager.loadedPkgs.contains("gifsicle")) {
+			try {
+				Resource gifsicle = ResourcesManager.getXLocation("gifsicle", "gifsicle");
+				writer.print("Crushing GIF... \r");
+				long rawSize = Files.size(attempt.getGifFile());
+				drain(attempt.exec(gifsicle.getLocation().toString(), "--batch", "--unoptimize", "--optimize=3",
+						attempt.getGifFile().toString()), true);
+				attempt.checkCancelled();
+				if (rawSize > 0) {
+					crushRatio = (double) Files.size(attempt.getGifFile()) / rawSize;
+				}
+				writer.println("Crushing GIF... Done.");
+			} catch (ProcessTerminatedException ex) {
+				writer.println("Crushing GIF... Error.");
+				stopAfterError(attempt);
+				throw ex;
+			}
+		}
+
+		if (Files.size(attempt.getGifFile()) == 0) {
+			throw new IOException("Created an empty GIF.");
+		}
+
+	}
+
+	/**
+	 * Create the GIF in one mpv process. The scaled video is split in two:
+	 * one branch goes to palettegen, and paletteuse buffers the other branch
+	 * until the palette arrives at the end of the stream. If we're writing the
+	 * GIF ourselves, mpv hands us the mapped frames, and we collect them all
+	 * before writing, since we can't know the palette until we've seen every
+	 * color. That costs another byte per pixel on top of what mpv buffers. We
+	 * can't project the final size until the frames arrive, so the budget
+	 * check only applies to writing them.
+	 */
+	private void createGifSinglePass(EncodeAttempt attempt, List<String> inputArgs, String videoFilter,
+			double startOffset, double length, PrintWriter writer) throws IOException {
+		writer.print("Generating GIF... \r");
 		writer.flush();
 
+		String graph = "sws_flags=spline; [vid1]" + videoFilter + ",split[a][b]; [a]palettegen=max_colors=144[p]; "
+				+ "[b][p]paletteuse=dither=bayer:bayer_scale=3:diff_mode=rectangle";
+		List<String> args = new ArrayList<>(inputArgs);
+		args.addAll(Arrays.asList("--start=" + startOffset, "--end=" + (startOffset + length),
+				"--log-file=" + ResourcesManager.getLocalFile("mpv-gif.log")));
+		if (javaEncoder) {
+			args.addAll(Arrays.asList("--really-quiet", "--of=rawvideo", "--ovc=rawvideo",
+					"--lavfi-complex=" + graph + ",format=bgr24[vo]", "--o=-"));
+		} else {
+			args.addAll(Arrays.asList("--of=gif", "--ovc=gif", "--lavfi-complex=" + graph + "[vo]",
+					"--o=" + attempt.getGifFile().toString()));
+		}
+
+		boolean checkingBudget = minSize > 0 && attempt.getSource() == null;
+
 		try {
-			ConcurrenceManager.exec(false, true, mpv.getLocation().toString(), this.nutFile.toString(), "--config=no",
-					"--msg-level=all=v", "--msg-color=no",
-					"--log-file=" + ResourcesManager.getLocalFile("mpv-palettegen.log"), "--input-terminal=no",
-					"--aid=no", "--sid=no", "--oautofps", "--of=image2", "--ovc=png",
-					"--lavfi-complex=[vid1]palettegen=max_colors=144[vo]", "--o=" + this.paletteFile.toString());
+			if (javaEncoder) {
+				writeCollectedGif(attempt, length, writer, checkingBudget,
+						attempt.execData(args.toArray(new String[args.size()])));
+			} else {
+				scanPercentDone("Generating GIF... ", startOffset, length, writer,
+						attempt.exec(args.toArray(new String[args.size()])));
+			}
+			if (attempt.isAborted()) {
+				writer.println("Generating GIF... Too Big.");
+				return;
+			}
+			attempt.checkCancelled();
 		} catch (ProcessTerminatedException ex) {
-			writer.println("Generating Palette... Error.");
-			ConcurrenceManager.stopAll();
-			IOHelper.closeQuietly(writer);
+			if (attempt.isAborted()) {
+				writer.println("Generating GIF... Too Big.");
+				return;
+			}
+			writer.println("Generating GIF... Error.");
+			stopAfterError(attempt);
 			throw ex;
 		}
 
-		writer.println("Generating Palette... Done.");
+		writer.println("Generating GIF... Done.");
+	}
+
+	/**
+	 * Write the GIF ourselves from raw bgr24 frames that are already mapped to
+	 * a palette we don't know. We give each color an index the first time we
+	 * see it, and once we've read every frame, the colors we found are the
+	 * palette.
+	 */
+	private void writeCollectedGif(EncodeAttempt attempt, double length, PrintWriter writer, boolean checkingBudget,
+			InputStream frames) throws IOException {
+		ColorIndexer colors = new ColorIndexer();
+		Deque<byte[]> collected = new ArrayDeque<>();
+		DataInputStream in = new DataInputStream(frames);
+		try {
+			byte[] bgr = new byte[attempt.getWidth() * attempt.getHeight() * 3];
+			while (readFrame(in, bgr)) {
+				byte[] indices = new byte[attempt.getWidth() * attempt.getHeight()];
+				if (!colors.index(bgr, indices)) {
+					throw new IOException("paletteuse produced more than 256 colors.");
+				}
+				collected.add(indices);
+			}
+		} finally {
+			IOHelper.closeQuietly(in);
+		}
+		attempt.checkCancelled();
+		if (collected.isEmpty()) {
+			// createGif complains about the empty file
+			return;
+		}
+		// polling lets go of each frame once the writer has it
+		writeGif(attempt, attempt.getGifFile(), colors.toPalette(), length, (progress, size) -> {
+			writer.format("Generating GIF... %.2f%%\r", progress * 100D);
+			if (checkingBudget) {
+				checkBudget(attempt, progress, size);
+			}
+		}, collected::poll);
+	}
+
+	/**
+	 * Create the GIF in three mpv processes: scale the video to a lossless
+	 * file, generate a palette from it, and then read it again to apply the
+	 * palette. This keeps memory use flat no matter how long the clip is.
+	 */
+	private void createGifThreePass(EncodeAttempt attempt, List<String> inputArgs, String videoFilter,
+			double startOffset, double length, PrintWriter writer) throws IOException {
+		writer.print("Scaling Video... \r");
+		writer.flush();
+
+		List<String> scaleArgs = new ArrayList<>(inputArgs);
+		scaleArgs.addAll(Arrays.asList("--start=" + startOffset, "--end=" + (startOffset + length),
+				"--log-file=" + ResourcesManager.getLocalFile("mpv-scale.log"), "--of=nut",
+				"--ovc=ffv1", "--lavfi-complex=sws_flags=spline; [vid1]" + videoFilter + "[vo]",
+				"--o=" + attempt.getNutFile().toString()));
+
+		try {
+			scanPercentDone("Scaling Video... ", startOffset, length, writer,
+					attempt.exec(scaleArgs.toArray(new String[scaleArgs.size()])));
+			attempt.checkCancelled();
+		} catch (ProcessTerminatedException ex) {
+			writer.println("Scaling Video... Error.");
+			stopAfterError(attempt);
+			throw ex;
+		}
+
+		writer.println("Scaling Video... Done.");
+
+		generatePalette(attempt, Collections.singletonList(attempt.getNutFile()), length, writer);
 
 		writer.print("Generating GIF... \r");
+		writer.flush();
+
+		boolean checkingBudget = minSize > 0 && attempt.getSource() == null;
 
 		try {
-			scanPercentDone("Generating GIF... ", 0D, clipEndTime - clipStartTime, writer,
-					ConcurrenceManager.exec(false, mpv.getLocation().toString(), this.paletteFile.toString(),
-							"--external-file=" + this.nutFile.toString(), "--config=no", "--msg-level=all=v",
-							"--msg-color=no", "--log-file=" + ResourcesManager.getLocalFile("mpv-paletteuse.log"),
+			Palette palette = javaEncoder ? readPalette(attempt.getPaletteFile()) : null;
+			Quantizer quantizer = javaEncoder && javaQuantizer ? new Quantizer(palette) : null;
+			encodeGif(attempt, attempt.getNutFile(), attempt.getGifFile(), palette, quantizer, length,
+					"mpv-paletteuse.log", (progress, size) -> {
+						writer.format("Generating GIF... %.2f%%\r", progress * 100D);
+						if (checkingBudget) {
+							checkBudget(attempt, progress, size);
+						}
+					});
+			if (attempt.isAborted()) {
+				writer.println("Generating GIF... Too Big.");
+				return;
+			}
+			attempt.checkCancelled();
+		} catch (ProcessTerminatedException ex) {
+			if (attempt.isAborted()) {
+				writer.println("Generating GIF... Too Big.");
+				return;
+			}
+			writer.println("Generating GIF... Error.");
+			stopAfterError(attempt);
+			throw ex;
+		}
+
+		writer.println("Generating GIF... Done.");
+	}
+
+	/**
+	 * This is told how far along a GIF is, from 0 to 1, and how many bytes of
+	 * it have been written so far.
+	 */
+	@FunctionalInterface
+	private interface EncodeProgress {
+		public void update(double progress, long size);
+	}
+
+	/**
+	 * Map a scaled video to the palette and write it as a GIF. If we have a
+	 * quantizer, mpv just decodes the video and we do the rest. If we only
+	 * have the palette, mpv runs paletteuse and we turn its output back into
+	 * indices. If we have neither, mpv does everything and writes the GIF
+	 * itself.
+	 * 
+	 * @param palette
+	 *            The palette, or null to have mpv write the GIF.
+	 * @param quantizer
+	 *            The quantizer for the palette, or null to have mpv map the
+	 *            frames to it.
+	 * @param logName
+	 *            The name of mpv's log file.
+	 */
+	private void encodeGif(EncodeAttempt attempt, Path nutFile, Path gifFile, Palette palette, Quantizer quantizer,
+			double length, String logName, EncodeProgress progress) throws IOException {
+		Resource mpv = ResourcesManager.getMpvLocation();
+		if (palette != null) {
+			InputStream in;
+			if (quantizer != null) {
+				in = attempt.execData(mpv.getLocation().toString(), nutFile.toString(), "--config=no",
+						"--msg-level=all=v", "--msg-color=no", "--log-file=" + ResourcesManager.getLocalFile(logName),
+						"--input-terminal=no", "--really-quiet", "--aid=no", "--sid=no", "--oautofps",
+						"--of=rawvideo", "--ovc=rawvideo", "--lavfi-complex=[vid1]format=bgr24[vo]", "--o=-");
+			} else {
+				in = attempt.execData(mpv.getLocation().toString(), attempt.getPaletteFile().toString(),
+						"--external-file=" + nutFile.toString(), "--config=no", "--msg-level=all=v",
+						"--msg-color=no", "--log-file=" + ResourcesManager.getLocalFile(logName),
+						"--input-terminal=no", "--really-quiet", "--aid=no", "--sid=no", "--oautofps",
+						"--of=rawvideo", "--ovc=rawvideo",
+						"--lavfi-complex=[vid2][vid1]paletteuse=dither=bayer:bayer_scale=3:diff_mode=rectangle,"
+								+ "format=bgr24[vo]",
+						"--o=-");
+			}
+			DataInputStream din = new DataInputStream(in);
+			try {
+				writeGif(attempt, gifFile, palette, length, progress,
+						mapFrames(din, attempt.getWidth(), attempt.getHeight(), palette, quantizer));
+			} finally {
+				IOHelper.closeQuietly(din);
+			}
+		} else {
+			scanPercentDone("", 0D, length, new PrintWriter(new NullOutputStream()),
+					done -> progress.update(done, sizeSoFar(gifFile)),
+					attempt.exec(mpv.getLocation().toString(), attempt.getPaletteFile().toString(),
+							"--external-file=" + nutFile.toString(), "--config=no", "--msg-level=all=v",
+							"--msg-color=no", "--log-file=" + ResourcesManager.getLocalFile(logName),
 							"--input-terminal=no", "--aid=no", "--sid=no", "--oautofps", "--of=gif", "--ovc=gif",
 							"--term-status-msg=${=playback-time}",
 							"--lavfi-complex=[vid2][vid1]paletteuse=dither=bayer:bayer_scale=3:diff_mode=rectangle[vo]",
-							"--o=" + this.gifFile.toString()));
+							"--o=" + gifFile.toString()));
+		}
+	}
+
+	/**
+	 * Generate the palette for an attempt, or reuse one from the palette cache
+	 * if the colors haven't drifted.
+	 * 
+	 * @param nutFiles
+	 *            The scaled video, in one file or several segments of equal
+	 *            length.
+	 */
+	private void generatePalette(EncodeAttempt attempt, List<Path> nutFiles, double length, PrintWriter writer)
+			throws IOException {
+		writer.print("Generating Palette... \r");
+		writer.flush();
+
+		Resource mpv = ResourcesManager.getMpvLocation();
+
+		try {
+			// calibration samples don't look like the whole clip
+			double[] histogram = null;
+			if (paletteKey != null && attempt.getSource() == null) {
+				histogram = sampleHistogram(attempt, nutFiles, length);
+				attempt.checkCancelled();
+				if (paletteCache.load(paletteKey, histogram, attempt.getPaletteFile())) {
+					writer.println("Generating Palette... Reused.");
+					return;
+				}
+			}
+			String source;
+			if (nutFiles.size() == 1) {
+				source = nutFiles.get(0).toString();
+			} else {
+				StringBuilder edl = new StringBuilder("edl://");
+				for (Path nutFile : nutFiles) {
+					if (edl.length() > 6) {
+						edl.append(';');
+					}
+					appendEdlFile(edl, nutFile);
+				}
+				source = edl.toString();
+			}
+			drain(attempt.exec(mpv.getLocation().toString(), source, "--config=no", "--msg-level=all=v",
+					"--msg-color=no", "--log-file=" + ResourcesManager.getLocalFile("mpv-palettegen.log"),
+					"--input-terminal=no", "--aid=no", "--sid=no", "--oautofps", "--of=image2", "--ovc=png",
+					"--lavfi-complex=[vid1]palettegen=max_colors=144[vo]",
+					"--o=" + attempt.getPaletteFile().toString()), false);
+			attempt.checkCancelled();
+			if (histogram != null) {
+				paletteCache.store(paletteKey, histogram, attempt.getPaletteFile());
+			}
 		} catch (ProcessTerminatedException ex) {
-			writer.println("Generating GIF... Error.");
-			ConcurrenceManager.stopAll();
-			IOHelper.closeQuietly(writer);
+			writer.println("Generating Palette... Error.");
+			stopAfterError(attempt);
 			throw ex;
 		}
 
-		writer.println("Generating GIF... Done.");
+		writer.println("Generating Palette... Done.");
+	}
 
-		if (ResourcesManager.loadedPkgs.contains("gifsicle")) {
+	/**
+	 * Decode a handful of single frames spread evenly across the scaled video,
+	 * and return their color histogram. Every FFV1 frame is a keyframe, so
+	 * this is cheap no matter where the frames are.
+	 * 
+	 * @return the normalized histogram, or null if no frames were decoded.
+	 */
+	private double[] sampleHistogram(EncodeAttempt attempt, List<Path> nutFiles, double length)
+			throws IOException {
+		double frameDuration = (1D + decimator) / scan.getFramerate();
+		double fileLength = length / nutFiles.size();
+		StringBuilder edl = new StringBuilder("edl://");
+		for (int i = 0; i < PALETTE_SAMPLE_FRAMES; i++) {
+			double time = (i + 0.5D) * length / PALETTE_SAMPLE_FRAMES;
+			int file = Math.min(nutFiles.size() - 1, (int) (time / fileLength));
+			if (i > 0) {
+				edl.append(';');
+			}
+			appendEdlFile(edl, nutFiles.get(file));
+			edl.append(String.format(Locale.ROOT, ",%.3f,%.3f", time - file * fileLength, frameDuration));
+		}
+
+		Resource mpv = ResourcesManager.getMpvLocation();
+		InputStream in = attempt.execData(mpv.getLocation().toString(), edl.toString(), "--config=no",
+				"--msg-level=all=v", "--msg-color=no", "--log-file=" + ResourcesManager.getLocalFile("mpv-sample.log"),
+				"--input-terminal=no", "--really-quiet", "--aid=no", "--sid=no", "--oautofps", "--of=rawvideo",
+				"--ovc=rawvideo", "--lavfi-complex=[vid1]format=bgr24[vo]", "--o=-");
+		long[] counts = new long[PaletteCache.HISTOGRAM_SIZE];
+		byte[] frame = new byte[attempt.getWidth() * attempt.getHeight() * 3];
+		DataInputStream din = new DataInputStream(in);
+		try {
+			while (readFrame(din, frame)) {
+				PaletteCache.addToHistogram(counts, frame, frame.length);
+			}
+		} finally {
+			IOHelper.closeQuietly(din);
+		}
+		return PaletteCache.normalize(counts);
+	}
+
+	/**
+	 * Append a file to an EDL, with its length in bytes in front so mpv
+	 * doesn't have to worry about commas or semicolons in the name.
+	 */
+	private static void appendEdlFile(StringBuilder edl, Path file) {
+		String name = file.toString();
+		edl.append('%').append(name.getBytes(StandardCharsets.UTF_8).length).append('%').append(name);
+	}
+
+	/**
+	 * Read the palette that palettegen created.
+	 */
+	private static Palette readPalette(Path paletteFile) throws IOException {
+		BufferedImage image = ImageIO.read(paletteFile.toFile());
+		if (image == null) {
+			throw new IOException("Could not read the palette.");
+		}
+		return Palette.fromImage(image);
+	}
+
+	/**
+	 * This hands out frames of palette indices, one at a time.
+	 */
+	@FunctionalInterface
+	private interface FrameSource {
+		/**
+		 * Returns the next frame, which the caller may keep, or null if there
+		 * are no more.
+		 */
+		public byte[] next() throws IOException;
+	}
+
+	/**
+	 * Returns the frames of raw bgr24 video, mapped to a palette.
+	 * 
+	 * @param quantizer
+	 *            The quantizer that maps the frames to the palette, or null if
+	 *            they've already been mapped, in which case each color is
+	 *            looked up in the palette to get its index back.
+	 */
+	private static FrameSource mapFrames(DataInputStream in, int width, int height, Palette palette,
+			Quantizer quantizer) {
+		byte[] bgr = new byte[width * height * 3];
+		return () -> {
+			if (!readFrame(in, bgr)) {
+				return null;
+			}
+			byte[] indices = new byte[width * height];
+			if (quantizer != null) {
+				quantizer.quantize(bgr, width, height, indices);
+			} else {
+				for (int i = 0, j = 0; i < indices.length; i++, j += 3) {
+					int rgb = (bgr[j + 2] & 0xFF) << 16 | (bgr[j + 1] & 0xFF) << 8 | bgr[j] & 0xFF;
+					int index = palette.indexOf(rgb);
+					indices[i] = (byte) (index >= 0 ? index : palette.nearestIndex(rgb));
+				}
+			}
+			return indices;
+		};
+	}
+
+	/**
+	 * Write the GIF ourselves. Since the GifWriter knows exactly how many bytes
+	 * it has written, the budget check doesn't have to guess from the file on
+	 * disk. If the attempt is aborted while we're writing, we stop and leave
+	 * the GIF unfinished.
+	 */
+	private void writeGif(EncodeAttempt attempt, Path gifFile, Palette palette, double length,
+			EncodeProgress progress, FrameSource frames) throws IOException {
+		double frameDuration = (1D + decimator) / scan.getFramerate();
+		double expectedFrames = Math.max(1D, Math.ceil(length / frameDuration));
+		GifWriter gif = new GifWriter(gifFile, attempt.getWidth(), attempt.getHeight(), 0);
+		boolean finished = false;
+		try {
+			int frame = 0;
+			long lastTime = 0L;
+			byte[] indices;
+			while ((indices = frames.next()) != null) {
+				frame++;
+				// round the timestamps, not the delays, so the error doesn't add up
+				long time = Math.round(frame * frameDuration * 100D);
+				gif.writeFrame(indices, palette, (int) (time - lastTime));
+				lastTime = time;
+				progress.update(Math.min(1D, frame / expectedFrames), gif.getBytesWritten());
+				if (attempt.isAborted()) {
+					return;
+				}
+			}
+			attempt.checkCancelled();
+			finished = !attempt.isAborted();
+		} finally {
+			if (finished) {
+				gif.close();
+			} else {
+				gif.abort();
+			}
+		}
+	}
+
+	/**
+	 * Read one whole frame of raw video.
+	 * 
+	 * @return false if the video ended before this frame started.
+	 */
+	private static boolean readFrame(DataInputStream in, byte[] frame) throws ProcessTerminatedException {
+		try {
+			int first = in.read();
+			if (first < 0) {
+				return false;
+			}
+			frame[0] = (byte) first;
+			in.readFully(frame, 1, frame.length - 1);
+			return true;
+		} catch (IOException ioe) {
+			throw new ProcessTerminatedException(ioe);
+		}
+	}
+
+	/**
+	 * Create the GIF in segments. The clip is split into segments of equal
+	 * length, which are scaled in parallel. We generate one palette from all
+	 * of them, so the segments match, and then encode each segment with it in
+	 * parallel, the same way the last pass of createGifThreePass does. Finally
+	 * the segment GIFs are joined into one. The budget check looks at all the
+	 * segments together, adding up their sizes so far.
+	 */
+	private void createGifSegmented(EncodeAttempt attempt, List<String> inputArgs, String videoFilter,
+			double startOffset, double length, int segmentCount, PrintWriter writer) throws IOException {
+		List<Path> nutFiles = new ArrayList<>();
+		List<Path> gifFiles = new ArrayList<>();
+		try {
+			for (int i = 0; i < segmentCount; i++) {
+				nutFiles.add(IOHelper.createTempFile());
+				gifFiles.add(IOHelper.createTempFile());
+			}
+
+			writer.print("Scaling Video... \r");
+			writer.flush();
+
+			double[] bounds = getSegmentBounds(attempt, startOffset, length, segmentCount);
+			DoubleConsumer[] scaleProgress = createSegmentProgress("Scaling Video... ", segmentCount, writer);
 			try {
-				Resource gifsicle = ResourcesManager.getXLocation("gifsicle", "gifsicle");
-				writer.print("Crushing GIF... \r");
-				ConcurrenceManager.exec(true, true, gifsicle.getLocation().toString(), "--batch", "--unoptimize",
-						"--optimize=3", this.gifFile.toString());
-				writer.println("Crushing GIF... Done.");
+				runSegments(segmentCount, i -> {
+					double segmentStart = bounds[i];
+					double segmentEnd = bounds[i + 1];
+					List<String> scaleArgs = new ArrayList<>(inputArgs);
+					scaleArgs.addAll(Arrays.asList("--start=" + segmentStart, "--end=" + segmentEnd,
+							"--log-file=" + ResourcesManager.getLocalFile("mpv-scale-" + i + ".log"), "--of=nut",
+							"--ovc=ffv1", "--lavfi-complex=sws_flags=spline; [vid1]" + videoFilter + "[vo]",
+							"--o=" + nutFiles.get(i).toString()));
+					scanPercentDone("", segmentStart, segmentEnd - segmentStart, new PrintWriter(new NullOutputStream()),
+							scaleProgress[i], attempt.exec(scaleArgs.toArray(new String[scaleArgs.size()])));
+				});
+				attempt.checkCancelled();
 			} catch (ProcessTerminatedException ex) {
-				writer.println("Crushing GIF... Error.");
-				ConcurrenceManager.stopAll();
-				writer.close();
+				writer.println("Scaling Video... Error.");
+				stopAfterError(attempt);
 				throw ex;
 			}
+
+			writer.println("Scaling Video... Done.");
+
+			generatePalette(attempt, nutFiles, length, writer);
+
+			writer.print("Generating GIF... \r");
+			writer.flush();
+
+			DoubleConsumer[] gifProgress = createSegmentProgress("Generating GIF... ", segmentCount, writer);
+			SegmentBudget budget = minSize > 0 && attempt.getSource() == null ? new SegmentBudget(attempt, bounds)
+					: null;
+			try {
+				Palette palette = javaEncoder ? readPalette(attempt.getPaletteFile()) : null;
+				Quantizer quantizer = javaEncoder && javaQuantizer ? new Quantizer(palette) : null;
+				runSegments(segmentCount, i -> {
+					encodeGif(attempt, nutFiles.get(i), gifFiles.get(i), palette, quantizer, bounds[i + 1] - bounds[i],
+							"mpv-paletteuse-" + i + ".log", (progress, size) -> {
+								gifProgress[i].accept(progress);
+								if (budget != null) {
+									budget.update(i, progress, size);
+								}
+							});
+				});
+				if (attempt.isAborted()) {
+					writer.println("Generating GIF... Too Big.");
+					return;
+				}
+				attempt.checkCancelled();
+			} catch (ProcessTerminatedException ex) {
+				if (attempt.isAborted()) {
+					writer.println("Generating GIF... Too Big.");
+					return;
+				}
+				writer.println("Generating GIF... Error.");
+				stopAfterError(attempt);
+				throw ex;
+			}
+
+			GifConcatenator.concatenate(gifFiles, attempt.getGifFile());
+
+			writer.println("Generating GIF... Done.");
+		} finally {
+			nutFiles.forEach(IOHelper::deleteTempFile);
+			gifFiles.forEach(IOHelper::deleteTempFile);
 		}
+	}
 
-		writer.close();
+	/**
+	 * Returns where each segment starts, followed by where the last one ends.
+	 * The segments are normally all the same length. But if we're reading the
+	 * original video, and we have its KeyframeIndex, each boundary is moved to
+	 * the nearest keyframe, as long as that's no more than half a segment
+	 * away. Then every segment starts where mpv can start decoding, rather
+	 * than decoding part of the segment before it just to throw it away.
+	 */
+	private double[] getSegmentBounds(EncodeAttempt attempt, double startOffset, double length, int segmentCount) {
+		double[] bounds = new double[segmentCount + 1];
+		for (int i = 0; i <= segmentCount; i++) {
+			bounds[i] = startOffset + length * i / segmentCount;
+		}
+		KeyframeIndex index = attempt.getSource() == null && intermediateFile == null
+				? KeyframeIndex.getIndex(scan) : null;
+		if (index == null) {
+			return bounds;
+		}
+		double slack = length / segmentCount / 2D;
+		for (int i = 1; i < segmentCount; i++) {
+			double before = index.getSeekPoint(bounds[i]);
+			double after = index.getNextKeyframe(bounds[i]);
+			double nearest = bounds[i] - before <= after - bounds[i] ? before : after;
+			if (Math.abs(nearest - bounds[i]) <= slack && nearest > bounds[i - 1]) {
+				bounds[i] = nearest;
+			}
+		}
+		return bounds;
 	}
 
-	private static void scanPercentDone(String prefix, double startOffset, double length, PrintWriter writer,
-			InputStream in) {
-		BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
-		br.lines().forEachOrdered(line -> {
-			double realTime;
+	/**
+	 * Run a stage once for each segment, in parallel, and wait for all of
+	 * them. The last segment runs on this thread. If any of them fail, this
+	 * throws the first failure once they've all finished.
+	 */
+	private static void runSegments(int segmentCount, ExceptionalConsumer<Integer> stage) throws IOException {
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < segmentCount - 1; i++) {
+			int segment = i;
+			futures.add(ConcurrenceManager.executeLater(() -> ExceptionalConsumer.uncheck(stage).accept(segment)));
+		}
+		IOException error = null;
+		try {
+			stage.accept(segmentCount - 1);
+		} catch (IOException ioe) {
+			error = ioe;
+		} catch (Exception ex) {
+			error = new IOException(ex);
+		}
+		for (Future<?> future : futures) {
 			try {
-				realTime = Double.parseDouble(line);
-			} catch (NumberFormatException nfe) {
-				return;
+				future.get();
+			} catch (InterruptedException ie) {
+				if (error == null) {
+					error = new ProcessTerminatedException(ie);
+				}
+			} catch (ExecutionException ee) {
+				if (error == null) {
+					error = ee.getCause() instanceof IOException ? (IOException) ee.getCause()
+							: new IOException(ee.getCause());
+				}
 			}
-			double percent = (realTime - startOffset) * 100D / length;
-			writer.format("%s%.2f%%\r", prefix, percent);
-		});
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Create a progress consumer for each segment. Whenever one of them is
+	 * told about progress, the average progress of all the segments is
+	 * printed.
+	 */
+	private static DoubleConsumer[] createSegmentProgress(String prefix, int segmentCount, PrintWriter writer) {
+		double[] done = new double[segmentCount];
+		DoubleConsumer[] consumers = new DoubleConsumer[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			int segment = i;
+			consumers[i] = progress -> {
+				synchronized (done) {
+					done[segment] = progress;
+					writer.format("%s%.2f%%\r", prefix, Arrays.stream(done).sum() * 100D / segmentCount);
+				}
+			};
+		}
+		return consumers;
+	}
+
+	/**
+	 * This keeps track of how far along each segment of a GIF is, and how big
+	 * it is so far, so the budget check can be run on the whole GIF while its
+	 * segments are being written in parallel.
+	 */
+	private class SegmentBudget {
+		private final EncodeAttempt attempt;
+		private final double[] lengths;
+		private final double totalLength;
+		private final double[] progress;
+		private final long[] sizes;
+
+		/**
+		 * @param bounds
+		 *            Where each segment starts, followed by where the last one
+		 *            ends.
+		 */
+		private SegmentBudget(EncodeAttempt attempt, double[] bounds) {
+			this.attempt = attempt;
+			this.lengths = new double[bounds.length - 1];
+			for (int i = 0; i < lengths.length; i++) {
+				lengths[i] = bounds[i + 1] - bounds[i];
+			}
+			this.totalLength = bounds[bounds.length - 1] - bounds[0];
+			this.progress = new double[lengths.length];
+			this.sizes = new long[lengths.length];
+		}
+
+		/**
+		 * Record the progress and size of one segment, and check the budget
+		 * of the whole GIF. The progress of the whole GIF is the progress of
+		 * each segment, weighted by its length.
+		 */
+		private synchronized void update(int segment, double segmentProgress, long segmentSize) {
+			progress[segment] = segmentProgress;
+			sizes[segment] = segmentSize;
+			double done = 0D;
+			long size = 0L;
+			for (int i = 0; i < lengths.length; i++) {
+				done += progress[i] * lengths[i];
+				size += sizes[i];
+			}
+			checkBudget(attempt, totalLength > 0D ? done / totalLength : 0D, size);
+		}
+	}
+
+	/**
+	 * Returns the size of a file mpv is writing, or zero if it hasn't created
+	 * it yet.
+	 */
+	private static long sizeSoFar(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException ioe) {
+			return 0L;
+		}
+	}
+
+	/**
+	 * Called as the GIF is being written. If the GIF has already grown past
+	 * what could fit in the budget after crushing, or if it's on track to end
+	 * up way over, abort it. The estimate of its final size is extrapolated
+	 * from its progress so far.
+	 * 
+	 * @param progress
+	 *            How far along the GIF is, from 0 to 1.
+	 * @param partialSize
+	 *            How big the GIF is so far.
+	 */
+	private void checkBudget(EncodeAttempt attempt, double progress, long partialSize) {
+		if (attempt.isAborted()) {
+			return;
+		}
+		double ratio = crushRatio;
+		double threshold = maxSize / ratio;
+		double projected = progress > 0D ? partialSize / Math.min(progress, 1D) : partialSize;
+		if (partialSize > threshold
+				|| progress >= MIN_PROJECTION_PROGRESS && projected > threshold * PROJECTION_MARGIN) {
+			long estimate = (long) Math.max(projected * ratio, maxSize + 1D);
+			log(String.format("Aborting %dx%d at %.2f%%, %d bytes so far, estimated %d.", attempt.getWidth(),
+					attempt.getHeight(), progress * 100D, partialSize, estimate));
+			attempt.abort(estimate);
+		}
+	}
+
+	/**
+	 * If an attempt failed on its own, stop every attempt of this conversion.
+	 * If it was cancelled, that was on purpose, so leave the other attempts
+	 * alone. Other conversions are never touched.
+	 */
+	private void stopAfterError(EncodeAttempt attempt) {
+		if (!attempt.isCancelled()) {
+			attempts.forEach(EncodeAttempt::cancel);
+		}
+	}
+
+	/**
+	 * Read the output of a process until it ends. If doLog is set, the output
+	 * is copied to the full log, otherwise it's discarded.
+	 */
+	private static void drain(InputStream in, boolean doLog) throws ProcessTerminatedException {
+		try {
+			int i;
+			while (-1 != (i = in.read())) {
+				if (doLog) {
+					TumblGIFifier.getLogFileOutputStream().write(i);
+				}
+			}
+			TumblGIFifier.getLogFileOutputStream().flush();
+		} catch (IOException ioe) {
+			throw new ProcessTerminatedException(ioe);
+		} finally {
+			IOHelper.closeQuietly(in);
+		}
+	}
+
+	private static void scanPercentDone(String prefix, double startOffset, double length, PrintWriter writer,
+			InputStream in) throws ProcessTerminatedException {
+		scanPercentDone(prefix, startOffset, length, writer, null, in);
+	}
+
+	/**
+	 * Print the progress of an mpv process that reports its playback time. If
+	 * the progress consumer is not null, it's also told how far along the
+	 * process is, from 0 to 1.
+	 */
+	private static void scanPercentDone(String prefix, double startOffset, double length, PrintWriter writer,
+			DoubleConsumer progress, InputStream in) throws ProcessTerminatedException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		try {
+			br.lines().forEachOrdered(line -> {
+				double realTime;
+				try {
+					realTime = Double.parseDouble(line);
+				} catch (NumberFormatException nfe) {
+					return;
+				}
+				double percent = (realTime - startOffset) * 100D / length;
+				writer.format("%s%.2f%%\r", prefix, percent);
+				if (progress != null) {
+					progress.accept(percent / 100D);
+				}
+			});
+		} catch (UncheckedIOException uioe) {
+			throw new ProcessTerminatedException(uioe.getCause());
+		} finally {
+			IOHelper.closeQuietly(br);
+		}
 	}
 
 }
@@ -5,7 +5,6 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import thebombzen.tumblgififier.util.ConcurrenceManager;
 import thebombzen.tumblgififier.util.io.IOHelper;
@@ -22,32 +21,75 @@ public class VideoScan {
 	private final int scanHeight;
 
 	public static VideoScan scanFile(StatusProcessor processor, Path pathname) {
-		// these are final or effectively final -_-
-		AtomicInteger widthA = new AtomicInteger(-1);
-		AtomicInteger heightA = new AtomicInteger(-1);
-		AtomicReference<Double> durationA = new AtomicReference<>(-1D);
-		AtomicReference<Double> framerateA = new AtomicReference<>(-1D);
 		processor.appendStatus("Scanning File... ");
+		VideoScan cached = ProbeCache.getProbeCache().get(pathname);
+		if (cached != null) {
+			log("Found cached scan: " + cached);
+			return cached;
+		}
+		double[] probe = probe(pathname, "probe", "--pause");
+		if (probe == null) {
+			// The header couldn't tell us, so we seek to the end to find out
+			// how long it is, which is slow.
+			log("Fast probe failed, seeking to the end.");
+			probe = probe(pathname, "playback_time", "-start=9999:99:99");
+		}
+		if (probe == null) {
+			probe = new double[]{-1D, -1D, -1D, -1D};
+		}
+
+		double duration = probe[0];
+		double framerate = probe[3];
+		int width = (int) probe[1];
+		int height = (int) probe[2];
+
+		if (duration < 0 || height < 0 || width < 0 || framerate < 0) {
+			processor.appendStatus("File Format Error.");
+			return null;
+		}
+
+		if (duration == 0D && framerate == 1D) {
+			processor.appendStatus("Did you really just open a still image or a text file?");
+			return null;
+		}
+
+		VideoScan scan = new VideoScan(width, height, duration, pathname, framerate);
+		ProbeCache.getProbeCache().put(scan);
+		return scan;
+	}
+
+	/**
+	 * Run mpv with one of our probe scripts, which report the duration, width,
+	 * height, and framerate of the file on a line of their own.
+	 * 
+	 * @param scriptName
+	 *            The name mpv knows the script by, which prefixes its lines.
+	 *            The script is the same, with - for _, plus .lua.
+	 * @param startArg
+	 *            How mpv should start, e.g. paused, or seeking to the end.
+	 * @return {duration, width, height, framerate}, or null if the script
+	 *         didn't report them.
+	 */
+	private static double[] probe(Path pathname, String scriptName, String startArg) {
+		String prefix = "[" + scriptName + "] ";
+		Path script = ResourcesManager.getLocalFile("lib").resolve(scriptName.replace('_', '-') + ".lua");
 		Resource mpv = ResourcesManager.getMpvLocation();
+		AtomicReference<double[]> result = new AtomicReference<>(null);
 		BufferedReader br = null;
 		try {
 			br = new BufferedReader(new InputStreamReader(
 					ConcurrenceManager.exec(false, mpv.getLocation().toString(), "--config=no", "--msg-level=all=v",
 							"--msg-color=no", "--log-file=" + ResourcesManager.getLocalFile("mpv-probe.log"),
-							"--input-terminal=no", "-start=9999:99:99", "--vo=null", "--aid=no", "--sid=no",
-							"--script=" + ResourcesManager.getLocalFile("lib").resolve("playback-time.lua"),
-							"--keep-open=always", pathname.toString()),
+							"--input-terminal=no", startArg, "--vo=null", "--aid=no", "--sid=no",
+							"--script=" + script, "--keep-open=always", pathname.toString()),
 					StandardCharsets.UTF_8));
 			br.lines().forEach(line -> {
-				if (line.startsWith("[playback_time] ")) {
-					log("Found playback_time: " + line);
-					line = line.substring("[playback_time] ".length());
-					String[] parts = line.split(",");
+				if (line.startsWith(prefix)) {
+					log("Found " + line);
+					String[] parts = line.substring(prefix.length()).split(",");
 					try {
-						durationA.set(Double.parseDouble(parts[0]));
-						widthA.set(Double.valueOf(parts[1]).intValue());
-						heightA.set(Double.valueOf(parts[2]).intValue());
-						framerateA.set(Double.parseDouble(parts[3]));
+						result.set(new double[]{Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+								Double.parseDouble(parts[2]), Double.parseDouble(parts[3])});
 					} catch (NumberFormatException nfe) {
 						log(nfe);
 					} catch (ArrayIndexOutOfBoundsException aioobe) {
@@ -60,23 +102,7 @@ public class VideoScan {
 		} finally {
 			IOHelper.closeQuietly(br);
 		}
-
-		double duration = durationA.get();
-		double framerate = framerateA.get();
-		int width = widthA.get();
-		int height = heightA.get();
-
-		if (duration < 0 || height < 0 || width < 0 || framerate < 0) {
-			processor.appendStatus("File Format Error.");
-			return null;
-		}
-
-		if (duration == 0D && framerate == 1D) {
-			processor.appendStatus("Did you really just open a still image or a text file?");
-			return null;
-		}
-
-		return new VideoScan(width, height, duration, pathname, framerate);
+		return result.get();
 	}
 
 	public VideoScan(int width, int height, double duration, Path location, double framerate) {
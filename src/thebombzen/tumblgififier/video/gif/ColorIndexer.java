@@ -0,0 +1,104 @@
+package thebombzen.tumblgififier.video.gif;
+
+/**
+ * This gives each color a palette index the first time it's seen. It turns
+ * frames that have already been mapped to a palette back into indices when
+ * we don't know what the palette was, such as the output of a paletteuse
+ * whose palette never left mpv. Afterward, the colors it found are the
+ * palette.
+ */
+public class ColorIndexer {
+
+	/**
+	 * The open-addressing table has this many slots, which keeps it at most
+	 * half full.
+	 */
+	private static final int LOOKUP_SIZE = 512;
+
+	/**
+	 * Keys are 0xRRGGBB + 1, so that 0 means an empty slot. Values are
+	 * indices.
+	 */
+	private final int[] lookupKeys = new int[LOOKUP_SIZE];
+	private final byte[] lookupValues = new byte[LOOKUP_SIZE];
+
+	private final int[] colors = new int[256];
+	private int size = 0;
+
+	/**
+	 * Returns the index of a color, giving it the next index if it's new.
+	 *
+	 * @param rgb
+	 *            The color, as 0xRRGGBB.
+	 * @return the index, or -1 if the color is new and there are already 256
+	 *         colors.
+	 */
+	public int indexOf(int rgb) {
+		int key = (rgb & 0xFFFFFF) + 1;
+		int slot = (key * 0x9E3779B1 >>> 23) & (LOOKUP_SIZE - 1);
+		while (lookupKeys[slot] != 0) {
+			if (lookupKeys[slot] == key) {
+				return lookupValues[slot] & 0xFF;
+			}
+			slot = (slot + 1) & (LOOKUP_SIZE - 1);
+		}
+		if (size == colors.length) {
+			return -1;
+		}
+		lookupKeys[slot] = key;
+		lookupValues[slot] = (byte) size;
+		colors[size] = rgb & 0xFFFFFF;
+		return size++;
+	}
+
+	/**
+	 * Map a frame of bgr24 pixels to indices.
+	 *
+	 * @param bgr
+	 *            The frame, three bytes per pixel, in blue, green, red order.
+	 * @param indices
+	 *            Where to put the indices, one byte per pixel.
+	 * @return false if the frame pushed us past 256 colors, in which case the
+	 *         indices are incomplete.
+	 */
+	public boolean index(byte[] bgr, byte[] indices) {
+		int last = -1;
+		int lastIndex = 0;
+		for (int i = 0, j = 0; i < indices.length; i++, j += 3) {
+			int rgb = (bgr[j + 2] & 0xFF) << 16 | (bgr[j + 1] & 0xFF) << 8 | bgr[j] & 0xFF;
+			// neighboring pixels are usually the same color
+			if (rgb != last) {
+				lastIndex = indexOf(rgb);
+				if (lastIndex < 0) {
+					return false;
+				}
+				last = rgb;
+			}
+			indices[i] = (byte) lastIndex;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns how many colors we've seen.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the colors we've seen, in the order we saw them, as a palette.
+	 *
+	 * @throws IllegalStateException
+	 *             if we haven't seen any colors.
+	 */
+	public Palette toPalette() {
+		if (size == 0) {
+			throw new IllegalStateException("No colors have been seen.");
+		}
+		int[] palette = new int[size];
+		System.arraycopy(colors, 0, palette, 0, size);
+		return new Palette(palette);
+	}
+
+}
@@ -0,0 +1,180 @@
+package thebombzen.tumblgififier.video.gif;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This joins several animated GIFs of the same size into one, by copying the
+ * frames of each GIF after the frames of the one before it. The header, the
+ * logical screen, and the loop extension come from the first GIF. This only
+ * makes sense if the first frame of each GIF after the first is a full frame
+ * that doesn't depend on what came before it. That's true of the segments
+ * VideoProcessor hands us, which GifWriter writes, since it has no frame
+ * before the first to crop against, and of the ones mpv writes when our
+ * encoder is turned off.
+ */
+public final class GifConcatenator {
+
+	private GifConcatenator() {
+
+	}
+
+	private static final int EXTENSION_INTRODUCER = 0x21;
+	private static final int IMAGE_SEPARATOR = 0x2C;
+	private static final int TRAILER = 0x3B;
+
+	private static final int APPLICATION_EXTENSION_LABEL = 0xFF;
+
+	private static final int COLOR_TABLE_FLAG = 0x80;
+	private static final int COLOR_TABLE_SIZE_MASK = 0x07;
+	private static final int LOCAL_SORT_FLAG = 0x20;
+
+	/**
+	 * Concatenate the given GIFs, in order, into the output file.
+	 * 
+	 * @throws IOException
+	 *             if something goes wrong reading or writing, or if the GIFs
+	 *             aren't well-formed or aren't the same size.
+	 */
+	public static void concatenate(List<Path> inputs, Path output) throws IOException {
+		if (inputs.isEmpty()) {
+			throw new IllegalArgumentException("Nothing to concatenate.");
+		}
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+			byte[] screen = null;
+			byte[] globalColorTable = null;
+			for (int i = 0; i < inputs.size(); i++) {
+				try (DataInputStream in = new DataInputStream(
+						new BufferedInputStream(Files.newInputStream(inputs.get(i))))) {
+					byte[] header = new byte[6];
+					in.readFully(header);
+					String signature = new String(header, StandardCharsets.US_ASCII);
+					if (!signature.equals("GIF89a") && !signature.equals("GIF87a")) {
+						throw new IOException("Not a GIF: " + inputs.get(i));
+					}
+					byte[] thisScreen = new byte[7];
+					in.readFully(thisScreen);
+					byte[] thisColorTable = null;
+					if ((thisScreen[4] & COLOR_TABLE_FLAG) != 0) {
+						thisColorTable = new byte[colorTableLength(thisScreen[4])];
+						in.readFully(thisColorTable);
+					}
+					if (i == 0) {
+						screen = thisScreen;
+						globalColorTable = thisColorTable;
+						out.write("GIF89a".getBytes(StandardCharsets.US_ASCII));
+						out.write(screen);
+						if (globalColorTable != null) {
+							out.write(globalColorTable);
+						}
+					} else if (!Arrays.equals(Arrays.copyOf(screen, 4), Arrays.copyOf(thisScreen, 4))) {
+						throw new IOException("GIF sizes don't match: " + inputs.get(i));
+					}
+					byte[] localColorTable = Arrays.equals(thisColorTable, globalColorTable) ? null : thisColorTable;
+					copyBlocks(in, out, i == 0, localColorTable);
+				}
+			}
+			out.write(TRAILER);
+		}
+	}
+
+	/**
+	 * Copy every extension and image until the trailer.
+	 * 
+	 * @param first
+	 *            True if this is the first GIF. Application extensions, like
+	 *            the loop extension, are only copied from the first GIF.
+	 * @param colorTable
+	 *            If this isn't null, this GIF's global color table differs from
+	 *            the output's, so it's attached as a local color table to every
+	 *            image that doesn't already have one.
+	 */
+	private static void copyBlocks(DataInputStream in, OutputStream out, boolean first, byte[] colorTable)
+			throws IOException {
+		while (true) {
+			int introducer = in.read();
+			switch (introducer) {
+				case TRAILER:
+					return;
+				case EXTENSION_INTRODUCER:
+					int label = in.readUnsignedByte();
+					if (label == APPLICATION_EXTENSION_LABEL && !first) {
+						copySubBlocks(in, null);
+					} else {
+						out.write(introducer);
+						out.write(label);
+						copySubBlocks(in, out);
+					}
+					break;
+				case IMAGE_SEPARATOR:
+					byte[] descriptor = new byte[9];
+					in.readFully(descriptor);
+					int packed = descriptor[8] & 0xFF;
+					boolean hasLocalTable = (packed & COLOR_TABLE_FLAG) != 0;
+					if (!hasLocalTable && colorTable != null) {
+						int sizeBits = Integer.numberOfTrailingZeros(colorTable.length / 3) - 1;
+						descriptor[8] = (byte) (packed & ~LOCAL_SORT_FLAG & ~COLOR_TABLE_SIZE_MASK | COLOR_TABLE_FLAG
+								| sizeBits);
+					}
+					out.write(introducer);
+					out.write(descriptor);
+					if (hasLocalTable) {
+						copyFully(in, out, colorTableLength(packed));
+					} else if (colorTable != null) {
+						out.write(colorTable);
+					}
+					// LZW minimum code size
+					out.write(in.readUnsignedByte());
+					copySubBlocks(in, out);
+					break;
+				case -1:
+					// a segment whose GifWriter was aborted, or whose mpv was
+					// killed, has no trailer, but the frames up to here are
+					// still fine
+					return;
+				default:
+					throw new IOException(String.format("Malformed GIF: unknown block 0x%02X", introducer));
+			}
+		}
+	}
+
+	/**
+	 * Copy a sequence of data sub-blocks, including the terminating empty
+	 * block. If out is null they're skipped instead.
+	 */
+	private static void copySubBlocks(DataInputStream in, OutputStream out) throws IOException {
+		int length;
+		do {
+			length = in.read();
+			if (length < 0) {
+				throw new EOFException("Malformed GIF: unterminated data block");
+			}
+			if (out != null) {
+				out.write(length);
+			}
+			copyFully(in, out, length);
+		} while (length != 0);
+	}
+
+	private static void copyFully(DataInputStream in, OutputStream out, int length) throws IOException {
+		byte[] buffer = new byte[length];
+		in.readFully(buffer);
+		if (out != null) {
+			out.write(buffer);
+		}
+	}
+
+	private static int colorTableLength(int packed) {
+		return 3 << ((packed & COLOR_TABLE_SIZE_MASK) + 1);
+	}
+
+}
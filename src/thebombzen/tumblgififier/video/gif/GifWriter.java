@@ -0,0 +1,349 @@
+package thebombzen.tumblgififier.video.gif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * This writes an animated GIF89a from frames of palette indices. Each frame
+ * is cropped to the rectangle that changed since the frame before it, and
+ * pixels in that rectangle that didn't change are made transparent, which
+ * compresses much better. Every frame is compressed on its own fork-join
+ * task, so a GIF is compressed on as many cores as we have, and the frames
+ * are written to the file in order as they finish. Identical frames are
+ * merged into one frame with a longer delay.
+ */
+public class GifWriter implements Closeable {
+
+	/**
+	 * At most this many frames per core are compressed or waiting to be
+	 * written at once, which bounds the memory we use.
+	 */
+	private static final int FRAMES_IN_FLIGHT_PER_CORE = 2;
+
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int loopCount;
+	private final ForkJoinPool pool;
+	private final int maxInFlight;
+
+	private final Deque<ForkJoinTask<ByteBuffer>> inFlight = new ArrayDeque<>();
+
+	private Palette globalPalette;
+
+	/**
+	 * The last frame we've been given. It isn't compressed until we know its
+	 * delay, which is when a different frame arrives, or when we close.
+	 */
+	private byte[] pendingFrame;
+	private Palette pendingPalette;
+	private int pendingDelay;
+
+	/**
+	 * The frame before the pending frame, which the pending frame is diffed
+	 * against.
+	 */
+	private byte[] previousFrame;
+	private Palette previousPalette;
+
+	private long bytesWritten = 0L;
+	private int framesWritten = 0;
+	private boolean closed = false;
+
+	/**
+	 * Create a GIF writer that writes to the given file, replacing it.
+	 * 
+	 * @param loopCount
+	 *            The number of times the GIF repeats, where 0 means forever,
+	 *            or -1 to play it once without a loop extension.
+	 */
+	public GifWriter(Path path, int width, int height, int loopCount) throws IOException {
+		this(path, width, height, loopCount, ForkJoinPool.commonPool());
+	}
+
+	public GifWriter(Path path, int width, int height, int loopCount, ForkJoinPool pool) throws IOException {
+		if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF) {
+			throw new IllegalArgumentException(String.format("Bad GIF size: %dx%d", width, height));
+		}
+		this.channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.width = width;
+		this.height = height;
+		this.loopCount = loopCount;
+		this.pool = pool;
+		this.maxInFlight = Math.max(2, FRAMES_IN_FLIGHT_PER_CORE * pool.getParallelism());
+	}
+
+	/**
+	 * Add a frame. The writer takes ownership of the array, so it must not be
+	 * modified afterward.
+	 * 
+	 * @param indices
+	 *            The palette index of every pixel, in row-major order.
+	 * @param palette
+	 *            The palette for this frame. The first frame's palette becomes
+	 *            the global color table, and frames with any other palette get
+	 *            a local color table.
+	 * @param delay
+	 *            How long to show the frame, in hundredths of a second.
+	 */
+	public void writeFrame(byte[] indices, Palette palette, int delay) throws IOException {
+		if (closed) {
+			throw new IOException("GIF writer is closed.");
+		}
+		if (indices.length != width * height) {
+			throw new IllegalArgumentException("Frame is the wrong size: " + indices.length);
+		}
+		if (globalPalette == null) {
+			globalPalette = palette;
+			writeHeader();
+		}
+		if (pendingFrame != null && palette.equals(pendingPalette) && Arrays.equals(indices, pendingFrame)) {
+			pendingDelay += delay;
+			return;
+		}
+		submitPending();
+		pendingFrame = indices;
+		pendingPalette = palette;
+		pendingDelay = delay;
+	}
+
+	/**
+	 * Returns the exact number of bytes written to the file so far. Frames
+	 * that are still being compressed aren't counted yet.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public int getFramesWritten() {
+		return framesWritten;
+	}
+
+	/**
+	 * Write every remaining frame and the trailer, and close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			if (globalPalette != null) {
+				submitPending();
+				while (!inFlight.isEmpty()) {
+					writeNext();
+				}
+				write(ByteBuffer.wrap(new byte[]{0x3B}));
+			}
+		} finally {
+			closed = true;
+			channel.close();
+		}
+	}
+
+	/**
+	 * Close the file without writing anything else. The GIF is left
+	 * unfinished.
+	 */
+	public void abort() throws IOException {
+		closed = true;
+		inFlight.forEach(task -> task.cancel(false));
+		inFlight.clear();
+		channel.close();
+	}
+
+	private void submitPending() throws IOException {
+		if (pendingFrame == null) {
+			return;
+		}
+		// indices can only be compared if they index the same colors
+		byte[] previous = pendingPalette.equals(previousPalette) ? previousFrame : null;
+		byte[] current = pendingFrame;
+		Palette palette = pendingPalette;
+		int delay = Math.max(0, Math.min(0xFFFF, pendingDelay));
+		previousFrame = pendingFrame;
+		previousPalette = pendingPalette;
+		pendingFrame = null;
+		pendingPalette = null;
+		inFlight.addLast(pool.submit(() -> encodeFrame(previous, current, palette, delay)));
+		while (inFlight.size() >= maxInFlight || !inFlight.isEmpty() && inFlight.peekFirst().isDone()) {
+			writeNext();
+		}
+	}
+
+	private void writeNext() throws IOException {
+		ByteBuffer frame;
+		try {
+			frame = inFlight.removeFirst().join();
+		} catch (RuntimeException re) {
+			throw new IOException("Could not compress a frame.", re);
+		}
+		write(frame);
+		framesWritten++;
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			bytesWritten += channel.write(buffer);
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		byte[] colorTable = globalPalette.toColorTable();
+		ByteBuffer header = ByteBuffer.allocate(13 + colorTable.length + 19);
+		header.put("GIF89a".getBytes(StandardCharsets.US_ASCII));
+		putShort(header, width);
+		putShort(header, height);
+		// global color table, 8 bits of color resolution, table size
+		header.put((byte) (0x80 | 0x70 | globalPalette.getBits() - 1));
+		// background color and pixel aspect ratio
+		header.put((byte) 0);
+		header.put((byte) 0);
+		header.put(colorTable);
+		if (loopCount >= 0) {
+			header.put(new byte[]{0x21, (byte) 0xFF, 0x0B});
+			header.put("NETSCAPE2.0".getBytes(StandardCharsets.US_ASCII));
+			header.put(new byte[]{0x03, 0x01});
+			putShort(header, loopCount);
+			header.put((byte) 0);
+		}
+		header.flip();
+		write(header);
+	}
+
+	/**
+	 * Encode one frame: its graphic control extension, its image descriptor,
+	 * its local color table if it needs one, and its image data. This runs on
+	 * the fork-join pool.
+	 */
+	private ByteBuffer encodeFrame(byte[] previous, byte[] current, Palette palette, int delay) {
+		int left = 0, top = 0, right = width, bottom = height;
+		if (previous != null) {
+			while (top < bottom - 1 && rowEquals(previous, current, top)) {
+				top++;
+			}
+			while (bottom - 1 > top && rowEquals(previous, current, bottom - 1)) {
+				bottom--;
+			}
+			left = width;
+			right = 0;
+			for (int y = top; y < bottom; y++) {
+				int row = y * width;
+				int x = 0;
+				while (x < left && previous[row + x] == current[row + x]) {
+					x++;
+				}
+				left = Math.min(left, x);
+				x = width;
+				while (x > right && previous[row + x - 1] == current[row + x - 1]) {
+					x--;
+				}
+				right = Math.max(right, x);
+			}
+			if (left >= right) {
+				left = 0;
+				right = 1;
+			}
+		}
+		int rectWidth = right - left;
+		int rectHeight = bottom - top;
+
+		// find an index that no changed pixel uses, so unchanged pixels can be
+		// transparent
+		int transparent = -1;
+		if (previous != null) {
+			boolean[] used = new boolean[256];
+			for (int y = top; y < bottom; y++) {
+				int row = y * width;
+				for (int x = left; x < right; x++) {
+					if (previous[row + x] != current[row + x]) {
+						used[current[row + x] & 0xFF] = true;
+					}
+				}
+			}
+			int limit = 1 << palette.getBits();
+			for (int i = limit - 1; i >= 0; i--) {
+				if (!used[i]) {
+					transparent = i;
+					break;
+				}
+			}
+		}
+
+		byte[] pixels = new byte[rectWidth * rectHeight];
+		int p = 0;
+		for (int y = top; y < bottom; y++) {
+			int row = y * width;
+			if (transparent < 0) {
+				System.arraycopy(current, row + left, pixels, p, rectWidth);
+				p += rectWidth;
+			} else {
+				byte t = (byte) transparent;
+				for (int x = left; x < right; x++) {
+					byte c = current[row + x];
+					pixels[p++] = c == previous[row + x] ? t : c;
+				}
+			}
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(pixels.length / 2 + 64);
+		// graphic control extension, disposal method 1: leave the frame in place
+		out.write(0x21);
+		out.write(0xF9);
+		out.write(0x04);
+		out.write(0x04 | (transparent >= 0 ? 0x01 : 0x00));
+		out.write(delay & 0xFF);
+		out.write(delay >> 8);
+		out.write(transparent >= 0 ? transparent : 0);
+		out.write(0x00);
+
+		boolean local = !palette.equals(globalPalette);
+		out.write(0x2C);
+		writeShort(out, left);
+		writeShort(out, top);
+		writeShort(out, rectWidth);
+		writeShort(out, rectHeight);
+		out.write(local ? 0x80 | palette.getBits() - 1 : 0x00);
+		if (local) {
+			byte[] colorTable = palette.toColorTable();
+			out.write(colorTable, 0, colorTable.length);
+		}
+
+		new LzwEncoder().encode(pixels, 0, pixels.length, Math.max(2, palette.getBits()), out);
+
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	private boolean rowEquals(byte[] a, byte[] b, int y) {
+		int start = y * width;
+		for (int i = start; i < start + width; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void putShort(ByteBuffer buffer, int value) {
+		buffer.put((byte) value);
+		buffer.put((byte) (value >> 8));
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write(value & 0xFF);
+		out.write(value >> 8 & 0xFF);
+	}
+
+}
@@ -0,0 +1,172 @@
+package thebombzen.tumblgififier.video.gif;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * This is the variable-length-code LZW compressor used by GIF, based on the
+ * classic compress(1) implementation by Spencer Thomas, Joe Orost, and Jef
+ * Poskanzer. It uses an open-addressing hash table of primitive ints, so the
+ * inner loop never allocates. An instance isn't thread-safe, but it's cheap,
+ * so each frame can use its own.
+ */
+final class LzwEncoder {
+
+	private static final int BITS = 12;
+	private static final int MAX_MAX_CODE = 1 << BITS;
+	/**
+	 * 80% occupancy of 4096 codes, and a prime, so double hashing visits every
+	 * slot.
+	 */
+	private static final int HASH_SIZE = 5003;
+	private static final int HASH_SHIFT;
+
+	static {
+		int shift = 0;
+		for (int fcode = HASH_SIZE; fcode < 65536; fcode *= 2) {
+			shift++;
+		}
+		HASH_SHIFT = 8 - shift;
+	}
+
+	private final int[] hashTable = new int[HASH_SIZE];
+	private final short[] codeTable = new short[HASH_SIZE];
+
+	/**
+	 * Data sub-blocks hold at most 255 bytes.
+	 */
+	private final byte[] block = new byte[256];
+	private int blockLength;
+
+	private ByteArrayOutputStream out;
+
+	private int initBits;
+	private int nBits;
+	private int maxCode;
+	private int clearCode;
+	private int eofCode;
+	private int freeEntry;
+	private boolean clearFlag;
+
+	private int accumulator;
+	private int accumulatorBits;
+
+	/**
+	 * Compress the pixels and write the LZW minimum code size, the data
+	 * sub-blocks, and the block terminator.
+	 * 
+	 * @param pixels
+	 *            The color indices, one byte each.
+	 * @param minCodeSize
+	 *            The LZW minimum code size, which is the number of bits per
+	 *            index. GIF requires this to be at least 2.
+	 */
+	public void encode(byte[] pixels, int offset, int length, int minCodeSize, ByteArrayOutputStream out) {
+		this.out = out;
+		out.write(minCodeSize);
+
+		initBits = minCodeSize + 1;
+		nBits = initBits;
+		maxCode = (1 << nBits) - 1;
+		clearCode = 1 << minCodeSize;
+		eofCode = clearCode + 1;
+		freeEntry = clearCode + 2;
+		clearFlag = false;
+		accumulator = 0;
+		accumulatorBits = 0;
+		blockLength = 0;
+
+		Arrays.fill(hashTable, -1);
+		output(clearCode);
+
+		int end = offset + length;
+		int entry = length > 0 ? pixels[offset] & 0xFF : 0;
+		outer: for (int p = offset + 1; p < end; p++) {
+			int c = pixels[p] & 0xFF;
+			int fcode = (c << BITS) + entry;
+			int i = (c << HASH_SHIFT) ^ entry;
+			if (hashTable[i] == fcode) {
+				entry = codeTable[i];
+				continue;
+			}
+			if (hashTable[i] >= 0) {
+				int displacement = i == 0 ? 1 : HASH_SIZE - i;
+				do {
+					i -= displacement;
+					if (i < 0) {
+						i += HASH_SIZE;
+					}
+					if (hashTable[i] == fcode) {
+						entry = codeTable[i];
+						continue outer;
+					}
+				} while (hashTable[i] >= 0);
+			}
+			output(entry);
+			entry = c;
+			if (freeEntry < MAX_MAX_CODE) {
+				codeTable[i] = (short) freeEntry++;
+				hashTable[i] = fcode;
+			} else {
+				Arrays.fill(hashTable, -1);
+				freeEntry = clearCode + 2;
+				clearFlag = true;
+				output(clearCode);
+			}
+		}
+		if (length > 0) {
+			output(entry);
+		}
+		output(eofCode);
+
+		out.write(0);
+		this.out = null;
+	}
+
+	private void output(int code) {
+		accumulator &= (1 << accumulatorBits) - 1;
+		accumulator |= code << accumulatorBits;
+		accumulatorBits += nBits;
+		while (accumulatorBits >= 8) {
+			writeByte(accumulator & 0xFF);
+			accumulator >>>= 8;
+			accumulatorBits -= 8;
+		}
+
+		if (freeEntry > maxCode || clearFlag) {
+			if (clearFlag) {
+				nBits = initBits;
+				maxCode = (1 << nBits) - 1;
+				clearFlag = false;
+			} else {
+				nBits++;
+				maxCode = nBits == BITS ? MAX_MAX_CODE : (1 << nBits) - 1;
+			}
+		}
+
+		if (code == eofCode) {
+			while (accumulatorBits > 0) {
+				writeByte(accumulator & 0xFF);
+				accumulator >>>= 8;
+				accumulatorBits -= 8;
+			}
+			flushBlock();
+		}
+	}
+
+	private void writeByte(int b) {
+		block[blockLength++] = (byte) b;
+		if (blockLength >= 255) {
+			flushBlock();
+		}
+	}
+
+	private void flushBlock() {
+		if (blockLength > 0) {
+			out.write(blockLength);
+			out.write(block, 0, blockLength);
+			blockLength = 0;
+		}
+	}
+
+}
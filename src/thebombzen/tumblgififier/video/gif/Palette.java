@@ -0,0 +1,200 @@
+package thebombzen.tumblgififier.video.gif;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * This is a GIF palette of up to 256 colors. It can map a color that's
+ * exactly in the palette back to its index, which lets us turn the output of
+ * paletteuse back into indices.
+ */
+public class Palette {
+
+	/**
+	 * The open-addressing table has this many slots, which keeps it at most
+	 * half full.
+	 */
+	private static final int LOOKUP_SIZE = 512;
+
+	private final int[] colors;
+	private final boolean[] opaque;
+
+	/**
+	 * Keys are 0xRRGGBB + 1, so that 0 means an empty slot. Values are
+	 * indices.
+	 */
+	private final int[] lookupKeys = new int[LOOKUP_SIZE];
+	private final byte[] lookupValues = new byte[LOOKUP_SIZE];
+
+	/**
+	 * @param colors
+	 *            The colors, as 0xRRGGBB. Anything in the top byte is
+	 *            ignored. There must be at most 256 of them.
+	 */
+	public Palette(int[] colors) {
+		this(colors, false);
+	}
+
+	/**
+	 * @param colors
+	 *            The colors. There must be at most 256 of them.
+	 * @param hasAlpha
+	 *            If this is true, the colors are 0xAARRGGBB, and any color
+	 *            that's less than half opaque is a placeholder that's never
+	 *            mapped to, like the transparent color palettegen reserves.
+	 *            Otherwise they're 0xRRGGBB and the top byte is ignored.
+	 */
+	public Palette(int[] colors, boolean hasAlpha) {
+		if (colors.length == 0 || colors.length > 256) {
+			throw new IllegalArgumentException("A palette has 1 to 256 colors: " + colors.length);
+		}
+		this.colors = new int[colors.length];
+		this.opaque = new boolean[colors.length];
+		for (int i = 0; i < colors.length; i++) {
+			this.colors[i] = colors[i] & 0xFFFFFF;
+			this.opaque[i] = !hasAlpha || (colors[i] >>> 24) >= 0x80;
+		}
+		// go backward, so if a color appears more than once the first index wins
+		for (int i = colors.length - 1; i >= 0; i--) {
+			if (!opaque[i]) {
+				continue;
+			}
+			int key = this.colors[i] + 1;
+			int slot = hash(key);
+			while (lookupKeys[slot] != 0 && lookupKeys[slot] != key) {
+				slot = (slot + 1) & (LOOKUP_SIZE - 1);
+			}
+			lookupKeys[slot] = key;
+			lookupValues[slot] = (byte) i;
+		}
+	}
+
+	/**
+	 * Read a palette from an image, such as the one palettegen creates, in
+	 * row-major order.
+	 */
+	public static Palette fromImage(BufferedImage image) {
+		int count = Math.min(256, image.getWidth() * image.getHeight());
+		int[] colors = new int[count];
+		for (int i = 0; i < count; i++) {
+			colors[i] = image.getRGB(i % image.getWidth(), i / image.getWidth());
+		}
+		return new Palette(colors, image.getColorModel().hasAlpha());
+	}
+
+	private static int hash(int key) {
+		return (key * 0x9E3779B1 >>> 23) & (LOOKUP_SIZE - 1);
+	}
+
+	/**
+	 * Returns the index of a color that's exactly in this palette, or -1 if
+	 * it isn't. Placeholder colors are never found.
+	 * 
+	 * @param rgb
+	 *            The color, as 0xRRGGBB.
+	 */
+	public int indexOf(int rgb) {
+		int key = rgb + 1;
+		int slot = hash(key);
+		while (lookupKeys[slot] != 0) {
+			if (lookupKeys[slot] == key) {
+				return lookupValues[slot] & 0xFF;
+			}
+			slot = (slot + 1) & (LOOKUP_SIZE - 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the color in this palette closest to the given
+	 * color, by squared distance. This scans the whole palette, so it's only
+	 * for colors that indexOf can't find.
+	 * 
+	 * @param rgb
+	 *            The color, as 0xRRGGBB.
+	 */
+	public int nearestIndex(int rgb) {
+		int r = rgb >> 16 & 0xFF;
+		int g = rgb >> 8 & 0xFF;
+		int b = rgb & 0xFF;
+		int best = 0;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int i = 0; i < colors.length; i++) {
+			if (!opaque[i]) {
+				continue;
+			}
+			int dr = (colors[i] >> 16 & 0xFF) - r;
+			int dg = (colors[i] >> 8 & 0xFF) - g;
+			int db = (colors[i] & 0xFF) - b;
+			int distance = dr * dr + dg * dg + db * db;
+			if (distance < bestDistance) {
+				best = i;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns false if the color at this index is a placeholder that's never
+	 * mapped to.
+	 */
+	public boolean isOpaque(int index) {
+		return opaque[index];
+	}
+
+	/**
+	 * Returns the color at an index, as 0xRRGGBB.
+	 */
+	public int getColor(int index) {
+		return colors[index];
+	}
+
+	public int size() {
+		return colors.length;
+	}
+
+	/**
+	 * Returns the number of bits GIF needs for this palette's indices, which
+	 * is at least 1.
+	 */
+	public int getBits() {
+		int bits = 1;
+		while (1 << bits < colors.length) {
+			bits++;
+		}
+		return bits;
+	}
+
+	/**
+	 * Returns this palette as a GIF color table, with RGB triples, padded
+	 * with black to a power of two.
+	 */
+	public byte[] toColorTable() {
+		byte[] table = new byte[3 << getBits()];
+		for (int i = 0; i < colors.length; i++) {
+			table[3 * i] = (byte) (colors[i] >> 16);
+			table[3 * i + 1] = (byte) (colors[i] >> 8);
+			table[3 * i + 2] = (byte) colors[i];
+		}
+		return table;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Palette)) {
+			return false;
+		}
+		Palette other = (Palette) obj;
+		return Arrays.equals(colors, other.colors) && Arrays.equals(opaque, other.opaque);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(colors);
+	}
+
+}
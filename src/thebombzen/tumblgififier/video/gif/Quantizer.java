@@ -0,0 +1,145 @@
+package thebombzen.tumblgififier.video.gif;
+
+import java.util.stream.IntStream;
+
+/**
+ * This maps true-color frames to a palette, with the same ordered (Bayer)
+ * dithering paletteuse uses. Searching the palette for every pixel is far too
+ * slow, so when we're created we work out the nearest color for every cell of
+ * an RGB cube with six bits per channel, and after that mapping a pixel is a
+ * single array lookup. Frames are mapped one row per task, in parallel.
+ */
+public class Quantizer {
+
+	/**
+	 * This matches the bayer_scale=3 we give paletteuse.
+	 */
+	public static final int DEFAULT_BAYER_SCALE = 3;
+
+	private static final int LUT_BITS = 6;
+	private static final int LUT_SHIFT = 8 - LUT_BITS;
+	private static final int LUT_SIZE = 1 << LUT_BITS;
+
+	private final Palette palette;
+
+	/**
+	 * The palette index for each cell, indexed by r << 12 | g << 6 | b, where
+	 * each channel is reduced to six bits.
+	 */
+	private final byte[] lut = new byte[LUT_SIZE * LUT_SIZE * LUT_SIZE];
+
+	/**
+	 * The 8x8 threshold matrix, indexed by (y & 7) << 3 | (x & 7).
+	 */
+	private final int[] ditherMatrix = new int[64];
+
+	public Quantizer(Palette palette) {
+		this(palette, DEFAULT_BAYER_SCALE);
+	}
+
+	/**
+	 * @param bayerScale
+	 *            The scale of the Bayer pattern, from 0 to 5, like paletteuse's
+	 *            bayer_scale. Bigger scales make the pattern fainter. A
+	 *            negative scale turns dithering off.
+	 */
+	public Quantizer(Palette palette, int bayerScale) {
+		if (bayerScale > 5) {
+			throw new IllegalArgumentException("Bayer scale must be at most 5: " + bayerScale);
+		}
+		this.palette = palette;
+		if (bayerScale >= 0) {
+			int delta = 1 << (5 - bayerScale);
+			for (int i = 0; i < 64; i++) {
+				ditherMatrix[i] = (ditherValue(i) >> bayerScale) - delta;
+			}
+		}
+		IntStream.range(0, LUT_SIZE).parallel().forEach(this::fillSlice);
+	}
+
+	/**
+	 * This is the bit-reversal-and-interleave formula paletteuse uses to build
+	 * its 8x8 Bayer matrix, so our dithering looks just like its dithering.
+	 */
+	private static int ditherValue(int p) {
+		int q = p ^ (p >> 3);
+		return (p & 4) >> 2 | (q & 4) >> 1 | (p & 2) << 1 | (q & 2) << 2 | (p & 1) << 4 | (q & 1) << 5;
+	}
+
+	/**
+	 * Fill in every cell with the given red value. Each cell is represented by
+	 * the color at its center.
+	 */
+	private void fillSlice(int r) {
+		int size = palette.size();
+		int[] pr = new int[size];
+		int[] pg = new int[size];
+		int[] pb = new int[size];
+		boolean[] usable = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			usable[i] = palette.isOpaque(i);
+			int color = palette.getColor(i);
+			pr[i] = color >> 16 & 0xFF;
+			pg[i] = color >> 8 & 0xFF;
+			pb[i] = color & 0xFF;
+		}
+		int half = 1 << (LUT_SHIFT - 1);
+		int red = (r << LUT_SHIFT) + half;
+		for (int g = 0; g < LUT_SIZE; g++) {
+			int green = (g << LUT_SHIFT) + half;
+			for (int b = 0; b < LUT_SIZE; b++) {
+				int blue = (b << LUT_SHIFT) + half;
+				int best = 0;
+				int bestDistance = Integer.MAX_VALUE;
+				for (int i = 0; i < size; i++) {
+					if (!usable[i]) {
+						continue;
+					}
+					int dr = pr[i] - red;
+					int dg = pg[i] - green;
+					int db = pb[i] - blue;
+					int distance = dr * dr + dg * dg + db * db;
+					if (distance < bestDistance) {
+						best = i;
+						bestDistance = distance;
+					}
+				}
+				lut[(r << LUT_BITS | g) << LUT_BITS | b] = (byte) best;
+			}
+		}
+	}
+
+	public Palette getPalette() {
+		return palette;
+	}
+
+	/**
+	 * Map a frame of bgr24 pixels to palette indices, in parallel by row.
+	 * 
+	 * @param bgr
+	 *            The frame, three bytes per pixel, in blue, green, red order.
+	 * @param indices
+	 *            Where to put the indices, one byte per pixel.
+	 */
+	public void quantize(byte[] bgr, int width, int height, byte[] indices) {
+		IntStream.range(0, height).parallel().forEach(y -> quantizeRow(bgr, width, y, indices));
+	}
+
+	private void quantizeRow(byte[] bgr, int width, int y, byte[] indices) {
+		int row = (y & 7) << 3;
+		int p = y * width;
+		int j = 3 * p;
+		for (int x = 0; x < width; x++, p++, j += 3) {
+			int d = ditherMatrix[row | x & 7];
+			int b = clamp((bgr[j] & 0xFF) + d);
+			int g = clamp((bgr[j + 1] & 0xFF) + d);
+			int r = clamp((bgr[j + 2] & 0xFF) + d);
+			indices[p] = lut[(r >> LUT_SHIFT << LUT_BITS | g >> LUT_SHIFT) << LUT_BITS | b >> LUT_SHIFT];
+		}
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+
+}
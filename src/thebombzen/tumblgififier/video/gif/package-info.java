@@ -0,0 +1 @@
+package thebombzen.tumblgififier.video.gif;
@@ -0,0 +1,118 @@
+package thebombzen.tumblgififier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.nio.file.Paths;
+import java.util.List;
+import org.junit.Test;
+import thebombzen.tumblgififier.gui.FramerateDecimator;
+
+public class CommandLineConverterTest {
+
+	/**
+	 * Assert that the arguments are rejected, with a message containing the
+	 * given text.
+	 */
+	private static void assertRejected(String message, String... args) {
+		try {
+			new CommandLineConverter(args);
+		} catch (IllegalArgumentException iae) {
+			assertTrue(iae.getMessage(), iae.getMessage().contains(message));
+			return;
+		}
+		fail("Accepted: " + String.join(" ", args));
+	}
+
+	@Test
+	public void testDefaults() {
+		CommandLineConverter converter = new CommandLineConverter("in.mkv", "--output", "out.gif");
+		assertEquals(Paths.get("in.mkv"), converter.getInput());
+		assertEquals(Paths.get("out.gif"), converter.getOutput());
+		assertTrue(converter.getRanges().isEmpty());
+		assertEquals(2000, converter.getTargetSize());
+		assertEquals(-1, converter.getTargetWidth());
+		assertEquals(-1, converter.getTargetHeight());
+		assertEquals(FramerateDecimator.HALF_RATE, converter.getDecimator());
+		assertEquals("", converter.getCaption());
+		assertEquals(96, converter.getCaptionSize());
+	}
+
+	@Test
+	public void testOptions() {
+		CommandLineConverter converter = new CommandLineConverter("--output", "out.gif", "--width", "320",
+				"--framerate", "THIRD", "--caption", "hello there", "--caption-size", "48", "in.mkv");
+		assertEquals(Paths.get("in.mkv"), converter.getInput());
+		assertEquals(320, converter.getTargetWidth());
+		assertEquals(-1, converter.getTargetHeight());
+		assertEquals(FramerateDecimator.THIRD_RATE, converter.getDecimator());
+		assertEquals("hello there", converter.getCaption());
+		assertEquals(48, converter.getCaptionSize());
+	}
+
+	@Test
+	public void testRanges() {
+		CommandLineConverter converter = new CommandLineConverter("in.mkv", "--output", "out.gif", "--range",
+				"1.5-3", "--range", "1:02-1:04.25", "--range", "1:00:00- 1:00:10");
+		List<double[]> ranges = converter.getRanges();
+		assertEquals(3, ranges.size());
+		assertArrayEquals(new double[]{1.5D, 3D}, ranges.get(0), 0D);
+		assertArrayEquals(new double[]{62D, 64.25D}, ranges.get(1), 0D);
+		assertArrayEquals(new double[]{3600D, 3610D}, ranges.get(2), 0D);
+		// the ranges can't be changed from outside
+		ranges.get(0)[0] = 100D;
+		assertEquals(1.5D, converter.getRanges().get(0)[0], 0D);
+	}
+
+	@Test
+	public void testBadRanges() {
+		assertRejected("<start>-<end>", "in.mkv", "--output", "out.gif", "--range", "5");
+		assertRejected("must end after it starts", "in.mkv", "--output", "out.gif", "--range", "5-5");
+		assertRejected("must end after it starts", "in.mkv", "--output", "out.gif", "--range", "0:10-0:05");
+		assertRejected("Not a time", "in.mkv", "--output", "out.gif", "--range", "a-5");
+		assertRejected("Not a time", "in.mkv", "--output", "out.gif", "--range", "1-NaN");
+	}
+
+	@Test
+	public void testBadSizes() {
+		assertRejected("Only one of", "in.mkv", "--output", "out.gif", "--size", "1000", "--width", "320");
+		assertRejected("Only one of", "in.mkv", "--output", "out.gif", "--width", "320", "--height", "240");
+		assertRejected("positive integer", "in.mkv", "--output", "out.gif", "--size", "0");
+		assertRejected("positive integer", "in.mkv", "--output", "out.gif", "--height", "tall");
+		assertRejected("positive integer", "in.mkv", "--output", "out.gif", "--caption-size", "-4");
+	}
+
+	@Test
+	public void testBadArguments() {
+		assertRejected("No input", "--output", "out.gif");
+		assertRejected("No output", "in.mkv");
+		assertRejected("More than one input", "in.mkv", "other.mkv", "--output", "out.gif");
+		assertRejected("Missing value for --output", "in.mkv", "--output");
+		assertRejected("Unknown option: --speed", "in.mkv", "--output", "out.gif", "--speed", "2");
+		assertRejected("--framerate must be", "in.mkv", "--output", "out.gif", "--framerate", "quarter");
+	}
+
+	@Test
+	public void testOutputNames() {
+		assertEquals(Paths.get("dir", "clip-2.gif"),
+				CommandLineConverter.numberOutput(Paths.get("dir", "clip.gif"), 2));
+		assertEquals(Paths.get("clip-1"), CommandLineConverter.numberOutput(Paths.get("clip"), 1));
+		assertEquals(Paths.get(".gif-3"), CommandLineConverter.numberOutput(Paths.get(".gif"), 3));
+
+		CommandLineConverter converter = new CommandLineConverter("videos", "--output", "gifs");
+		assertEquals(Paths.get("gifs", "a.gif"), converter.getOutputFile(Paths.get("videos", "a.mkv")));
+		assertEquals(Paths.get("gifs", "sub", "b.c.gif"),
+				converter.getOutputFile(Paths.get("videos", "sub", "b.c.mp4")));
+		assertEquals(Paths.get("gifs", "noext.gif"), converter.getOutputFile(Paths.get("videos", "noext")));
+	}
+
+	@Test
+	public void testVideoLines() {
+		assertArrayEquals(new String[]{"video", Paths.get("videos", "a.mkv").toString(), "12.3"},
+				CommandLineConverter.getVideoLine("video", Paths.get("videos", "a.mkv"), 12.34D));
+		assertArrayEquals(new String[]{"unreadable", "b", "1500.0"},
+				CommandLineConverter.getVideoLine("unreadable", Paths.get("b"), 1500D));
+	}
+
+}
@@ -0,0 +1,93 @@
+package thebombzen.tumblgififier.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class LruCacheTest {
+
+	/**
+	 * A cache of strings that weigh as much as they're long.
+	 */
+	private static LruCache<Integer, String> createCache(long capacity) {
+		return new LruCache<>(capacity, String::length);
+	}
+
+	@Test
+	public void testEvictsTheLeastRecentlyUsed() {
+		LruCache<Integer, String> cache = createCache(10L);
+		cache.put(1, "aaaa");
+		cache.put(2, "bbbb");
+		cache.put(3, "cc");
+		assertEquals(10L, cache.getWeight());
+		cache.put(4, "d");
+		assertNull(cache.get(1));
+		assertEquals("bbbb", cache.get(2));
+		assertEquals(3, cache.size());
+		assertEquals(7L, cache.getWeight());
+	}
+
+	@Test
+	public void testGetCountsAsUse() {
+		LruCache<Integer, String> cache = createCache(10L);
+		cache.put(1, "aaaa");
+		cache.put(2, "bbbb");
+		cache.get(1);
+		cache.put(3, "cccc");
+		assertEquals("aaaa", cache.get(1));
+		assertNull(cache.get(2));
+		assertEquals("cccc", cache.get(3));
+	}
+
+	@Test
+	public void testEvictsAsManyAsItTakes() {
+		LruCache<Integer, String> cache = createCache(10L);
+		cache.put(1, "aaa");
+		cache.put(2, "bbb");
+		cache.put(3, "ccc");
+		cache.put(4, "dddddddd");
+		assertEquals(1, cache.size());
+		assertEquals(8L, cache.getWeight());
+		assertEquals("dddddddd", cache.get(4));
+	}
+
+	@Test
+	public void testReplacingAdjustsTheWeight() {
+		LruCache<Integer, String> cache = createCache(10L);
+		cache.put(1, "aaaa");
+		cache.put(2, "bb");
+		cache.put(1, "a");
+		assertEquals(3L, cache.getWeight());
+		assertEquals("a", cache.get(1));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testTooHeavyIsNotAdded() {
+		LruCache<Integer, String> cache = createCache(4L);
+		cache.put(1, "aa");
+		cache.put(2, "bbbbb");
+		assertNull(cache.get(2));
+		assertEquals("aa", cache.get(1));
+		// replacing with something too heavy still drops the old value
+		cache.put(1, "aaaaa");
+		assertNull(cache.get(1));
+		assertEquals(0L, cache.getWeight());
+	}
+
+	@Test
+	public void testRemoveAndClear() {
+		LruCache<Integer, String> cache = createCache(10L);
+		cache.put(1, "aaaa");
+		cache.put(2, "bb");
+		cache.remove(1);
+		cache.remove(3);
+		assertEquals(2L, cache.getWeight());
+		assertEquals(1, cache.size());
+		cache.clear();
+		assertEquals(0L, cache.getWeight());
+		assertEquals(0, cache.size());
+		assertEquals(10L, cache.getCapacity());
+	}
+
+}
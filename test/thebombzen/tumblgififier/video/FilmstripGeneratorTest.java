@@ -0,0 +1,36 @@
+package thebombzen.tumblgififier.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class FilmstripGeneratorTest {
+
+	private static final long STORE_BYTES = ThumbnailStore.DEFAULT_MAX_BYTES;
+
+	@Test
+	public void testShortVideosAreTakenWhole() {
+		assertEquals(1, FilmstripGenerator.getStride(0, STORE_BYTES));
+		assertEquals(1, FilmstripGenerator.getStride(100, STORE_BYTES));
+	}
+
+	@Test
+	public void testLongVideosFitTheirShare() {
+		for (int frameCount : new int[]{5000, 20000, 100000, 1000000}) {
+			int stride = FilmstripGenerator.getStride(frameCount, STORE_BYTES);
+			int shots = (frameCount + stride - 1) / stride;
+			assertTrue(String.format("%d frames with stride %d", frameCount, stride),
+					shots * FilmstripGenerator.SHOT_BYTES <= STORE_BYTES * FilmstripGenerator.STORE_SHARE);
+			// and not much coarser than it has to be
+			int finer = (frameCount + stride - 2) / Math.max(1, stride - 1);
+			assertTrue(stride == 1
+					|| finer * FilmstripGenerator.SHOT_BYTES > STORE_BYTES * FilmstripGenerator.STORE_SHARE);
+		}
+	}
+
+	@Test
+	public void testTinyStoreTakesOneShot() {
+		assertEquals(300, FilmstripGenerator.getStride(300, 1024L));
+	}
+
+}
@@ -0,0 +1,111 @@
+package thebombzen.tumblgififier.video;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProbeCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path cacheFile;
+
+	@Before
+	public void setUp() throws IOException {
+		cacheFile = folder.getRoot().toPath().resolve("probe-cache.txt");
+	}
+
+	private VideoScan createScan(String name) throws IOException {
+		Path video = folder.newFile(name).toPath();
+		Files.write(video, name.getBytes("UTF-8"));
+		return new VideoScan(640, 360, 12.5D, video, 30D);
+	}
+
+	@Test
+	public void testSavesOnlyWhenFlushed() throws IOException {
+		ProbeCache cache = new ProbeCache(cacheFile);
+		VideoScan scan = createScan("a.mkv");
+		cache.put(scan);
+		assertFalse(Files.exists(cacheFile));
+		cache.flush();
+		VideoScan cached = new ProbeCache(cacheFile).get(scan.getLocation());
+		assertNotNull(cached);
+		assertEquals(640, cached.getWidth());
+		assertEquals(12.5D, cached.getDuration(), 0D);
+	}
+
+	@Test
+	public void testKeepsWhatAnotherProcessSaved() throws IOException {
+		VideoScan a = createScan("a.mkv");
+		VideoScan b = createScan("b.mkv");
+		ProbeCache first = new ProbeCache(cacheFile);
+		ProbeCache second = new ProbeCache(cacheFile);
+		// both have loaded the empty cache before either saves
+		assertNull(first.get(a.getLocation()));
+		assertNull(second.get(b.getLocation()));
+		first.put(a);
+		first.flush();
+		second.put(b);
+		second.flush();
+
+		ProbeCache reopened = new ProbeCache(cacheFile);
+		assertNotNull(reopened.get(a.getLocation()));
+		assertNotNull(reopened.get(b.getLocation()));
+	}
+
+	@Test
+	public void testLeavesNoTemporaryFiles() throws IOException {
+		ProbeCache cache = new ProbeCache(cacheFile);
+		cache.put(createScan("a.mkv"));
+		cache.flush();
+		cache.put(createScan("b.mkv"));
+		cache.flush();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.getRoot().toPath(), "*.tmp")) {
+			assertFalse(stream.iterator().hasNext());
+		}
+	}
+
+	@Test
+	public void testForgetsChangedFiles() throws IOException {
+		ProbeCache cache = new ProbeCache(cacheFile);
+		VideoScan scan = createScan("a.mkv");
+		cache.put(scan);
+		cache.flush();
+		Files.write(scan.getLocation(), "something else".getBytes("UTF-8"));
+		assertNull(new ProbeCache(cacheFile).get(scan.getLocation()));
+	}
+
+	@Test
+	public void testKeepsIndexesWithoutSceneCuts() throws IOException {
+		ProbeCache cache = new ProbeCache(cacheFile);
+		VideoScan scan = createScan("a.mkv");
+		cache.put(scan);
+		cache.putIndex(scan.getLocation(), new KeyframeIndex(new double[]{0D, 2D, 4D}, null));
+		cache.flush();
+
+		KeyframeIndex index = new ProbeCache(cacheFile).getIndex(scan.getLocation());
+		assertNotNull(index);
+		assertArrayEquals(new double[]{0D, 2D, 4D}, index.getKeyframes(), 0D);
+		assertFalse(index.hasSceneCuts());
+		assertTrue(Double.isNaN(index.getNearestSceneCut(2D, 1D)));
+
+		cache.putIndex(scan.getLocation(), index.withSceneCuts(new double[]{1.5D}));
+		cache.flush();
+		index = new ProbeCache(cacheFile).getIndex(scan.getLocation());
+		assertArrayEquals(new double[]{1.5D}, index.getSceneCuts(), 0D);
+		assertEquals(1.5D, index.getNearestSceneCut(2D, 1D), 0D);
+	}
+
+}
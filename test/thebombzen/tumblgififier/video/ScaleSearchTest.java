@@ -0,0 +1,126 @@
+package thebombzen.tumblgififier.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ScaleSearchTest {
+
+	private static final long MIN_SIZE = 1900000L;
+	private static final long MAX_SIZE = 2000000L;
+
+	/**
+	 * A made-up video whose GIFs are size * scale ^ exponent bytes.
+	 */
+	private static long powerLaw(double size, double exponent, double scale) {
+		return (long) (size * Math.pow(scale, exponent));
+	}
+
+	/**
+	 * Run the search against a power law, the way VideoProcessor does, and
+	 * return how many encodes it took to find an acceptable size, or -1 if it
+	 * gave up.
+	 */
+	private static int search(double size, double exponent, double initialScale) {
+		ScaleSearch search = new ScaleSearch(MIN_SIZE, MAX_SIZE, initialScale);
+		while (!search.isExhausted()) {
+			double scale = search.nextScale();
+			long result = powerLaw(size, exponent, scale);
+			search.addMeasurement(scale, result);
+			if (search.isAcceptable(scale, result)) {
+				return search.getIterations();
+			}
+		}
+		return -1;
+	}
+
+	@Test
+	public void testConvergesWithTheDefaultExponent() {
+		// the exponent we assume is right, so the first measurement lands it
+		assertEquals(2, search(8E7D, 2D, 0.5D));
+	}
+
+	@Test
+	public void testConvergesWithOtherExponents() {
+		for (double exponent : new double[]{1D, 1.5D, 2.5D, 3D}) {
+			for (double initialScale : new double[]{0.1D, 0.3D, 0.9D}) {
+				int iterations = search(8E7D, exponent, initialScale);
+				assertTrue(String.format("exponent %.1f from %.1f", exponent, initialScale), iterations > 0);
+				assertTrue(String.format("exponent %.1f from %.1f took %d", exponent, initialScale, iterations),
+						iterations <= 4);
+			}
+		}
+	}
+
+	@Test
+	public void testFitFindsTheExponent() {
+		ScaleSearch search = new ScaleSearch(MIN_SIZE, MAX_SIZE, 0.5D);
+		search.addMeasurement(0.2D, powerLaw(8E7D, 1.6D, 0.2D));
+		search.addMeasurement(0.8D, powerLaw(8E7D, 1.6D, 0.8D));
+		assertEquals(1.6D, search.getExponent(), 0.01D);
+		assertEquals(powerLaw(8E7D, 1.6D, 0.5D), search.predictSize(0.5D), 0.01D * MAX_SIZE);
+	}
+
+	@Test
+	public void testExponentIsClamped() {
+		ScaleSearch steep = new ScaleSearch(MIN_SIZE, MAX_SIZE, 0.5D);
+		steep.addMeasurement(0.5D, 100000L);
+		steep.addMeasurement(0.51D, 4000000L);
+		assertEquals(3.5D, steep.getExponent(), 0D);
+
+		ScaleSearch flat = new ScaleSearch(MIN_SIZE, MAX_SIZE, 0.5D);
+		flat.addMeasurement(0.2D, 1000000L);
+		flat.addMeasurement(0.8D, 1000001L);
+		assertEquals(0.75D, flat.getExponent(), 0D);
+
+		ScaleSearch defaulted = new ScaleSearch(MIN_SIZE, MAX_SIZE, 0.5D);
+		defaulted.setDefaultExponent(10D);
+		assertEquals(3.5D, defaulted.getExponent(), 0D);
+		defaulted.setDefaultExponent(Double.NaN);
+		assertEquals(ScaleSearch.DEFAULT_EXPONENT, defaulted.getExponent(), 0D);
+	}
+
+	@Test
+	public void testBisectsWhenThePredictionLeavesTheBracket() {
+		ScaleSearch search = new ScaleSearch(MIN_SIZE, MAX_SIZE, 0.5D);
+		search.addMeasurement(0.5D, 100000L);
+		search.addMeasurement(0.52D, 4000000L);
+		// the clamped exponent aims far past 0.52, which we know is too big
+		assertTrue(search.predictScale(search.getTargetSize()) > 0.52D);
+		assertEquals(0.51D, search.nextScale(), 1E-9D);
+	}
+
+	@Test
+	public void testTriesMaxScaleWhenNothingIsTooBig() {
+		ScaleSearch search = new ScaleSearch(MIN_SIZE, MAX_SIZE, 0.3D, 0.6D, ScaleSearch.DEFAULT_MAX_ITERATIONS);
+		search.addMeasurement(0.3D, 100000L);
+		assertEquals(0.6D, search.nextScale(), 0D);
+		// too small at the maximum scale is as good as it gets
+		assertTrue(search.isAcceptable(0.6D, 100000L));
+		assertFalse(search.isAcceptable(0.5D, 100000L));
+	}
+
+	@Test
+	public void testIgnoresEstimatesForTheBracket() {
+		ScaleSearch search = new ScaleSearch(MIN_SIZE, MAX_SIZE, 0.5D);
+		search.addMeasurement(0.4D, 4000000D, 0.5D);
+		assertEquals(0, search.getIterations());
+		assertEquals(1D, search.getHighScale(), 0D);
+		search.addAbortedMeasurement(0.45D, 3000000D);
+		assertEquals(1, search.getIterations());
+		assertEquals(0.45D, search.getHighScale(), 0D);
+	}
+
+	@Test
+	public void testExhaustedOnlyOnceSomethingFits() {
+		ScaleSearch search = new ScaleSearch(MIN_SIZE, MAX_SIZE, 0.5D, 1D, 2);
+		search.addMeasurement(0.5D, 4000000L);
+		search.addMeasurement(0.4D, 3000000L);
+		search.addMeasurement(0.3D, 2500000L);
+		assertFalse(search.isExhausted());
+		search.addMeasurement(0.2D, 1000000L);
+		assertTrue(search.isExhausted());
+	}
+
+}
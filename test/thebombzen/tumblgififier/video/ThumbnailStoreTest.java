@@ -0,0 +1,141 @@
+package thebombzen.tumblgififier.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThumbnailStoreTest {
+
+	private static final String FINGERPRINT = "0123456789abcdef";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = folder.newFolder("thumbnails").toPath();
+	}
+
+	private ThumbnailStore open() {
+		return new ThumbnailStore(directory, ThumbnailStore.DEFAULT_MAX_BYTES);
+	}
+
+	private Path getSegmentFile(int id) {
+		return directory.resolve(String.format("segment-%06d.dat", id));
+	}
+
+	private static BufferedImage createImage(int rgb) {
+		BufferedImage image = new BufferedImage(16, 9, BufferedImage.TYPE_3BYTE_BGR);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, rgb);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * JPEG is lossy, so we only check that the middle pixel is close.
+	 */
+	private static void assertColor(int rgb, BufferedImage image) {
+		assertNotNull(image);
+		assertEquals(16, image.getWidth());
+		assertEquals(9, image.getHeight());
+		int actual = image.getRGB(8, 4);
+		for (int shift = 0; shift < 24; shift += 8) {
+			assertEquals((rgb >> shift) & 0xFF, (actual >> shift) & 0xFF, 8);
+		}
+	}
+
+	@Test
+	public void testRecoversWithoutAnIndex() {
+		ThumbnailStore store = open();
+		store.put(FINGERPRINT, 16, 9, 0, createImage(0xFF0000));
+		store.put(FINGERPRINT, 16, 9, 1, createImage(0x00FF00));
+		assertFalse(Files.exists(directory.resolve("index.dat")));
+
+		ThumbnailStore reopened = open();
+		assertColor(0xFF0000, reopened.get(FINGERPRINT, 16, 9, 0));
+		assertColor(0x00FF00, reopened.get(FINGERPRINT, 16, 9, 1));
+		assertFalse(reopened.contains(FINGERPRINT, 16, 9, 2));
+		assertFalse(reopened.contains(FINGERPRINT, 32, 18, 0));
+	}
+
+	@Test
+	public void testRecoversWhatTheIndexMissed() {
+		ThumbnailStore store = open();
+		store.put(FINGERPRINT, 16, 9, 0, createImage(0xFF0000));
+		store.saveIndex();
+		store.put(FINGERPRINT, 16, 9, 1, createImage(0x0000FF));
+
+		ThumbnailStore reopened = open();
+		assertColor(0xFF0000, reopened.get(FINGERPRINT, 16, 9, 0));
+		assertColor(0x0000FF, reopened.get(FINGERPRINT, 16, 9, 1));
+	}
+
+	@Test
+	public void testDropsATornRecord() throws IOException {
+		ThumbnailStore store = open();
+		store.put(FINGERPRINT, 16, 9, 0, createImage(0xFF0000));
+		long intact = Files.size(getSegmentFile(0));
+		store.put(FINGERPRINT, 16, 9, 1, createImage(0x00FF00));
+		store.saveIndex();
+		Files.delete(directory.resolve("index.dat"));
+		try (RandomAccessFile file = new RandomAccessFile(getSegmentFile(0).toFile(), "rw")) {
+			// as if we crashed partway through the second record
+			file.setLength(file.length() - 10L);
+		}
+
+		ThumbnailStore reopened = open();
+		assertColor(0xFF0000, reopened.get(FINGERPRINT, 16, 9, 0));
+		assertNull(reopened.get(FINGERPRINT, 16, 9, 1));
+		assertEquals(intact, Files.size(getSegmentFile(0)));
+
+		// new records go where the torn one was
+		reopened.put(FINGERPRINT, 16, 9, 1, createImage(0x00FF00));
+		assertColor(0x00FF00, reopened.get(FINGERPRINT, 16, 9, 1));
+		reopened.saveIndex();
+		ThumbnailStore again = open();
+		assertColor(0xFF0000, again.get(FINGERPRINT, 16, 9, 0));
+		assertColor(0x00FF00, again.get(FINGERPRINT, 16, 9, 1));
+	}
+
+	@Test
+	public void testIgnoresAnIndexFromAnotherVersion() throws IOException {
+		ThumbnailStore store = open();
+		store.put(FINGERPRINT, 16, 9, 0, createImage(0xFF0000));
+		Files.write(directory.resolve("index.dat"), new byte[]{0, 0, 0, 99, 0, 0});
+
+		ThumbnailStore reopened = open();
+		assertColor(0xFF0000, reopened.get(FINGERPRINT, 16, 9, 0));
+	}
+
+	@Test
+	public void testForgetsMissingSegments() throws IOException {
+		ThumbnailStore store = open();
+		store.put(FINGERPRINT, 16, 9, 0, createImage(0xFF0000));
+		store.saveIndex();
+		Files.delete(getSegmentFile(0));
+
+		ThumbnailStore reopened = open();
+		assertFalse(reopened.contains(FINGERPRINT, 16, 9, 0));
+		assertNull(reopened.get(FINGERPRINT, 16, 9, 0));
+		reopened.put(FINGERPRINT, 16, 9, 0, createImage(0x00FF00));
+		assertTrue(reopened.contains(FINGERPRINT, 16, 9, 0));
+		assertColor(0x00FF00, reopened.get(FINGERPRINT, 16, 9, 0));
+	}
+
+}
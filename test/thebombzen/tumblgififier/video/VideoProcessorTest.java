@@ -0,0 +1,71 @@
+package thebombzen.tumblgififier.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import thebombzen.tumblgififier.video.VideoProcessor.EncodeMode;
+
+public class VideoProcessorTest {
+
+	private static final long BUDGET = VideoProcessor.DEFAULT_SINGLE_PASS_BUDGET;
+
+	@Test
+	public void testSegmentCount() {
+		assertEquals(1, VideoProcessor.getSegmentCount(8, 1D));
+		assertEquals(1, VideoProcessor.getSegmentCount(8, 3.9D));
+		assertEquals(2, VideoProcessor.getSegmentCount(8, 4D));
+		assertEquals(8, VideoProcessor.getSegmentCount(8, 30D));
+		assertEquals(1, VideoProcessor.getSegmentCount(1, 30D));
+		assertEquals(1, VideoProcessor.getSegmentCount(0, 30D));
+	}
+
+	@Test
+	public void testLongClipsAreSegmented() {
+		int segments = VideoProcessor.getSegmentCount(8, 30D);
+		assertEquals(EncodeMode.SEGMENTED, VideoProcessor.getEncodeMode(segments, 1E6D, BUDGET));
+		assertEquals(EncodeMode.SEGMENTED, VideoProcessor.getEncodeMode(segments, 1E12D, BUDGET));
+	}
+
+	@Test
+	public void testShortClipsUseASinglePass() {
+		// a 3 second 480x270 clip at 30 fps
+		double bytes = 4D * 480 * 270 * 90;
+		int segments = VideoProcessor.getSegmentCount(8, 3D);
+		assertEquals(EncodeMode.SINGLE_PASS, VideoProcessor.getEncodeMode(segments, bytes, BUDGET));
+	}
+
+	@Test
+	public void testSpeculativeCandidatesAreNeverSegmented() {
+		// each candidate of a round gets one segment
+		double bytes = 4D * 480 * 270 * 900;
+		assertEquals(EncodeMode.SINGLE_PASS,
+				VideoProcessor.getEncodeMode(VideoProcessor.getSegmentCount(1, 30D), bytes, BUDGET));
+	}
+
+	@Test
+	public void testBigClipsUseThreePasses() {
+		// a 60 second 1920x1080 clip at 30 fps
+		double bytes = 4D * 1920 * 1080 * 1800;
+		assertEquals(EncodeMode.THREE_PASS,
+				VideoProcessor.getEncodeMode(VideoProcessor.getSegmentCount(1, 60D), bytes, BUDGET));
+		assertEquals(EncodeMode.THREE_PASS, VideoProcessor.getEncodeMode(1, 1D, 0L));
+	}
+
+	@Test
+	public void testHeapReservationsShareTheHeap() {
+		long maxMemory = 1000L;
+		long share = (long) (maxMemory * VideoProcessor.HEAP_SHARE);
+		assertTrue(VideoProcessor.reserveHeap(share / 2, maxMemory));
+		try {
+			assertFalse(VideoProcessor.reserveHeap(share / 2 + 1, maxMemory));
+			assertTrue(VideoProcessor.reserveHeap(share / 2, maxMemory));
+			VideoProcessor.releaseHeap(share / 2);
+		} finally {
+			VideoProcessor.releaseHeap(share / 2);
+		}
+		assertTrue(VideoProcessor.reserveHeap(share, maxMemory));
+		VideoProcessor.releaseHeap(share);
+	}
+
+}
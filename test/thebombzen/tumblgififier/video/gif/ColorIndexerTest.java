@@ -0,0 +1,43 @@
+package thebombzen.tumblgififier.video.gif;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ColorIndexerTest {
+
+	@Test
+	public void testIndicesInTheOrderSeen() {
+		ColorIndexer indexer = new ColorIndexer();
+		// bgr24: red, blue, red, green
+		byte[] bgr = {0, 0, (byte) 0xFF, (byte) 0xFF, 0, 0, 0, 0, (byte) 0xFF, 0, (byte) 0xFF, 0};
+		byte[] indices = new byte[4];
+		assertTrue(indexer.index(bgr, indices));
+		assertArrayEquals(new byte[]{0, 1, 0, 2}, indices);
+		Palette palette = indexer.toPalette();
+		assertEquals(3, palette.size());
+		assertEquals(0xFF0000, palette.getColor(0));
+		assertEquals(0x0000FF, palette.getColor(1));
+		assertEquals(0x00FF00, palette.getColor(2));
+	}
+
+	@Test
+	public void testAtMost256Colors() {
+		ColorIndexer indexer = new ColorIndexer();
+		for (int i = 0; i < 256; i++) {
+			assertEquals(i, indexer.indexOf(i * 0x010101 ^ 0x800000));
+		}
+		assertEquals(-1, indexer.indexOf(0x123456));
+		assertEquals(17, indexer.indexOf(17 * 0x010101 ^ 0x800000));
+		byte[] bgr = {0x56, 0x34, 0x12};
+		assertFalse(indexer.index(bgr, new byte[1]));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNoColorsNoPalette() {
+		new ColorIndexer().toPalette();
+	}
+
+}
@@ -0,0 +1,135 @@
+package thebombzen.tumblgififier.video.gif;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GifConcatenatorTest {
+
+	private static final int WIDTH = 16;
+	private static final int HEIGHT = 8;
+
+	private static final Palette GRAYS = new Palette(new int[]{0x000000, 0x555555, 0xAAAAAA, 0xFFFFFF});
+	private static final Palette COLORS = new Palette(new int[]{0xFF0000, 0x00FF00, 0x0000FF, 0xFFFF00});
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static List<byte[]> randomFrames(long seed, int count) {
+		Random random = new Random(seed);
+		List<byte[]> frames = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			byte[] frame = new byte[WIDTH * HEIGHT];
+			for (int j = 0; j < frame.length; j++) {
+				frame[j] = (byte) random.nextInt(4);
+			}
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+	private Path writeGif(Palette palette, List<byte[]> frames, int width, int height) throws IOException {
+		Path path = folder.newFile().toPath();
+		try (GifWriter writer = new GifWriter(path, width, height, 0)) {
+			for (byte[] frame : frames) {
+				writer.writeFrame(frame.clone(), palette, 4);
+			}
+		}
+		return path;
+	}
+
+	private static int[] toColors(byte[] frame, Palette palette) {
+		int[] colors = new int[frame.length];
+		for (int i = 0; i < frame.length; i++) {
+			colors[i] = palette.getColor(frame[i]);
+		}
+		return colors;
+	}
+
+	@Test
+	public void testConcatenatesFrames() throws IOException {
+		List<byte[]> first = randomFrames(1L, 3);
+		List<byte[]> second = randomFrames(2L, 4);
+		Path output = folder.newFile().toPath();
+		GifConcatenator.concatenate(
+				Arrays.asList(writeGif(GRAYS, first, WIDTH, HEIGHT), writeGif(GRAYS, second, WIDTH, HEIGHT)), output);
+
+		List<int[]> frames = GifFrames.read(output, WIDTH, HEIGHT);
+		assertEquals(7, frames.size());
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals("frame " + i, toColors(first.get(i), GRAYS), frames.get(i));
+		}
+		for (int i = 0; i < 4; i++) {
+			assertArrayEquals("frame " + (i + 3), toColors(second.get(i), GRAYS), frames.get(i + 3));
+		}
+		assertEquals(Arrays.asList(4, 4, 4, 4, 4, 4, 4), GifFrames.readDelays(output));
+	}
+
+	@Test
+	public void testGivesOtherPalettesLocalColorTables() throws IOException {
+		List<byte[]> first = randomFrames(3L, 2);
+		List<byte[]> second = randomFrames(4L, 2);
+		Path output = folder.newFile().toPath();
+		GifConcatenator.concatenate(
+				Arrays.asList(writeGif(GRAYS, first, WIDTH, HEIGHT), writeGif(COLORS, second, WIDTH, HEIGHT)), output);
+
+		List<int[]> frames = GifFrames.read(output, WIDTH, HEIGHT);
+		assertEquals(4, frames.size());
+		assertArrayEquals(toColors(first.get(1), GRAYS), frames.get(1));
+		assertArrayEquals(toColors(second.get(0), COLORS), frames.get(2));
+		assertArrayEquals(toColors(second.get(1), COLORS), frames.get(3));
+	}
+
+	@Test
+	public void testKeepsOneLoopExtension() throws IOException {
+		Path output = folder.newFile().toPath();
+		GifConcatenator.concatenate(Arrays.asList(writeGif(GRAYS, randomFrames(5L, 2), WIDTH, HEIGHT),
+				writeGif(GRAYS, randomFrames(6L, 2), WIDTH, HEIGHT), writeGif(GRAYS, randomFrames(7L, 2), WIDTH,
+						HEIGHT)), output);
+		String contents = new String(Files.readAllBytes(output), StandardCharsets.ISO_8859_1);
+		assertEquals(contents.indexOf("NETSCAPE2.0"), contents.lastIndexOf("NETSCAPE2.0"));
+		assertEquals(6, GifFrames.read(output, WIDTH, HEIGHT).size());
+	}
+
+	@Test
+	public void testToleratesAMissingTrailer() throws IOException {
+		List<byte[]> second = randomFrames(9L, 2);
+		Path truncated = writeGif(GRAYS, second, WIDTH, HEIGHT);
+		byte[] bytes = Files.readAllBytes(truncated);
+		Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 1));
+		Path output = folder.newFile().toPath();
+		GifConcatenator.concatenate(Arrays.asList(writeGif(GRAYS, randomFrames(8L, 2), WIDTH, HEIGHT), truncated),
+				output);
+
+		List<int[]> frames = GifFrames.read(output, WIDTH, HEIGHT);
+		assertEquals(4, frames.size());
+		assertArrayEquals(toColors(second.get(1), GRAYS), frames.get(3));
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsDifferentSizes() throws IOException {
+		List<byte[]> small = new ArrayList<>();
+		small.add(new byte[WIDTH * HEIGHT / 2]);
+		GifConcatenator.concatenate(Arrays.asList(writeGif(GRAYS, randomFrames(10L, 1), WIDTH, HEIGHT),
+				writeGif(GRAYS, small, WIDTH, HEIGHT / 2)), folder.newFile().toPath());
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsThingsThatAreNotGifs() throws IOException {
+		Path notGif = folder.newFile().toPath();
+		Files.write(notGif, "this is not a GIF".getBytes(StandardCharsets.US_ASCII));
+		GifConcatenator.concatenate(Arrays.asList(writeGif(GRAYS, randomFrames(11L, 1), WIDTH, HEIGHT), notGif),
+				folder.newFile().toPath());
+	}
+
+}
@@ -0,0 +1,92 @@
+package thebombzen.tumblgififier.video.gif;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
+
+/**
+ * This decodes an animated GIF with ImageIO, so the tests can check what we
+ * write against a decoder we didn't write.
+ */
+final class GifFrames {
+
+	private GifFrames() {
+
+	}
+
+	/**
+	 * Decode every frame of a GIF, drawing each one over the frames before it
+	 * like a viewer would.
+	 * 
+	 * @return the whole screen after each frame, as 0xRRGGBB pixels in
+	 *         row-major order.
+	 */
+	static List<int[]> read(Path path, int width, int height) throws IOException {
+		List<int[]> frames = new ArrayList<>();
+		ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+		try (ImageInputStream in = ImageIO.createImageInputStream(path.toFile())) {
+			reader.setInput(in, false);
+			int[] screen = new int[width * height];
+			int count = reader.getNumImages(true);
+			for (int i = 0; i < count; i++) {
+				BufferedImage image = reader.read(i);
+				Node descriptor = find(reader.getImageMetadata(i), "ImageDescriptor");
+				int left = Integer.parseInt(attribute(descriptor, "imageLeftPosition"));
+				int top = Integer.parseInt(attribute(descriptor, "imageTopPosition"));
+				for (int y = 0; y < image.getHeight(); y++) {
+					for (int x = 0; x < image.getWidth(); x++) {
+						int argb = image.getRGB(x, y);
+						if (argb >>> 24 != 0) {
+							screen[(top + y) * width + left + x] = argb & 0xFFFFFF;
+						}
+					}
+				}
+				frames.add(screen.clone());
+			}
+		} finally {
+			reader.dispose();
+		}
+		return frames;
+	}
+
+	/**
+	 * Returns the delay of each frame, in hundredths of a second.
+	 */
+	static List<Integer> readDelays(Path path) throws IOException {
+		List<Integer> delays = new ArrayList<>();
+		ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+		try (ImageInputStream in = ImageIO.createImageInputStream(path.toFile())) {
+			reader.setInput(in, false);
+			int count = reader.getNumImages(true);
+			for (int i = 0; i < count; i++) {
+				Node control = find(reader.getImageMetadata(i), "GraphicControlExtension");
+				delays.add(Integer.parseInt(attribute(control, "delayTime")));
+			}
+		} finally {
+			reader.dispose();
+		}
+		return delays;
+	}
+
+	private static Node find(IIOMetadata metadata, String name) {
+		Node root = metadata.getAsTree("javax_imageio_gif_image_1.0");
+		for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node.getNodeName().equals(name)) {
+				return node;
+			}
+		}
+		throw new AssertionError("No " + name + " in the frame metadata.");
+	}
+
+	private static String attribute(Node node, String name) {
+		return node.getAttributes().getNamedItem(name).getNodeValue();
+	}
+
+}
@@ -0,0 +1,189 @@
+package thebombzen.tumblgififier.video.gif;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GifWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static Palette randomPalette(Random random, int size) {
+		int[] colors = new int[size];
+		for (int i = 0; i < size; i++) {
+			// keep them distinct
+			colors[i] = random.nextInt(0x10000) << 8 | i;
+		}
+		return new Palette(colors);
+	}
+
+	private static byte[] noise(Random random, int length, int colors) {
+		byte[] frame = new byte[length];
+		for (int i = 0; i < length; i++) {
+			frame[i] = (byte) random.nextInt(colors);
+		}
+		return frame;
+	}
+
+	private static int[] toColors(byte[] frame, Palette palette) {
+		int[] colors = new int[frame.length];
+		for (int i = 0; i < frame.length; i++) {
+			colors[i] = palette.getColor(frame[i] & 0xFF);
+		}
+		return colors;
+	}
+
+	/**
+	 * Write the frames, check that the byte count is exact, and decode them
+	 * again.
+	 */
+	private List<int[]> roundTrip(int width, int height, List<byte[]> frames, List<Palette> palettes, int delay)
+			throws IOException {
+		Path path = folder.newFile().toPath();
+		GifWriter writer = new GifWriter(path, width, height, 0);
+		for (int i = 0; i < frames.size(); i++) {
+			writer.writeFrame(frames.get(i).clone(), palettes.get(i), delay);
+		}
+		writer.close();
+		assertEquals(Files.size(path), writer.getBytesWritten());
+		return GifFrames.read(path, width, height);
+	}
+
+	private void assertRoundTrips(int width, int height, List<byte[]> frames, Palette palette) throws IOException {
+		List<int[]> decoded = roundTrip(width, height, frames, repeat(palette, frames.size()), 3);
+		assertEquals(frames.size(), decoded.size());
+		for (int i = 0; i < frames.size(); i++) {
+			assertArrayEquals("frame " + i, toColors(frames.get(i), palette), decoded.get(i));
+		}
+	}
+
+	private static List<Palette> repeat(Palette palette, int count) {
+		List<Palette> palettes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			palettes.add(palette);
+		}
+		return palettes;
+	}
+
+	@Test
+	public void testNoiseWithAFullPalette() throws IOException {
+		// noise fills the code table over and over, so this exercises the clear codes
+		Random random = new Random(1L);
+		Palette palette = randomPalette(random, 256);
+		List<byte[]> frames = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			frames.add(noise(random, 200 * 150, 256));
+		}
+		assertRoundTrips(200, 150, frames, palette);
+	}
+
+	@Test
+	public void testEveryPaletteSize() throws IOException {
+		Random random = new Random(2L);
+		// one color only has room for one distinct frame
+		assertRoundTrips(31, 17, Arrays.asList(new byte[31 * 17]), randomPalette(random, 1));
+		for (int size : new int[]{2, 3, 4, 5, 16, 17, 144, 145}) {
+			Palette palette = randomPalette(random, size);
+			List<byte[]> frames = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				frames.add(noise(random, 31 * 17, size));
+			}
+			assertRoundTrips(31, 17, frames, palette);
+		}
+	}
+
+	@Test
+	public void testLongRuns() throws IOException {
+		// runs make long strings, so codes grow to twelve bits without clearing
+		byte[] frame = new byte[320 * 240];
+		for (int i = 0; i < frame.length; i++) {
+			frame[i] = (byte) (i / 1000 % 4);
+		}
+		assertRoundTrips(320, 240, Arrays.asList(frame), new Palette(new int[]{0x000000, 0xFF0000, 0x00FF00,
+				0x0000FF}));
+	}
+
+	@Test
+	public void testOnePixel() throws IOException {
+		Palette palette = new Palette(new int[]{0x123456, 0x654321});
+		assertRoundTrips(1, 1, Arrays.asList(new byte[]{0}, new byte[]{1}, new byte[]{0}), palette);
+	}
+
+	@Test
+	public void testPartialChanges() throws IOException {
+		// only a small rectangle changes, and some pixels inside it don't
+		Random random = new Random(3L);
+		Palette palette = randomPalette(random, 8);
+		List<byte[]> frames = new ArrayList<>();
+		byte[] frame = noise(random, 64 * 48, 8);
+		frames.add(frame);
+		for (int i = 0; i < 4; i++) {
+			frame = frame.clone();
+			for (int y = 10 + i; y < 20 + i; y++) {
+				for (int x = 5; x < 30; x += 2) {
+					frame[y * 64 + x] = (byte) random.nextInt(8);
+				}
+			}
+			frames.add(frame);
+		}
+		assertRoundTrips(64, 48, frames, palette);
+	}
+
+	@Test
+	public void testMergesIdenticalFrames() throws IOException {
+		Palette palette = new Palette(new int[]{0x000000, 0xFFFFFF});
+		byte[] black = new byte[16];
+		byte[] white = new byte[16];
+		Arrays.fill(white, (byte) 1);
+		Path path = folder.newFile().toPath();
+		try (GifWriter writer = new GifWriter(path, 4, 4, 0)) {
+			writer.writeFrame(black, palette, 3);
+			writer.writeFrame(black.clone(), palette, 4);
+			writer.writeFrame(white, palette, 5);
+			writer.writeFrame(white.clone(), palette, 5);
+			writer.writeFrame(white.clone(), palette, 5);
+		}
+		assertEquals(Arrays.asList(7, 15), GifFrames.readDelays(path));
+		List<int[]> frames = GifFrames.read(path, 4, 4);
+		assertArrayEquals(toColors(black, palette), frames.get(0));
+		assertArrayEquals(toColors(white, palette), frames.get(1));
+	}
+
+	@Test
+	public void testOtherPalettesGetLocalColorTables() throws IOException {
+		Random random = new Random(4L);
+		Palette first = randomPalette(random, 4);
+		Palette second = randomPalette(random, 32);
+		List<byte[]> frames = Arrays.asList(noise(random, 40 * 30, 4), noise(random, 40 * 30, 32),
+				noise(random, 40 * 30, 4));
+		List<int[]> decoded = roundTrip(40, 30, frames, Arrays.asList(first, second, first), 2);
+		assertEquals(3, decoded.size());
+		assertArrayEquals(toColors(frames.get(0), first), decoded.get(0));
+		assertArrayEquals(toColors(frames.get(1), second), decoded.get(1));
+		assertArrayEquals(toColors(frames.get(2), first), decoded.get(2));
+	}
+
+	@Test
+	public void testAbortLeavesNoTrailer() throws IOException {
+		Path path = folder.newFile().toPath();
+		GifWriter writer = new GifWriter(path, 4, 4, 0);
+		writer.writeFrame(new byte[16], new Palette(new int[]{0}), 1);
+		writer.abort();
+		byte[] bytes = Files.readAllBytes(path);
+		assertEquals('G', bytes[0]);
+		assertNotEquals(0x3B, bytes[bytes.length - 1]);
+		assertEquals(bytes.length, writer.getBytesWritten());
+	}
+
+}
@@ -0,0 +1,112 @@
+package thebombzen.tumblgififier.video.gif;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * The expected patterns are what paletteuse=dither=bayer:bayer_scale=3 gives
+ * for a flat 8x8 frame of one color, worked out from libavfilter's ordered
+ * dither matrix and its exact nearest-color search.
+ */
+public class QuantizerTest {
+
+	private static final Palette BLACK_WHITE = new Palette(new int[]{0x000000, 0xFFFFFF});
+	private static final Palette THREE_GRAYS = new Palette(new int[]{0x000000, 0x808080, 0xFFFFFF});
+	private static final Palette BLACK_RED = new Palette(new int[]{0x000000, 0xFF0000});
+
+	/**
+	 * Quantize a flat frame and return the indices, one row per line.
+	 */
+	private static String quantize(Quantizer quantizer, int rgb, int width, int height) {
+		byte[] bgr = new byte[width * height * 3];
+		for (int i = 0; i < bgr.length; i += 3) {
+			bgr[i] = (byte) rgb;
+			bgr[i + 1] = (byte) (rgb >> 8);
+			bgr[i + 2] = (byte) (rgb >> 16);
+		}
+		byte[] indices = new byte[width * height];
+		quantizer.quantize(bgr, width, height, indices);
+		StringBuilder sb = new StringBuilder();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				sb.append(indices[y * width + x]);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static String rows(String... rows) {
+		return String.join("\n", rows) + "\n";
+	}
+
+	@Test
+	public void testHalfGrayIsACheckerboard() {
+		assertEquals(rows("01010101", "10101010", "01010101", "10101010", "01010101", "10101010", "01010101",
+				"10101010"), quantize(new Quantizer(BLACK_WHITE), 0x808080, 8, 8));
+	}
+
+	@Test
+	public void testDarkerGray() {
+		assertEquals(rows("00010001", "00000000", "01000100", "00000000", "00010001", "00000000", "01000100",
+				"00000000"), quantize(new Quantizer(BLACK_WHITE), 0x7D7D7D, 8, 8));
+	}
+
+	@Test
+	public void testLighterGray() {
+		assertEquals(rows("01010101", "11111111", "01010101", "11111111", "01010101", "11111111", "01010101",
+				"11111111"), quantize(new Quantizer(BLACK_WHITE), 0x828282, 8, 8));
+	}
+
+	@Test
+	public void testThreeGrays() {
+		Quantizer quantizer = new Quantizer(THREE_GRAYS);
+		assertEquals(rows("12121212", "11111111", "12121212", "11111111", "12121212", "11111111", "12121212",
+				"11111111"), quantize(quantizer, 0xBEBEBE, 8, 8));
+		assertEquals(rows("11111111", "11111111", "11111111", "11111111", "11111111", "11111111", "11111111",
+				"11111111"), quantize(quantizer, 0x646464, 8, 8));
+	}
+
+	@Test
+	public void testEachChannelIsDithered() {
+		assertEquals(rows("01010101", "10101010", "01010101", "10101010", "01010101", "10101010", "01010101",
+				"10101010"), quantize(new Quantizer(BLACK_RED), 0x800000, 8, 8));
+	}
+
+	@Test
+	public void testPaletteColorsSurviveDithering() {
+		Quantizer quantizer = new Quantizer(BLACK_WHITE);
+		assertEquals(rows("000", "000"), quantize(quantizer, 0x000000, 3, 2));
+		assertEquals(rows("111", "111"), quantize(quantizer, 0xFFFFFF, 3, 2));
+	}
+
+	@Test
+	public void testThePatternTiles() {
+		String frame = quantize(new Quantizer(BLACK_WHITE), 0x808080, 19, 11);
+		String[] rows = frame.split("\n");
+		assertEquals(11, rows.length);
+		for (int y = 0; y < rows.length; y++) {
+			for (int x = 0; x < 19; x++) {
+				assertEquals(x + "," + y, (x + y) % 2 == 1 ? '1' : '0', rows[y].charAt(x));
+			}
+		}
+	}
+
+	@Test
+	public void testWithoutDithering() {
+		Quantizer quantizer = new Quantizer(BLACK_WHITE, -1);
+		assertEquals(rows("1111", "1111"), quantize(quantizer, 0x808080, 4, 2));
+		assertEquals(rows("0000", "0000"), quantize(quantizer, 0x7F7F7F, 4, 2));
+	}
+
+	@Test
+	public void testNeverMapsToPlaceholders() {
+		// palettegen's transparent placeholder is closest to black, but it's never used
+		Palette palette = new Palette(new int[]{0xFFFFFFFF, 0x00010101, 0xFF404040}, true);
+		assertEquals(rows("22", "22"), quantize(new Quantizer(palette, -1), 0x000000, 2, 2));
+		assertEquals(rows("00", "00"), quantize(new Quantizer(palette, -1), 0xF0F0F0, 2, 2));
+		assertSame(palette, new Quantizer(palette).getPalette());
+	}
+
+}